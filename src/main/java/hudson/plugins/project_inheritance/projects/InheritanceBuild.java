@@ -46,12 +46,14 @@ import hudson.model.Result;
 import hudson.model.Run;
 import hudson.model.StringParameterValue;
 import hudson.plugins.project_inheritance.projects.actions.VersioningAction;
+import hudson.plugins.project_inheritance.projects.inheritance.DerivedConfigSnapshot;
+import hudson.plugins.project_inheritance.projects.inheritance.InheritanceContext;
 import hudson.plugins.project_inheritance.projects.parameters.InheritanceParametersDefinitionProperty;
 import hudson.plugins.project_inheritance.projects.versioning.VersionHandler;
 import hudson.plugins.project_inheritance.util.BuildDiscardPreventer;
 import hudson.plugins.project_inheritance.util.NodeFileSeparator;
+import hudson.plugins.project_inheritance.util.OrderedResolver;
 import hudson.plugins.project_inheritance.util.PathMapping;
-import hudson.plugins.project_inheritance.util.Resolver;
 import hudson.slaves.WorkspaceList;
 import hudson.slaves.WorkspaceList.Lease;
 
@@ -63,6 +65,13 @@ public class InheritanceBuild extends Build<InheritanceProject, InheritanceBuild
 	
 	protected transient Map<String, Long> projectVersions;
 	
+	/**
+	 * The fields of the project as derived when this build started running.
+	 * Only set while the build runs; so that finished builds do not keep a
+	 * copy of the configuration on the heap.
+	 */
+	protected transient DerivedConfigSnapshot configSnapshot;
+	
 	public InheritanceBuild(InheritanceProject project) throws IOException {
 		super(project);
 	}
@@ -138,6 +147,14 @@ public class InheritanceBuild extends Build<InheritanceProject, InheritanceBuild
 		this.addAction(new VersioningAction(map));
 	}
 	
+	/**
+	 * @return the fields of the project as derived when this build started
+	 * running; or null if the build is not running.
+	 */
+	public DerivedConfigSnapshot getConfigSnapshot() {
+		return configSnapshot;
+	}
+	
 	private void unsetVersions() {
 		VersionHandler.clearVersions();
 	}
@@ -159,7 +176,7 @@ public class InheritanceBuild extends Build<InheritanceProject, InheritanceBuild
 		String path = project.getParameterizedWorkspace();
 		if (path != null && ! path.isEmpty()) {
 			//Resolve the path's variables
-			String resolv = Resolver.resolveSingle(values, path);
+			String resolv = new OrderedResolver(values).resolveString(path);
 			if (resolv == null) { return null; }
 			
 			resolv = resolv.trim();
@@ -196,9 +213,12 @@ public class InheritanceBuild extends Build<InheritanceProject, InheritanceBuild
 	public void run() {
 		//Making sure that we set the desired versions correctly
 		this.setVersions();
-		try {
+		try (InheritanceContext ctx = InheritanceContext.enter(InheritanceContext.Mode.INHERIT);
+				DerivedConfigSnapshot.Scope snap = DerivedConfigSnapshot.capture(this.getParent())) {
+			this.configSnapshot = snap.getSnapshot();
 			this.onRun();
 		} finally {
+			this.configSnapshot = null;
 			this.unsetVersions();
 		}
 	}
@@ -30,6 +30,8 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.text.Normalizer;
@@ -50,9 +52,11 @@ import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.UUID;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -87,14 +91,12 @@ import com.google.common.base.Joiner;
 import com.sun.mail.util.BASE64EncoderStream;
 import com.thoughtworks.xstream.XStreamException;
 
-import difflib.DiffUtils;
-import difflib.Patch;
-import hudson.BulkChange;
 import hudson.Extension;
 import hudson.Functions;
 import hudson.Util;
 import hudson.init.InitMilestone;
 import hudson.init.Initializer;
+import hudson.model.AbstractItem;
 import hudson.model.AbstractProject;
 import hudson.model.Action;
 import hudson.model.Cause;
@@ -114,6 +116,7 @@ import hudson.model.ParametersAction;
 import hudson.model.ParametersDefinitionProperty;
 import hudson.model.Project;
 import hudson.model.Queue;
+import hudson.model.ResourceList;
 import hudson.model.StringParameterValue;
 import hudson.model.TopLevelItem;
 import hudson.model.TransientProjectActionFactory;
@@ -121,18 +124,23 @@ import hudson.model.Cause.RemoteCause;
 import hudson.model.Cause.UserIdCause;
 import hudson.model.Descriptor.FormException;
 import hudson.model.listeners.ItemListener;
+import hudson.model.queue.CauseOfBlockage;
 import hudson.model.queue.QueueTaskFuture;
 import hudson.model.queue.ScheduleResult;
 import hudson.model.queue.SubTask;
 import hudson.model.queue.SubTaskContributor;
 import hudson.plugins.project_inheritance.projects.InheritanceProject.Relationship.Type;
 import hudson.plugins.project_inheritance.projects.actions.VersioningAction;
+import hudson.plugins.project_inheritance.projects.actions.service.CachingInheritanceListService;
 import hudson.plugins.project_inheritance.projects.causes.BuildCauseOverride;
 import hudson.plugins.project_inheritance.projects.creation.ProjectCreationEngine;
 import hudson.plugins.project_inheritance.projects.creation.ProjectCreationEngine.CreationClass;
+import hudson.plugins.project_inheritance.projects.inheritance.InheritanceContext;
 import hudson.plugins.project_inheritance.projects.inheritance.InheritanceGovernor;
+import hudson.plugins.project_inheritance.projects.inheritance.InheritanceGraph;
 import hudson.plugins.project_inheritance.projects.inheritance.ParameterSelector;
 import hudson.plugins.project_inheritance.projects.inheritance.ParameterSelector.ScopeEntry;
+import hudson.plugins.project_inheritance.projects.inheritance.ParameterSelector.ScopeTable;
 import hudson.plugins.project_inheritance.projects.parameters.InheritableStringParameterDefinition;
 import hudson.plugins.project_inheritance.projects.parameters.InheritableStringParameterReferenceDefinition;
 import hudson.plugins.project_inheritance.projects.parameters.InheritanceParametersDefinitionProperty;
@@ -143,6 +151,7 @@ import hudson.plugins.project_inheritance.projects.references.AbstractProjectRef
 import hudson.plugins.project_inheritance.projects.references.ParameterizedProjectReference;
 import hudson.plugins.project_inheritance.projects.references.ProjectReference;
 import hudson.plugins.project_inheritance.projects.references.Referencer;
+import hudson.plugins.project_inheritance.projects.references.ProjectNameIndex;
 import hudson.plugins.project_inheritance.projects.references.SimpleProjectReference;
 import hudson.plugins.project_inheritance.projects.references.ProjectReference.PrioComparator;
 import hudson.plugins.project_inheritance.projects.references.ProjectReference.PrioComparator.SELECTOR;
@@ -150,10 +159,12 @@ import hudson.plugins.project_inheritance.projects.versioning.VersionChangeListe
 import hudson.plugins.project_inheritance.projects.versioning.VersionHandler;
 import hudson.plugins.project_inheritance.projects.view.BuildFlowScriptAction;
 import hudson.plugins.project_inheritance.projects.view.BuildViewExtension;
+import hudson.plugins.project_inheritance.util.DependencyBuffer;
 import hudson.plugins.project_inheritance.util.Helpers;
 import hudson.plugins.project_inheritance.util.MockItemGroup;
 import hudson.plugins.project_inheritance.util.ThreadAssocStore;
 import hudson.plugins.project_inheritance.util.TimedBuffer;
+import hudson.plugins.project_inheritance.util.VersionDiff;
 import hudson.plugins.project_inheritance.util.VersionedObjectStore;
 import hudson.plugins.project_inheritance.util.VersionedObjectStore.Version;
 import hudson.plugins.project_inheritance.util.VersionsNotification;
@@ -183,6 +194,7 @@ import hudson.widgets.HistoryWidget;
 import hudson.widgets.Widget;
 import jenkins.model.BuildDiscarder;
 import jenkins.model.BuildDiscarderProperty;
+import jenkins.model.DirectlyModifiableTopLevelItemGroup;
 import jenkins.model.Jenkins;
 import jenkins.scm.SCMCheckoutStrategy;
 import jenkins.util.TimeDuration;
@@ -366,13 +378,14 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 	 * generated, as long as the configuration of this project or its
 	 * parents has not changed.
 	 * 
-	 * This class ensures that this buffer is cleared whenever the project or
-	 * its parents are changed.
+	 * Each value records the names of the projects it was derived from (see
+	 * {@link #getInheritanceScopeNames()}). A change to a project evicts
+	 * exactly those values, that depend on it.
 	 * 
 	 * @see #createBuffers()
 	 * @see #clearBuffers(InheritanceProject)
 	 */
-	protected static TimedBuffer<InheritanceProject, String> onInheritChangeBuffer = null;
+	protected static DependencyBuffer<InheritanceProject, String> onInheritChangeBuffer = null;
 	
 	/**
 	 * Same as {@link #onSelfChangeBuffer}, but this buffer is cleared only
@@ -384,13 +397,29 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 	protected static TimedBuffer<InheritanceProject, String> onSelfChangeBuffer = null;
 	
 	/**
-	 * Same as {@link #onSelfChangeBuffer}, but this buffer is cleared when
-	 * <i>any</i> project is changed or loaded anew.
+	 * Same as {@link #onSelfChangeBuffer}, but this buffer holds values that
+	 * may depend on arbitrary other projects. Values stored with their
+	 * dependencies are evicted when one of these changes; all other values
+	 * are only evicted when projects are created, renamed, deleted or
+	 * loaded anew.
 	 * 
 	 * @see #createBuffers()
 	 * @see #clearBuffers(InheritanceProject)
 	 */
-	protected static TimedBuffer<InheritanceProject, String> onChangeBuffer = null;
+	protected static DependencyBuffer<InheritanceProject, String> onChangeBuffer = null;
+	
+	/**
+	 * The maximum number of values held by each of the buffers above. Once
+	 * exceeded, the least recently used values are evicted.
+	 */
+	private static final int BUFFER_MAX_ENTRIES = 50000;
+	
+	/**
+	 * Counts the calls to {@link #getParameterSanity()} and how often the
+	 * verdict had to be computed for them.
+	 */
+	private static final AtomicLong sanityLookups = new AtomicLong();
+	private static final AtomicLong sanityComputations = new AtomicLong();
 	
 	public static Permission VERSION_CONFIG = new Permission(
 			PERMISSIONS, "ConfigureVersions",
@@ -567,6 +596,16 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 		return pMap;
 	}
 	
+	/**
+	 * Evicts the buffered result of {@link #getProjectsMap()}; which is
+	 * necessary whenever a project is created, renamed or deleted.
+	 */
+	public static void clearProjectsMap() {
+		createBuffers();
+		onChangeBuffer.remove(null, "getProjectsMap");
+		ProjectNameIndex.invalidate();
+	}
+	
 	/**
 	 * Simple wrapper around {@link Jenkins#getItemByFullName(String, Class)}.
 	 * <p>
@@ -584,16 +623,42 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 	
 	public static void createBuffers() {
 		if (onChangeBuffer == null) {
-			onChangeBuffer = new TimedBuffer<InheritanceProject, String>();
+			onChangeBuffer = new DependencyBuffer<InheritanceProject, String>(
+					-1, BUFFER_MAX_ENTRIES
+			);
 		}
 		if (onSelfChangeBuffer == null) {
-			onSelfChangeBuffer = new TimedBuffer<InheritanceProject, String>();
+			onSelfChangeBuffer = new TimedBuffer<InheritanceProject, String>(
+					-1, BUFFER_MAX_ENTRIES
+			);
 		}
 		if (onInheritChangeBuffer == null) {
-			onInheritChangeBuffer = new TimedBuffer<InheritanceProject, String>();
+			onInheritChangeBuffer = new DependencyBuffer<InheritanceProject, String>(
+					-1, BUFFER_MAX_ENTRIES
+			);
 		}
 	}
 	
+	/**
+	 * Returns the hit, miss and eviction counters of the buffers that track
+	 * their dependencies; for example to inspect them via the script console.
+	 * 
+	 * @return a map of buffer names to a human-readable set of counters.
+	 */
+	public static Map<String, String> getBufferStatistics() {
+		createBuffers();
+		Map<String, String> map = new LinkedHashMap<String, String>();
+		map.put("onChangeBuffer", onChangeBuffer.toString());
+		map.put("onInheritChangeBuffer", onInheritChangeBuffer.toString());
+		map.put("derivedFields", InheritanceGovernor.getDerivedFieldStatistics());
+		map.put("scopes", InheritanceGovernor.getScopeStatistics());
+		map.put("decodedVersionMaps", VersionHandler.getDecodedVersionMapStatistics());
+		map.put("parameterSanity", getParameterSanityStatistics());
+		map.put("inheritanceLists", CachingInheritanceListService.getStatistics());
+		map.put("projectNames", ProjectNameIndex.getStatistics());
+		return map;
+	}
+	
 	public static void clearBuffers(InheritanceProject root) {
 		//Ensuring that the buffers are present
 		createBuffers();
@@ -603,27 +668,64 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 			onChangeBuffer.clearAll();
 			onSelfChangeBuffer.clearAll();
 			onInheritChangeBuffer.clearAll();
+			InheritanceGovernor.invalidateDerivedFields(null);
+			ParameterSelector.invalidateScopeTables(null);
+			CachingInheritanceListService.invalidate(null, null);
+			ProjectNameIndex.invalidate();
 			return;
 		}
 		
-		//First clearing the cross-project change buffer
-		onChangeBuffer.clearAll();
-		//Then clearing the self-change buffer
+		//First clearing the self-change buffer
 		onSelfChangeBuffer.clear(root);
 		
-		//Then we need to clear the inheritable changes for the root and its children
-		//Do note that the root MUST be cleared first, as otherwise we may
-		//fetch an "unclean" relationship set
+		//The references of the root might have changed. Both its former and
+		//its new ancestors need to drop what they derived from their relatives
+		String name = root.getFullName();
+		Set<String> ancestors = new HashSet<String>(
+				InheritanceGraph.instance.getAncestors(name)
+		);
+		InheritanceGraph.instance.update(root);
+		ancestors.addAll(InheritanceGraph.instance.getAncestors(name));
+		
+		//Then we evict all values derived from the root. As they recorded
+		//the root as a dependency, this covers all relatives it already had
+		onChangeBuffer.invalidate(name);
 		onInheritChangeBuffer.clear(root);
-		Map<InheritanceProject, Relationship> relMap = root.getRelationships();
-		for (Map.Entry<InheritanceProject, Relationship> e : relMap.entrySet()) {
-			//We ignore siblings
-			if (e.getValue().type == Relationship.Type.MATE) {
-				continue;
-			}
-			//Otherwise, we clear that project's inheritance buffer
-			onInheritChangeBuffer.clear(e.getKey());
-		}
+		onInheritChangeBuffer.invalidate(name);
+		//A new ancestor did not know the root as a relative yet; so its lists
+		//of relatives can't be evicted via the name of the root
+		for (String anc : ancestors) {
+			InheritanceProject ip = getProjectByName(anc);
+			if (ip == null) { continue; }
+			onInheritChangeBuffer.remove(ip, "getRelationships");
+			onInheritChangeBuffer.remove(ip, "getRelatedProjects");
+		}
+		InheritanceGovernor.invalidateDerivedFields(name);
+		ParameterSelector.invalidateScopeTables(name);
+		//The current parents might have just gained the root as a child
+		CachingInheritanceListService.invalidate(
+				name, InheritanceGraph.instance.getParents(name)
+		);
+		//The creation class of the root might have changed
+		ProjectNameIndex.update(root);
+	}
+	
+	/**
+	 * Returns the names of all projects whose configuration is used when
+	 * deriving values for this project; that is this project itself and all
+	 * its transitive parents.
+	 * <p>
+	 * Values cached in {@link #onInheritChangeBuffer} record this set as
+	 * their dependencies.
+	 * 
+	 * @return a new, modifiable set of full project names. Never empty.
+	 */
+	protected Set<String> getInheritanceScopeNames() {
+		Set<String> names = new HashSet<String>(
+				InheritanceGraph.instance.getAncestors(this.getFullName())
+		);
+		names.add(this.getFullName());
+		return names;
 	}
 	
 	
@@ -673,8 +775,12 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 		 * Builders and Publisher fields are changed in-place instead of
 		 * reassigned. This broke versioning as that causes new fields to be
 		 * returned on each call; so that no in-place change can ever work.
+		 * 
+		 * As such, the raw fields must be returned while it runs.
 		 */
-		super.submit(req, rsp);
+		try (InheritanceContext ctx = InheritanceContext.enter(InheritanceContext.Mode.RAW)) {
+			super.submit(req, rsp);
+		}
 		
 		JSONObject json = req.getSubmittedForm();
 		
@@ -875,15 +981,52 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 		
 		//Recording our old project name
 		String oldName = this.name;
+		String oldFullName = this.getFullName();
 		
 		//Executing the rename
 		super.renameTo(newName);
 		
-		//This means, that we need to force a refresh various buffers
+		//The versions were moved along with the project directory
+		if (this.versionStore != null) {
+			this.versionStore.relocate(this.getVersionFile());
+		}
+		
+		//Move the node in the graph index; the edges stay valid
+		InheritanceGraph.instance.rename(oldFullName, this.getFullName());
+		
+		//This means, that we need to force a refresh various buffers; both
+		//for values that recorded the old and the new name
+		clearProjectsMap();
+		onChangeBuffer.invalidate(oldFullName);
+		onInheritChangeBuffer.invalidate(oldFullName);
+		InheritanceGovernor.invalidateDerivedFields(oldFullName);
+		ParameterSelector.invalidateScopeTables(oldFullName);
+		CachingInheritanceListService.invalidate(oldFullName, null);
 		clearBuffers(this);
 		
 		//And then fixing all named references
 		for (InheritanceProject p : getProjectsMap().values()) {
+			//Change references in the version store first. The latest version
+			//shares its references with the project itself; which must thus
+			//still carry the old name while the versions are checked
+			VersionedObjectStore verStore = p.getVersionedObjectStore();
+			if (verStore != null) {
+				//Change for parent references
+				boolean versionsModified = changeVersionedProjectReferences(
+						verStore, "parentReferences",oldName, newName
+				);
+				
+				//Change for compatible projects
+				versionsModified |= changeVersionedProjectReferences(
+						verStore, "compatibleProjects",oldName, newName
+				);
+				
+				//Save the changed versionStore, if needed
+				if (versionsModified) {
+					p.saveVersionedObjectStore();
+				}
+			}
+			
 			//Define boolean to check whether the project is modified by the rename
 			boolean modified = false;
 			
@@ -903,29 +1046,20 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 			
 			//Save if modified
 			if (modified) { p.save(); }
-			//Do not reset modified because change in object -> change in version
-			
-			//Change references in the version store also
-			VersionedObjectStore verStore = p.getVersionedObjectStore();
-			if (verStore == null) { continue; }
-			
-			//Change for parent references
-			modified |= changeVersionedProjectReferences(
-					verStore, "parentReferences",oldName, newName
-			);
-			
-			//Change for compatible projects
-			modified |= changeVersionedProjectReferences(
-					verStore, "compatibleProjects",oldName, newName
-			);
-			
-			//Save the changed versionStore, if needed
-			if (modified) {
-				p.saveVersionedObjectStore();
-			}
 		}
 	}
 	
+	/**
+	 * Points all references to the old name in the given versions to the new
+	 * name.
+	 * <p>
+	 * Consecutive versions may share the very same list and references; and
+	 * the latest one shares them with the project itself. Thus, the stored
+	 * values are never changed in place. Instead, each version that refers
+	 * to the old name gets a new list, with copies of the changed references.
+	 * 
+	 * @return true, if any version was changed
+	 */
 	private boolean changeVersionedProjectReferences(
 			VersionedObjectStore verStore,
 			String keyInVersionStore,
@@ -935,24 +1069,56 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 		boolean modified = false;
 		
 		//Iterate over all versions
-		Iterator it = verStore.getAllVersions().iterator();
-		while (it.hasNext()) {
-			Version v = (Version) it.next();
-			
+		for (Version v : verStore.getAllVersions()) {
 			//Get the old references
-			LinkedList<AbstractProjectReference> referencesInVersionStore =
-					(LinkedList)verStore.getObject(v, keyInVersionStore);
+			Object obj = verStore.getObject(v, keyInVersionStore);
+			if (!(obj instanceof List)) { continue; }
 			
-			//Loop through the parent references and change to new parent reference
-			for (AbstractProjectReference ref : referencesInVersionStore) {
-				if (!ref.getName().equals(oldName)) { continue; }
-				ref.switchProject(newName);
+			//Copy the list, replacing the references to the old name
+			LinkedList<AbstractProjectReference> newRefs =
+					new LinkedList<AbstractProjectReference>();
+			boolean changed = false;
+			for (Object o : (List<?>) obj) {
+				if (!(o instanceof AbstractProjectReference)) { continue; }
+				AbstractProjectReference ref = (AbstractProjectReference) o;
+				if (oldName.equals(ref.getName())) {
+					AbstractProjectReference copy = copyReference(ref);
+					if (copy != null) {
+						copy.switchProject(newName);
+						ref = copy;
+						changed = true;
+					}
+				}
+				newRefs.add(ref);
+			}
+			if (changed) {
+				//Storing the copy also marks the version to be saved again
+				verStore.setObjectFor(v, keyInVersionStore, newRefs);
 				modified = true;
 			}
 		}
 		return modified;
 	}
 	
+	/**
+	 * @return a deep copy of the given reference, made by looping it through
+	 * XStream. Null, if that failed.
+	 */
+	private static AbstractProjectReference copyReference(AbstractProjectReference ref) {
+		try {
+			Object copy = Jenkins.XSTREAM2.fromXML(Jenkins.XSTREAM2.toXML(ref));
+			if (copy instanceof AbstractProjectReference) {
+				return (AbstractProjectReference) copy;
+			}
+		} catch (XStreamException ex) {
+			log.warning(String.format(
+					"Could not copy the reference to %s; Reason = %s",
+					ref.getName(), ex.getMessage()
+			));
+		}
+		return null;
+	}
+	
 	/**
 	 * Adds the given {@link ProjectReference} as a parent to this node.
 	 * <p>
@@ -1040,6 +1206,7 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 		for (CreationClass cc : ProjectCreationEngine.instance.getCreationClasses()) {
 			if (cc.name.equals(creationClass)) {
 				this.creationClass = creationClass;
+				ProjectNameIndex.update(this);
 				break;
 			}
 		}
@@ -1121,6 +1288,25 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 		
 		//And clearing the buffers again, as a new job with new props is available
 		clearBuffers(null);
+		
+		//The references of this job might have changed, if it was reloaded
+		InheritanceGraph.instance.update(this);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Moving a job into another folder does not go through
+	 * {@link #renameTo(String)}; but it moves the directory with the
+	 * versions all the same.
+	 */
+	@Override
+	public void movedTo(DirectlyModifiableTopLevelItemGroup destination,
+			AbstractItem newItem, File destDir) throws IOException {
+		super.movedTo(destination, newItem, destDir);
+		if (this.versionStore != null) {
+			this.versionStore.relocate(this.getVersionFile());
+		}
 	}
 	
 	public void onCopiedFrom(Item src) {
@@ -1367,6 +1553,8 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 			onChangeBuffer.clear(mod);
 			onInheritChangeBuffer.clear(mod);
 			onSelfChangeBuffer.clear(mod);
+			InheritanceGovernor.clearDerivedFields(mod);
+			ParameterSelector.clearScopeTables(mod);
 			
 			//And purge the inheritance buffer for "this" too, since the page
 			//might've been called with a "version" flag which breaks stuff
@@ -1487,7 +1675,10 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 		}
 		
 		String str = Jenkins.XSTREAM2.toXML(valLst);
-		onInheritChangeBuffer.set(this, "doGetParamDefaultsAsXML", str);
+		onInheritChangeBuffer.set(
+				this, "doGetParamDefaultsAsXML", str,
+				this.getInheritanceScopeNames()
+		);
 		return str;
 	}
 	
@@ -1554,7 +1745,10 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 		super.doDoDelete(req, rsp);
 		
 		//Then, we refresh the project map and buffers
+		clearProjectsMap();
 		clearBuffers(this);
+		//And make sure that the deleted job does not keep its edges
+		InheritanceGraph.instance.remove(this.getFullName());
 	}
 	
 	public String doComputeVersionDiff(StaplerRequest req, StaplerResponse rsp) {
@@ -1576,6 +1770,20 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 			return "<span style=\"color:red\"><b>Left/right version is not a number!</b></span>";
 		}
 		
+		if (!mode.equals("unified") && !mode.equals("side") && !mode.equals("raw")) {
+			return "<span style=\"color:red\"><b>" +
+					"Select a valid diff mode: 'unified', 'side' (for side-by-side), or 'raw'." +
+					"</b></span>";
+		}
+		
+		//The diff of two versions only changes, when this project is changed
+		createBuffers();
+		String bufKey = String.format("doComputeVersionDiff|%d|%d|%s", l, r, mode);
+		Object obj = onSelfChangeBuffer.get(this, bufKey);
+		if (obj instanceof String) {
+			return (String) obj;
+		}
+		
 		//Fetch the value maps of both versions
 		Map<String, Object> lMap = this.versionStore.getValueMapFor(l);
 		if (lMap == null) {
@@ -1587,32 +1795,24 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 			return "<span style=\"color:red\"><b>Right version does not exist!</b></span>";
 		}
 		
-		//Turning them into escaped XML
-		String lXml = Jenkins.XSTREAM2.toXML(lMap);
-		String rXml = Jenkins.XSTREAM2.toXML(rMap);
-		
-		StringBuilder b = new StringBuilder();
-		if (mode.equals("unified")) {
-			return computeUnifiedDiff(
-				5,
-				new AbstractMap.SimpleEntry(l, lXml),
-				new AbstractMap.SimpleEntry(r, rXml)
-			);
-		} else if (mode.equals("side")) {
-			b.append("<span style=\"color:red\"><b>");
-			b.append("Side-by-Side diff not yet implemented.");
-			b.append("</b></span>");
-		} else if (mode.equals("raw")) {
-			return computeRawTable(
+		String out;
+		if (mode.equals("raw")) {
+			//The raw mode shows everything; thus it needs the full XML
+			String lXml = Jenkins.XSTREAM2.toXML(lMap);
+			String rXml = Jenkins.XSTREAM2.toXML(rMap);
+			out = computeRawTable(
 					new AbstractMap.SimpleEntry(l, lXml),
 					new AbstractMap.SimpleEntry(r, rXml)
-				);
+			);
 		} else {
-			b.append("<span style=\"color:red\"><b>");
-			b.append("Select a valid diff mode: 'unified', 'side' (for side-by-side), or 'raw'.");
-			b.append("</b></span>");
+			//Otherwise, only the fields that actually changed are diffed
+			VersionDiff diff = VersionDiff.compute(l, lMap, r, rMap);
+			out = (mode.equals("side"))
+					? diff.toSideBySideHtml(5)
+					: diff.toUnifiedHtml(5);
 		}
-		return b.toString();
+		onSelfChangeBuffer.set(this, bufKey, out);
+		return out;
 	}
 	
 	public String warnUserOnUnstableVersions() {
@@ -1682,56 +1882,6 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 		return b.toString();
 	}
 	
-	private String computeUnifiedDiff(int context, Map.Entry<Long, String>... versions) {
-		if (versions.length != 2) {
-			throw new IllegalArgumentException("You must pass exactly two versions");
-		}
-		if (context < 0) {
-			context = 0;
-		}
-		
-		StringBuilder b = new StringBuilder();
-		
-		//Splitting texts along newlines
-		List<String> lLst = Arrays.asList(versions[0].getValue().split("\n"));
-		List<String> rLst = Arrays.asList(versions[1].getValue().split("\n"));
-		
-		//We use Google's diff utils to create the diff patch
-		Patch p = DiffUtils.diff(lLst, rLst);
-		
-		//Then, we display a unified diff
-		List<String> outLst = DiffUtils.generateUnifiedDiff(
-				"Version " + versions[0].getKey(),
-				"Version " + versions[1].getKey(),
-				lLst, p, context
-		);
-		
-		for (String line : outLst) {
-			boolean hasColour = false;
-			if (line.startsWith("++")) {
-				b.append("<span style=\"color:orange\">");
-				hasColour = true;
-			} else if (line.startsWith("+")) {
-				b.append("<span style=\"color:green\">");
-				hasColour = true;
-			} else if (line.startsWith("--")) {
-				b.append("<span style=\"color:blue\">");
-				hasColour = true;
-			} else if (line.startsWith("-")) {
-				b.append("<span style=\"color:red\">");
-				hasColour = true;
-			}
-			String mod = escapeHTMLFull(line);
-			b.append(mod);
-			if (hasColour) {
-				b.append("</span>");
-			}
-			b.append("<br>");
-		}
-		
-		return b.toString();
-	}
-	
 	
 	
 	// === BUILD STARTING METHODS ===
@@ -1797,7 +1947,7 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 		
 		//Initialize versioning for active request from request / defaults
 		VersionHandler.initVersions(this);
-		try {
+		try (InheritanceContext ctx = InheritanceContext.enter(InheritanceContext.Mode.INHERIT)) {
 			this.doBuildInternal(req, rsp, delay);
 		} finally {
 			// Clean out ALL versioning data
@@ -2015,7 +2165,9 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 			throws IOException, ServletException {
 		//TODO: The below function did not have the TimeDuration param previously
 		TimeDuration td = new TimeDuration(0);
-		super.doBuildWithParameters(req, rsp, td);
+		try (InheritanceContext ctx = InheritanceContext.enter(InheritanceContext.Mode.INHERIT)) {
+			super.doBuildWithParameters(req, rsp, td);
+		}
 	}
 	
 	/**
@@ -2031,32 +2183,70 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 	@Override
 	public QueueTaskFuture<InheritanceBuild> scheduleBuild2(
 			int quietPeriod, Cause c, Collection<? extends Action> actions) {
-		//Purge whatever's stored in this thread from a previous run
-		VersionHandler.clearVersions();
+		/* The versions of the new build travel along in its actions; the
+		 * versions of the calling thread must be left as they were.
+		 */
+		try (
+				ThreadAssocStore.Snapshot snap = ThreadAssocStore.getInstance().snapshot();
+				InheritanceContext ctx = InheritanceContext.enter(InheritanceContext.Mode.INHERIT)
+		) {
+			return this.scheduleBuild2Internal(quietPeriod, c, actions);
+		}
+	}
+	
+	/**
+	 * The executor creates the build object from the queue; which needs the
+	 * inherited fields.
+	 */
+	@Override
+	public InheritanceBuild createExecutable() throws IOException {
+		try (InheritanceContext ctx = InheritanceContext.enter(InheritanceContext.Mode.INHERIT)) {
+			return super.createExecutable();
+		}
+	}
+	
+	/**
+	 * This is called by {@link #scheduleBuild2(int, Cause, Collection)},
+	 * after the {@link InheritanceContext} was set up.
+	 */
+	private QueueTaskFuture<InheritanceBuild> scheduleBuild2Internal(
+			int quietPeriod, Cause c, Collection<? extends Action> actions) {
+		List<Action> oActions = this.createScheduleActions(
+				quietPeriod, c, actions, null
+		);
+		if (oActions == null) { return null; }
 		
-		//Creating new list of actions, as we replace and merge them
-		List<Action> oActions = new LinkedList<Action>();
-		List<VersioningAction> vActions = new LinkedList<VersioningAction>();
+		ScheduleResult sched = Jenkins.get().getQueue().schedule2(
+				this, quietPeriod, oActions
+		);
+		if (sched == null || sched.isRefused()) {
+			return null;
+		}
+		return (QueueTaskFuture) sched.getItem().getFuture();
+	}
+	
+	/**
+	 * Extracts the versions passed into a build via the given actions; either
+	 * as a {@link VersioningAction} or as the special versioning parameter.
+	 * 
+	 * @param actions the actions passed in for the build
+	 * @return the versions, with the parameter overriding the action. May
+	 * be empty, but never null.
+	 */
+	private static Map<String, Long> getVersionsFromActions(
+			Collection<? extends Action> actions) {
+		Map<String, Long> out = new HashMap<String, Long>();
 		List<ParametersAction> pActions = new LinkedList<ParametersAction>();
 		
-		//Removing versioning and parameterActions from the input actions, to
-		//treat them separately and unify them as one action each for the build
+		//Seeding with versions passed into this build (if any)
 		for (Action a : actions) {
 			if (a instanceof VersioningAction) {
-				vActions.add((VersioningAction) a);
+				out.putAll(((VersioningAction) a).versionMap);
 			} else if (a instanceof ParametersAction) {
 				pActions.add((ParametersAction) a);
-			} else {
-				oActions.add(a);
 			}
 		}
 		
-		//Seeding the environment with versions passed into this build (if any)
-		for (VersioningAction va : vActions) {
-			//Storing that version-map in the thread
-			VersionHandler.addVersions(va.versionMap);
-		}
-		
 		//Appending parameter-based versioning overrides
 		for (ParametersAction pa : pActions) {
 			ParameterValue pv = pa.getParameter(
@@ -2068,9 +2258,45 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 			StringParameterValue spv = (StringParameterValue) pv;
 			Map<String, Long> vMap = VersionHandler.decodeUrlParameter(spv.getValue().toString());
 			if (vMap == null) { continue; }
-			
-			//The decoded map is registered in the thread
-			VersionHandler.addVersions(vMap);
+			out.putAll(vMap);
+		}
+		return out;
+	}
+	
+	/**
+	 * Creates the final list of actions to enqueue a build of this project
+	 * with; as needed by {@link #scheduleBuild2(int, Cause, Collection)}.
+	 * <p>
+	 * This leaves the versions of the build registered in the current thread.
+	 * 
+	 * @param quietPeriod the quiet period of the build
+	 * @param c the cause of the build. May be null.
+	 * @param actions the actions passed in for the build
+	 * @param versions the full set of versions to use, if already resolved
+	 * by the caller. If null, they are resolved from the actions and the
+	 * defaults of this project.
+	 * @return the actions; or null if this project is not buildable.
+	 */
+	private List<Action> createScheduleActions(
+			int quietPeriod, Cause c, Collection<? extends Action> actions,
+			Map<String, Long> versions) {
+		//Purge whatever's stored in this thread from a previous run
+		VersionHandler.clearVersions();
+		
+		//Creating new list of actions, as we replace and merge them
+		List<Action> oActions = new LinkedList<Action>();
+		List<ParametersAction> pActions = new LinkedList<ParametersAction>();
+		
+		//Removing versioning and parameterActions from the input actions, to
+		//treat them separately and unify them as one action each for the build
+		for (Action a : actions) {
+			if (a instanceof VersioningAction) {
+				continue;
+			} else if (a instanceof ParametersAction) {
+				pActions.add((ParametersAction) a);
+			} else {
+				oActions.add(a);
+			}
 		}
 		
 		/* Create a new versioning action, with the now full set of versions
@@ -2083,7 +2309,14 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 		 * Note that this also adds projects back in, which only had 1 version
 		 * to select from, since the build/rebuild UI will ignore those.
 		 */
-		Map<String, Long> vMap = VersionHandler.initVersions(this);
+		Map<String, Long> vMap;
+		if (versions == null) {
+			//Storing the versions passed into this build in the thread
+			VersionHandler.addVersions(getVersionsFromActions(actions));
+			vMap = VersionHandler.initVersions(this);
+		} else {
+			vMap = VersionHandler.initVersions(versions);
+		}
 		oActions.add(new VersioningAction(vMap));
 		
 		
@@ -2144,14 +2377,133 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 		}
 		
 		this.onScheduleBuild2(quietPeriod, c, oActions);
+		return oActions;
+	}
+	
+	/**
+	 * The outcome of scheduling one project via
+	 * {@link InheritanceProject#scheduleBuilds(Collection, int, Cause, Collection)}.
+	 */
+	public static class BatchResult {
+		public enum Status {
+			SCHEDULED, NOT_BUILDABLE, REFUSED, FAILED;
+		}
 		
-		ScheduleResult sched = Jenkins.get().getQueue().schedule2(
-				this, quietPeriod, oActions
-		);
-		if (sched == null || sched.isRefused()) {
-			return null;
+		public final InheritanceProject project;
+		public final Status status;
+		/**
+		 * The queue item of the build; only set, if it was scheduled.
+		 */
+		public final Queue.Item item;
+		
+		public BatchResult(InheritanceProject project, Status status, Queue.Item item) {
+			this.project = project;
+			this.status = status;
+			this.item = item;
+		}
+		
+		public String toString() {
+			return String.format("%s(%s)", project.getFullName(), status);
 		}
-		return (QueueTaskFuture) sched.getItem().getFuture();
+	}
+	
+	/**
+	 * Schedules builds of many projects at once; with the same result as
+	 * calling {@link #scheduleBuild2(int, Cause, Collection)} on each.
+	 * <p>
+	 * The versions passed in via the actions are decoded once and the
+	 * default version of each project in the scope of any of the given
+	 * projects is only looked up once; which is where most of the time goes
+	 * when many projects share the same ancestors. The parameters of each
+	 * project are derived in a single {@link InheritanceContext}, which
+	 * lets the buffered inheritance of the shared ancestors be reused.
+	 * <p>
+	 * All builds are then put into the queue while holding its lock once.
+	 * 
+	 * @param projects the projects to build
+	 * @param quietPeriod the quiet period; if negative, the quiet period of
+	 * each project is used
+	 * @param c the cause of the builds. May be null.
+	 * @param actions the actions passed to every build. May be null.
+	 * @return the outcome for each project, in the order of the input
+	 */
+	public static List<BatchResult> scheduleBuilds(
+			Collection<InheritanceProject> projects, final int quietPeriod,
+			Cause c, Collection<? extends Action> actions) {
+		if (actions == null) { actions = Collections.emptyList(); }
+		final List<BatchResult> out = new ArrayList<BatchResult>(projects.size());
+		final List<List<Action>> prepared = new ArrayList<List<Action>>(projects.size());
+		
+		//Preparing all builds first, to not hold the queue lock for this
+		try (
+				ThreadAssocStore.Snapshot snap = ThreadAssocStore.getInstance().snapshot();
+				InheritanceContext ctx = InheritanceContext.enter(InheritanceContext.Mode.INHERIT)
+		) {
+			//The versions passed in are shared by all builds
+			VersionHandler.clearVersions();
+			Map<String, Long> predefs = new HashMap<String, Long>(VersionHandler.getVersions());
+			predefs.putAll(getVersionsFromActions(actions));
+			Map<String, Long> defaults = new HashMap<String, Long>();
+			
+			for (InheritanceProject ip : projects) {
+				List<Action> oActions = null;
+				try {
+					//Walk the scope with only the versions passed in applied; as
+					//they might change the references, just like in scheduleBuild2
+					VersionHandler.clearVersions();
+					VersionHandler.initVersions(new HashMap<String, Long>(predefs));
+					Map<String, Long> versions = new HashMap<String, Long>();
+					for (InheritanceProject scoped : getInheritedVersionScope(ip)) {
+						String name = scoped.getFullName();
+						Long v = predefs.get(name);
+						if (v == null) {
+							if (!defaults.containsKey(name)) {
+								defaults.put(name, scoped.getStableVersion());
+							}
+							v = defaults.get(name);
+						}
+						if (v != null) { versions.put(name, v); }
+					}
+					oActions = ip.createScheduleActions(
+							(quietPeriod < 0) ? ip.getQuietPeriod() : quietPeriod,
+							c, actions, versions
+					);
+					out.add(new BatchResult(ip,
+							(oActions != null)
+									? BatchResult.Status.SCHEDULED
+									: BatchResult.Status.NOT_BUILDABLE,
+							null
+					));
+				} catch (RuntimeException ex) {
+					log.log(Level.WARNING, "Could not prepare build of " + ip.getFullName(), ex);
+					out.add(new BatchResult(ip, BatchResult.Status.FAILED, null));
+				}
+				prepared.add(oActions);
+			}
+			VersionHandler.clearVersions();
+		}
+		
+		//Enqueueing all prepared builds in one go
+		Queue.withLock(new Runnable() {
+			public void run() {
+				Queue queue = Jenkins.get().getQueue();
+				for (int i = 0; i < out.size(); i++) {
+					List<Action> oActions = prepared.get(i);
+					if (oActions == null) { continue; }
+					InheritanceProject ip = out.get(i).project;
+					ScheduleResult sched = queue.schedule2(
+							ip,
+							(quietPeriod < 0) ? ip.getQuietPeriod() : quietPeriod,
+							oActions
+					);
+					out.set(i, (sched == null || sched.isRefused())
+							? new BatchResult(ip, BatchResult.Status.REFUSED, null)
+							: new BatchResult(ip, BatchResult.Status.SCHEDULED, sched.getItem())
+					);
+				}
+			}
+		});
+		return out;
 	}
 	
 	/**
@@ -2312,7 +2664,7 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 	protected VersionedObjectStore loadVersionedObjectStore() {
 		//TODO: This should read stuff from disk / DB
 		File vFile = this.getVersionFile();
-		if (vFile == null || !vFile.isFile()) {
+		if (!VersionedObjectStore.exists(vFile)) {
 			//Creating an empty VOS, in case none is stored anywhere
 			return new VersionedObjectStore();
 		}
@@ -2340,9 +2692,17 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 			return new VersionedObjectStore();
 		}
 		
-		//Update that store -- regardless of the current object
-		boolean wasModified = updateVersionedObjectStore(vos);
-		if (wasModified) {
+		//Update and patch up the maps of that store as soon as they are read;
+		//which for older stores means right away
+		vos.setLoadListener(new VersionedObjectStore.LoadListener() {
+			public boolean onLoad(Version v, HashMap<String, Object> map) {
+				return onVersionLoaded(map);
+			}
+		});
+		
+		//Save the store, if that changed anything. Stores in the older format
+		//are converted on their next save; which keeps the old file as backup
+		if (vos.isModified()) {
 			try {
 				vos.save(vFile);
 			} catch (IOException ex) {
@@ -2353,74 +2713,99 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 			}
 		}
 		
-		//Since we'll add/remove lots of properties, we put Jenkins in
-		//bulk-change mode
-		try (BulkChange bc = new BulkChange(this)) {
-			//Then, we need to patch up certain fields in the store
-			for (HashMap<String, Object> m : vos.getAllValueMaps()) {
-				//The properties need to have their owner set, which happens by
-				//adding & removing them
-				Object obj = m.get("properties");
-				if (obj != null && obj instanceof List) {
-					List<JobProperty<Job<?,?>>> lst = (List<JobProperty<Job<?,?>>>) obj;
-					for (JobProperty<Job<?,?>> prop : lst) {
-						//Adding the property to us
-						this.addProperty(prop);
-						//And immediately removing the property
-						this.removeProperty(prop);
-					}
+		return vos;
+	}
+	
+	/**
+	 * Converts outdated settings in the given map of a version and makes
+	 * sure that the properties in it are owned by this project.
+	 * <p>
+	 * As maps are read on demand, this is called on ordinary reads of a
+	 * version. Thus, it must neither change the live properties of this
+	 * project nor save it.
+	 * 
+	 * @param map the map of a version that was just read from disk
+	 * @return true, if the map was modified and needs to be saved again
+	 */
+	private boolean onVersionLoaded(HashMap<String, Object> map) {
+		//Update that map -- regardless of the current object
+		boolean wasModified = updateVersionedValueMap(map);
+		
+		//The properties need to have their owner set
+		Object obj = map.get("properties");
+		if (obj != null && obj instanceof List) {
+			for (Object prop : (List<?>) obj) {
+				if (prop instanceof JobProperty) {
+					setPropertyOwner((JobProperty<?>) prop, this);
 				}
 			}
-			bc.commit();
-		} catch (IOException e) {
-			//Nothing to do -- the BC will automatically abort
 		}
-			
-		return vos;
+		return wasModified;
 	}
 	
-	private static boolean updateVersionedObjectStore(VersionedObjectStore vos) {
-		if (vos == null) { return false; }
-		boolean wasModified = false;
+	/**
+	 * The protected {@link JobProperty#setOwner(Job)}; which
+	 * {@link Job#addProperty(JobProperty)} would call, alongside adding the
+	 * property to the live list and saving the job.
+	 */
+	private static Method jobPropertySetOwner = null;
+	
+	private static void setPropertyOwner(JobProperty<?> prop, Job<?,?> owner) {
+		try {
+			Method m = jobPropertySetOwner;
+			if (m == null) {
+				m = JobProperty.class.getDeclaredMethod("setOwner", Job.class);
+				m.setAccessible(true);
+				jobPropertySetOwner = m;
+			}
+			m.invoke(prop, owner);
+		} catch (NoSuchMethodException | SecurityException |
+				IllegalAccessException | InvocationTargetException ex) {
+			log.log(Level.WARNING, String.format(
+					"Could not set the owner of %s to %s",
+					prop.getClass().getName(), owner.getFullName()
+			), ex);
+		}
+	}
+	
+	private static boolean updateVersionedValueMap(HashMap<String, Object> vm) {
+		if (vm == null) { return false; }
 		
 		//Check if the logRotator settings were correctly converted to Jenkins 2.x properties
-		for (HashMap<String, Object> vm : vos.getAllValueMaps()) {
-			//Check if the old-style setting is present at all
-			if (!vm.containsKey("logRotator")) { continue; }
-			//A log rotator setting is there, but might be null
-			Object logRotator = vm.get("logRotator");
-			if (!(logRotator instanceof BuildDiscarder)) {
-				//It was null or invalid -- hence just drop it
-				vm.remove("logRotator");
-				wasModified = true;
-				continue;
+		//Check if the old-style setting is present at all
+		if (!vm.containsKey("logRotator")) { return false; }
+		//A log rotator setting is there, but might be null
+		Object logRotator = vm.get("logRotator");
+		if (!(logRotator instanceof BuildDiscarder)) {
+			//It was null or invalid -- hence just drop it
+			vm.remove("logRotator");
+			return true;
+		}
+		//There is an old-style setting -- making sure that it has been converted
+		Object pObj = vm.get("properties");
+		if (!(pObj instanceof List)) {
+			//Creating a new properties list is needed
+			LinkedList<JobProperty<? super InheritanceProject>> pLst =
+					new LinkedList<>();
+			pLst.add(new BuildDiscarderProperty((BuildDiscarder)logRotator));
+			vm.put("properties", pLst);
+		} else {
+			List<JobProperty<? super InheritanceProject>> pLst =
+					(List) pObj;
+			boolean hasDiscarder = false;
+			for (JobProperty<? super InheritanceProject> p : pLst) {
+				if (p instanceof BuildDiscarderProperty) {
+					hasDiscarder = true;
+					break;
+				}
 			}
-			//There is an old-style setting -- making sure that it has been converted
-			Object pObj = vm.get("properties");
-			if (!(pObj instanceof List)) {
-				//Creating a new properties list is needed
-				LinkedList<JobProperty<? super InheritanceProject>> pLst =
-						new LinkedList<>();
+			if (!hasDiscarder) {
 				pLst.add(new BuildDiscarderProperty((BuildDiscarder)logRotator));
-			} else {
-				List<JobProperty<? super InheritanceProject>> pLst =
-						(List) pObj;
-				boolean hasDiscarder = false;
-				for (JobProperty<? super InheritanceProject> p : pLst) {
-					if (p instanceof BuildDiscarderProperty) {
-						hasDiscarder = true;
-						break;
-					}
-				}
-				if (!hasDiscarder) {
-					pLst.add(new BuildDiscarderProperty((BuildDiscarder)logRotator));
-				}
 			}
-			//In any case, the old log rotator setting has to be dropped
-			vm.remove("logRotator");
-			wasModified = true;
 		}
-		return wasModified;
+		//In any case, the old log rotator setting has to be dropped
+		vm.remove("logRotator");
+		return true;
 	}
 	
 	
@@ -2783,6 +3168,32 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 		predefs.putAll(VersionHandler.getVersions());
 		
 		//For each parent, use either the value from the predefs, or their default if missing
+		for (InheritanceProject ip : getInheritedVersionScope(root)) {
+			InheritedVersionInfo ivf =
+					InheritedVersionInfo.getVersionFrom(ip, predefs);
+			//Ignore projects with no version
+			//Note: Some UI pages will also hide jobs with only 1 version
+			if (ivf != null && ivf.version != null) {
+				out.add(ivf);
+			}
+		}
+		
+		return out;
+	}
+	
+	/**
+	 * Returns all projects that carry a version relevant for builds of the
+	 * given project, in the order used by
+	 * {@link #getAllInheritedVersionsList(InheritanceProject, InheritanceBuild)}.
+	 * <p>
+	 * These are the project itself, its parents and the projects referenced
+	 * by the wrappers, builders and publishers of any of them.
+	 * 
+	 * @param root the project for which to fetch the scope
+	 * @return the projects, without duplicates
+	 */
+	private static List<InheritanceProject> getInheritedVersionScope(InheritanceProject root) {
+		List<InheritanceProject> out = new LinkedList<InheritanceProject>();
 		
 		//Loop over all jobs in the scope, until all have been seen
 		Set<String> seen = new HashSet<String>();
@@ -2796,17 +3207,11 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 			}
 			seen.add(ap.getFullName());
 			
-			//If the project is an inheritance project; add its own version and
-			//look at its parents later
+			//If the project is an inheritance project; add it and look at
+			//its parents later
 			if (ap instanceof InheritanceProject) {
 				InheritanceProject ip = (InheritanceProject) ap;
-				InheritedVersionInfo ivf =
-						InheritedVersionInfo.getVersionFrom(ip, predefs);
-				//Ignore projects with no version
-				//Note: Some UI pages will also hide jobs with only 1 version
-				if (ivf != null && ivf.version != null) {
-					out.add(ivf);
-				}
+				out.add(ip);
 				for (AbstractProjectReference ref : ip.getParentReferences()) {
 					AbstractProject<?, ?> par = ref.getProject();
 					if (par != null) { open.add(par); }
@@ -2880,26 +3285,24 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 	
 	// === INHERITANCE-HELPER METHODS ===
 	
+	/**
+	 * Returns the immediate children of this job, as recorded in the
+	 * {@link InheritanceGraph}.
+	 * <p>
+	 * Do note that a child that references this job multiple times, is also
+	 * returned multiple times.
+	 * 
+	 * @return a list of projects. May be empty, but never null.
+	 */
 	public List<InheritanceProject> getChildrenProjects() {
-		Object obj = onChangeBuffer.get(this, "getChildrenProjects");
-		if (obj != null && obj instanceof LinkedList) {
-			return (LinkedList) obj;
-		}
-		
 		LinkedList<InheritanceProject> lst =
 				new LinkedList<InheritanceProject>();
 		
-		Map<String, InheritanceProject> map = getProjectsMap();
-		for (InheritanceProject p : map.values()) {
-			//Checking if that project inherits from us
-			for (AbstractProjectReference ref : p.getParentReferences()) {
-				if (this.name.equals(ref.getName())) {
-					lst.add(p);
-				}
-			}
+		for (String child : InheritanceGraph.instance.getChildren(this.getFullName())) {
+			InheritanceProject p = InheritanceProject.getProjectByName(child);
+			if (p == null) { continue; }
+			lst.add(p);
 		}
-		
-		onChangeBuffer.set(this, "getChildrenProjects", lst);
 		return lst;
 	}
 	
@@ -3025,6 +3428,19 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 		return nonNull(gov.retrieveFullyDerivedField(this, IMode.LOCAL_ONLY));
 	}
 	
+	/**
+	 * Returns the local parent references stored for the given version;
+	 * regardless of the versions selected by the current thread or request.
+	 * 
+	 * @param versionId the version to read. If null, or if no versions are
+	 * stored, the current references are returned.
+	 * @return the parent references of that version. Never null.
+	 */
+	public List<AbstractProjectReference> getParentReferencesForVersion(Long versionId) {
+		return nonNull(this.getParentReferencesGovernor(SELECTOR.MISC)
+				.getVersionedField(this, versionId));
+	}
+	
 	public List<AbstractProjectReference> getRawParentReferences() {
 		return this.parentReferences;
 	}
@@ -3060,6 +3476,10 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 		List<AbstractProjectReference> lst = this.getAllParentReferences(sortKey);
 		
 		if (addSelf) {
+			//The derived list is buffered and thus shared; so it must be copied
+			lst = (lst == null)
+					? new LinkedList<AbstractProjectReference>()
+					: new LinkedList<AbstractProjectReference>(lst);
 			boolean hasAddedSelf = false;
 			ListIterator<AbstractProjectReference> iter = lst.listIterator();
 			while (iter.hasNext()) {
@@ -3093,11 +3513,9 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 		return this.getCompatibleProjects(SELECTOR.MISC);
 	}
 	
-	public List<AbstractProjectReference> getCompatibleProjects(
-			ProjectReference.PrioComparator.SELECTOR sortKey) {
-		InheritanceGovernor<List<AbstractProjectReference>> gov =
-				new InheritanceGovernor<List<AbstractProjectReference>>(
-						"compatibleProjects", sortKey, this) {
+	private InheritanceGovernor<List<AbstractProjectReference>> getCompatibleProjectsGovernor(ProjectReference.PrioComparator.SELECTOR sortKey) {
+		return new InheritanceGovernor<List<AbstractProjectReference>>(
+				"compatibleProjects", sortKey, this) {
 			@Override
 			protected List<AbstractProjectReference> castToDestinationType(
 					Object o) {
@@ -3110,6 +3528,12 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 				return ip.getRawCompatibleProjects();
 			}
 		};
+	}
+	
+	public List<AbstractProjectReference> getCompatibleProjects(
+			ProjectReference.PrioComparator.SELECTOR sortKey) {
+		InheritanceGovernor<List<AbstractProjectReference>> gov =
+				getCompatibleProjectsGovernor(sortKey);
 		//No sense in returning anything but local compatibles
 		List<AbstractProjectReference> refs = gov.retrieveFullyDerivedField(this, IMode.LOCAL_ONLY);
 		if (refs == null) {
@@ -3118,6 +3542,23 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 		return refs;
 	}
 	
+	/**
+	 * Returns the compatible projects stored for the given version;
+	 * regardless of the versions selected by the current thread or request.
+	 * 
+	 * @param versionId the version to read. If null, or if no versions are
+	 * stored, the current compatible projects are returned.
+	 * @return the compatible projects of that version. Never null.
+	 */
+	public List<AbstractProjectReference> getCompatibleProjectsForVersion(Long versionId) {
+		List<AbstractProjectReference> refs = this.getCompatibleProjectsGovernor(SELECTOR.MISC)
+				.getVersionedField(this, versionId);
+		if (refs == null) {
+			return new LinkedList<AbstractProjectReference>();
+		}
+		return refs;
+	}
+	
 	public List<AbstractProjectReference> getRawCompatibleProjects() {
 		return this.compatibleProjects;
 	}
@@ -3426,6 +3867,13 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 	 */
 	@Override
 	public Map<TriggerDescriptor,Trigger<?>> getTriggers() {
+		//Triggers are checked periodically by a thread outside of any request;
+		//which needs the inherited triggers. Pages need the local ones.
+		if (InheritanceContext.get() == null && Stapler.getCurrentRequest() == null) {
+			try (InheritanceContext ctx = InheritanceContext.enter(InheritanceContext.Mode.INHERIT)) {
+				return this.getTriggers(IMode.AUTO);
+			}
+		}
 		return this.getTriggers(IMode.AUTO);
 	}
 	
@@ -3498,6 +3946,13 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 				return ip.getRawTrigger(fClazz);
 			}
 			
+			@Override
+			protected String getIdentity() {
+				//Each class of trigger is derived separately
+				return super.getIdentity() + '|' +
+						((fClazz != null) ? fClazz.getName() : null);
+			}
+			
 			/*
 			@Override
 			protected T reduceFromFullInheritance(Deque<T> list) {
@@ -3738,15 +4193,44 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 	 */
 	@Override
 	public List<SubTask> getSubTasks() {
-		List<SubTask> r = new ArrayList<SubTask>();
-		r.add(this);
-		for (SubTaskContributor euc : SubTaskContributor.all()) {
-			r.addAll(euc.forProject(this));
+		//Called by the queue; which needs the inherited properties
+		try (InheritanceContext ctx = InheritanceContext.enter(InheritanceContext.Mode.INHERIT)) {
+			List<SubTask> r = new ArrayList<SubTask>();
+			r.add(this);
+			for (SubTaskContributor euc : SubTaskContributor.all()) {
+				r.addAll(euc.forProject(this));
+			}
+			for (JobProperty<?> p : this.getAllProperties()) {
+				r.addAll(p.getSubTasks());
+			}
+			return r;
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * This is called by the queue, which needs the inherited flags that
+	 * block builds.
+	 */
+	@Override
+	public CauseOfBlockage getCauseOfBlockage() {
+		try (InheritanceContext ctx = InheritanceContext.enter(InheritanceContext.Mode.INHERIT)) {
+			return super.getCauseOfBlockage();
 		}
-		for (JobProperty<?> p : this.getAllProperties()) {
-			r.addAll(p.getSubTasks());
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * This is called by the queue, which needs the resources of the inherited
+	 * build steps.
+	 */
+	@Override
+	public ResourceList getResourceList() {
+		try (InheritanceContext ctx = InheritanceContext.enter(InheritanceContext.Mode.INHERIT)) {
+			return super.getResourceList();
 		}
-		return r;
 	}
 	
 	public List<ParameterDefinition> getParameters() {
@@ -4159,7 +4643,10 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 		
 		//Caching the result
 		if (lbl != null) {
-			onChangeBuffer.set(this, "maintenanceAssignedLabel", lbl);
+			onChangeBuffer.set(
+					this, "maintenanceAssignedLabel", lbl,
+					this.getInheritanceScopeNames()
+			);
 		}
 		//The returned label is guaranteed to be fresh
 		return lbl;
@@ -4435,46 +4922,6 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 	
 	// === RELATIONSHIP ACCESS METHODS ===
 	
-	private static class ProjectGraphNode {
-		public HashSet<String> parents = new HashSet<String>();
-		public HashSet<String> mates = new HashSet<String>();
-		public HashSet<String> children = new HashSet<String>();
-	}
-	
-	public static Map<String, ProjectGraphNode> getConnectionGraph() {
-		Object obj = onChangeBuffer.get(null, "getConnectionGraph");
-		if (obj != null && obj instanceof Map) {
-			return (Map) obj;
-		}
-		
-		Map<String, ProjectGraphNode> map =
-				new HashMap<String, ProjectGraphNode>();
-		
-		for (InheritanceProject ip : getProjectsMap().values()) {
-			String currName = ip.getFullName();
-			ProjectGraphNode currNode = (map.containsKey(currName))
-					? map.get(currName)
-					: new ProjectGraphNode();
-			
-			for (AbstractProjectReference apr : ip.getParentReferences()) {
-				String parName = apr.getName();
-				currNode.parents.add(parName);
-				ProjectGraphNode parNode = (map.containsKey(parName))
-						? map.get(parName)
-						: new ProjectGraphNode();
-				parNode.children.add(currName);
-				map.put(parName, parNode);
-			}
-			for (AbstractProjectReference apr : ip.getCompatibleProjects()) {
-				currNode.mates.add(apr.getName());
-			}
-			map.put(currName, currNode);
-		}
-		
-		onChangeBuffer.set(null, "getConnectionGraph", map);
-		return map;
-	}
-
 	public Collection<InheritanceProject> getRelationshipsOfType(Relationship.Type type) {
 		Collection<InheritanceProject> relationshipsOfType = new LinkedList<InheritanceProject>();
 		Map<InheritanceProject, Relationship> relationships = getRelationships();
@@ -4539,104 +4986,30 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 		return tree;
 	}
 	
+	/**
+	 * Returns all projects related to this one; that is all transitive
+	 * parents and children, as well as the directly compatible projects.
+	 * <p>
+	 * The relations are looked up in the {@link InheritanceGraph}.
+	 * 
+	 * @return a map of projects to their relation to this one. Never null.
+	 */
 	public Map<InheritanceProject, Relationship> getRelationships() {
 		Object obj = onInheritChangeBuffer.get(this, "getRelationships");
 		if (obj != null && obj instanceof Map) {
 			return (Map) obj;
 		}
 		
-		//Creating the returned map and pre-filling it with empty lists
 		Map<InheritanceProject, Relationship> map =
-				new HashMap<InheritanceProject, Relationship>();
-		
-		//Preparing the set of projects that were already explored
-		HashSet<String> seenProjects = new HashSet<String>();
-		
-		//Fetching the map of all projects and their connections
-		Map<String, ProjectGraphNode> connGraph = getConnectionGraph();
-		
-		//Fetching the node for the current (this) project
-		ProjectGraphNode node = connGraph.get(this.getFullName());
-		if (node == null) { return map; }
-		
-		//Mates can be filled quite easily
-		for (String mate : node.mates) {
-			InheritanceProject p = InheritanceProject.getProjectByName(mate);
-			ProjectGraphNode mateNode = connGraph.get(mate);
-			boolean isLeaf = (mateNode == null) ? true : mateNode.children.isEmpty();
-			if (p == null) { continue; }
-			//Checking if we've seen this mate already
-			if (!seenProjects.contains(p.getFullName())) {
-				map.put(p, new Relationship(Relationship.Type.MATE, 0, isLeaf));
-				seenProjects.add(p.getFullName());
-			}
-		}
+				InheritanceGraph.instance.getRelationships(this);
 		
-		//Exploring parents
-		int distance = 1;
-		seenProjects.clear();
-		LinkedList<InheritanceProject> cOpen =
-				new LinkedList<InheritanceProject>();
-		LinkedList<InheritanceProject> nOpen =
-				new LinkedList<InheritanceProject>();
-		cOpen.add(this);
-		while (!cOpen.isEmpty()) {
-			InheritanceProject ip = cOpen.pop();
-			if (ip == null || seenProjects.contains(ip.getFullName())) {
-				continue;
-			}
-			seenProjects.add(ip.getFullName());
-			
-			node = connGraph.get(ip.getFullName());
-			if (ip == null || node == null) { continue; }
-			//Adding all parents
-			for (String parent : node.parents) {
-				InheritanceProject par = InheritanceProject.getProjectByName(parent);
-				if (par == null || seenProjects.contains(parent)) {
-					continue;
-				}
-				map.put(par, new Relationship(Relationship.Type.PARENT, distance, false));
-				nOpen.push(par);
-			}
-			if (cOpen.isEmpty() && !nOpen.isEmpty()) {
-				cOpen = nOpen;
-				nOpen = new LinkedList<InheritanceProject>();
-				distance++;
-			}
-		}
-		
-		//Exploring children
-		distance = 1; seenProjects.clear();
-		cOpen.clear(); nOpen.clear();
-		cOpen.add(this);
-		while (!cOpen.isEmpty()) {
-			InheritanceProject ip = cOpen.pop();
-			if (ip == null || seenProjects.contains(ip.getFullName())) {
-				continue;
-			}
-			seenProjects.add(ip.getFullName());
-			
-			node = connGraph.get(ip.getFullName());
-			if (ip == null || node == null) { continue; }
-			//Adding all parents
-			for (String child : node.children) {
-				InheritanceProject cProj = InheritanceProject.getProjectByName(child);
-				if (cProj == null || seenProjects.contains(child)) {
-					continue;
-				}
-				ProjectGraphNode childNode = connGraph.get(child);
-				boolean isLeaf = (childNode == null) ? true : childNode.children.isEmpty();
-				map.put(cProj, new Relationship(Relationship.Type.CHILD, distance, isLeaf));
-				nOpen.push(cProj);
-			}
-			if (cOpen.isEmpty() && !nOpen.isEmpty()) {
-				cOpen = nOpen;
-				nOpen = new LinkedList<InheritanceProject>();
-				distance++;
-			}
+		//The relations change, when any related project changes
+		Set<String> deps = new HashSet<String>();
+		deps.add(this.getFullName());
+		for (InheritanceProject ip : map.keySet()) {
+			deps.add(ip.getFullName());
 		}
-		
-		onInheritChangeBuffer.set(this, "getRelationships", map);
+		onInheritChangeBuffer.set(this, "getRelationships", map, deps);
 		return map;
 	}
 	
@@ -4669,7 +5042,12 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 			lst.add(vec);
 		}
 		
-		onInheritChangeBuffer.set(this, "getRelatedProjects", lst);
+		Set<String> deps = new HashSet<String>();
+		deps.add(this.getFullName());
+		for (InheritanceProject ip : rels.keySet()) {
+			deps.add(ip.getFullName());
+		}
+		onInheritChangeBuffer.set(this, "getRelatedProjects", lst, deps);
 		return lst;
 	}
 	
@@ -4952,29 +5330,35 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 	 * Wrapper for {@link #hasCyclicDependency(String...)} with no new project
 	 * references added on top of the existing ones.
 	 * <p>
-	 * Note, that the result is cached and only refreshed when this job or its
-	 * parents change. This is done, because cycle checks are expensive and
-	 * this method is called often.
+	 * Note, that the result is looked up in the {@link InheritanceGraph},
+	 * which memoizes it until this job or one of its parents change. This is
+	 * done, because cycle checks are expensive and this method is called often.
 	 * <p>
-	 * This means, that the result of this method is <b><i>not</i></b> version
-	 * aware. If you need an uncached and version-aware result, call
-	 * {@link #hasCyclicDependency(boolean, String...)} directly.
+	 * If versions other than the ones recorded in the graph are selected via
+	 * the {@link VersionHandler}, the check is instead done by traversing the
+	 * versioned references; and the result buffered for that selection.
 	 * 
 	 * @return true, if a cycle or diamond was detected.
 	 */
 	public final boolean hasCyclicDependency() {
-		//TODO: Make this method version-aware
+		Map<String, Long> versions = VersionHandler.getVersions();
+		if (InheritanceGraph.instance.matchesVersions(versions)) {
+			return InheritanceGraph.instance.hasCyclicDependency(this.getFullName());
+		}
 		
-		//Checking if a result is buffered
-		Object obj = onInheritChangeBuffer.get(this, "hasCyclicDependency");
+		//Checking if a result is buffered for the selected versions
+		String key = "hasCyclicDependency:" + new TreeMap<String, Long>(versions);
+		Object obj = onInheritChangeBuffer.get(this, key);
 		if (obj != null && obj instanceof Boolean) {
 			return (Boolean) obj;
 		}
 		
 		//Re-compute the result
-		Boolean bufRes = this.hasCyclicDependency(true);
+		Boolean bufRes = this.hasCyclicDependencyByTraversal(true);
 		
-		onInheritChangeBuffer.set(this, "hasCyclicDependency", bufRes);
+		onInheritChangeBuffer.set(
+				this, key, bufRes, this.getInheritanceScopeNames()
+		);
 		return bufRes;
 	}
 	
@@ -4996,6 +5380,9 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 	 * <br>
 	 * See <a href="http://en.wikipedia.org/wiki/Cycle_detection">cycle detection</a> and
 	 * <a href="http://en.wikipedia.org/wiki/Diamond_problem">diamond problem</a>.
+	 * <p>
+	 * The check is answered by the {@link InheritanceGraph}, unless versions
+	 * other than the ones recorded there are selected.
 	 * 
 	 * @param addExisting whether or not to consider existing jobs for cyclicality.
 	 * @param whenTheseProjectsAdded projects about to be added to the dependency graph
@@ -5004,18 +5391,20 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 	 * this project's parents.
 	 */
 	public final boolean hasCyclicDependency(boolean addExisting, String... whenTheseProjectsAdded) {
-		/* TODO: While this method runs reasonably fast, it is run very often
-		 * As such, find a way to buffer the result across all projects and
-		 * only rebuild if necessary.
-		 */
-		
-		/* TODO: Further more, this method is not space-optimal
-		 * See: http://en.wikipedia.org/wiki/Cycle_detection
-		 * But do note that any replacement algorithm also, by contract, needs
-		 * to detect multiple inheritance and its special case of diamond
-		 * inheritance.
-		 */
-		
+		if (InheritanceGraph.instance.matchesVersions(VersionHandler.getVersions())) {
+			return InheritanceGraph.instance.hasCyclicDependency(
+					this.getFullName(), addExisting, whenTheseProjectsAdded
+			);
+		}
+		return this.hasCyclicDependencyByTraversal(addExisting, whenTheseProjectsAdded);
+	}
+	
+	/**
+	 * Same as {@link #hasCyclicDependency(boolean, String...)}, but explores
+	 * the currently selected versions of the parent references directly,
+	 * instead of using the {@link InheritanceGraph}.
+	 */
+	private boolean hasCyclicDependencyByTraversal(boolean addExisting, String... whenTheseProjectsAdded) {
 		//Preparing a Deque, that tracks the parents to be processed
 		Deque<InheritanceProject> open = new LinkedList<>();
 		if (whenTheseProjectsAdded != null) {
@@ -5044,7 +5433,7 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 			//Popping the first element
 			InheritanceProject p = open.pop();
 			//Checking if we've seen that parent already
-			if (closed.contains(p.name)) {
+			if (closed.contains(p.getFullName())) {
 				//Detected a cyclic dependency
 				return true;
 			}
@@ -5055,7 +5444,7 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 					open.push(refP);
 				}
 			}
-			closed.add(p.name);
+			closed.add(p.getFullName());
 		}
 		// If we reach this spot, there is no such dependency
 		return false;
@@ -5077,6 +5466,48 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 	 * representation of the error -- if any.
 	 */
 	public final AbstractMap.SimpleEntry<Boolean, String> getParameterSanity() {
+		/* The verdict only depends on the parameters in the scope and on
+		 * whether this project is abstract. Thus, it is stored in the scope
+		 * table, which is buffered until a project in the scope changes.
+		 */
+		ScopeTable table = ParameterSelector.instance.getScopeTable(this);
+		String key = (this.isAbstract) ? "sanity|abstract" : "sanity";
+		sanityLookups.incrementAndGet();
+		
+		Object obj = table.getVerdict(key);
+		if (!(obj instanceof AbstractMap.SimpleImmutableEntry)) {
+			sanityComputations.incrementAndGet();
+			obj = new AbstractMap.SimpleImmutableEntry<Boolean, String>(
+					this.computeParameterSanity(table.getAll())
+			);
+			table.setVerdict(key, obj);
+		}
+		//Handing out a copy, as the returned type is mutable
+		@SuppressWarnings("unchecked")
+		Map.Entry<Boolean, String> verdict = (Map.Entry<Boolean, String>) obj;
+		return new AbstractMap.SimpleEntry<Boolean, String>(verdict);
+	}
+	
+	/**
+	 * @return the number of calls to {@link #getParameterSanity()} and how
+	 * often the verdict had to be computed for them.
+	 */
+	public static String getParameterSanityStatistics() {
+		return String.format(
+				"lookups=%d, computations=%d",
+				sanityLookups.get(), sanityComputations.get()
+		);
+	}
+	
+	/**
+	 * Computes the verdict of {@link #getParameterSanity()}.
+	 * 
+	 * @param fullScope all parameters in the scope, in order of derivation
+	 * @return a tuple of whether the assignment is sane and a human-readable
+	 * representation of the error -- if any.
+	 */
+	private AbstractMap.SimpleEntry<Boolean, String> computeParameterSanity(
+			List<ScopeEntry> fullScope) {
 		//Creating a small local class to store sanity information
 		final class SanityRestrictions {
 			public Class<?> hasToBeOfThisClass;
@@ -5092,9 +5523,6 @@ public class InheritanceProject extends Project<InheritanceProject, InheritanceB
 		HashMap<String, SanityRestrictions> resMap =
 				new HashMap<String, SanityRestrictions>();
 		
-		//Fetch all parameters in the scope
-		List<ScopeEntry> fullScope = this.getFullParameterScope();
-		
 		//Iterating through the parameters, and verifying their restrictions on-the-fly
 		for (ScopeEntry scope : fullScope) {
 			ParameterDefinition pd = scope.param;
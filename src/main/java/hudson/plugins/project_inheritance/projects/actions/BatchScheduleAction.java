@@ -0,0 +1,152 @@
+/**
+ * Copyright (c) 2019 Intel Corporation
+ * Copyright (c) 2015-2017 Intel Deutschland GmbH
+ * Copyright (c) 2011-2015 Intel Mobile Communications GmbH
+ *
+ * This file is part of the Inheritance plug-in for Jenkins.
+ *
+ * The Inheritance plug-in is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation in version 3
+ * of the License
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.project_inheritance.projects.actions;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import javax.servlet.ServletException;
+
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+
+import hudson.Extension;
+import hudson.model.Action;
+import hudson.model.Cause;
+import hudson.model.Item;
+import hudson.model.RootAction;
+import hudson.plugins.project_inheritance.projects.InheritanceProject;
+import hudson.plugins.project_inheritance.projects.InheritanceProject.BatchResult;
+import hudson.plugins.project_inheritance.projects.versioning.VersionVector;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+
+/**
+ * Invisible root action, that offers the REST entry point to
+ * {@link InheritanceProject#scheduleBuilds(java.util.Collection, int, Cause, java.util.Collection)}.
+ *
+ * <p>A POST to <code>/inheritance-batch/schedule</code> with one
+ * <code>job</code> parameter per full job name schedules all of them; with
+ * the optional <code>delay</code> in seconds and <code>versions</code> in the
+ * form <code>proj=ver;proj=ver</code> applying to all builds. The response
+ * is a JSON array with one object per job, in the order requested, holding
+ * its name, the status and, if scheduled, the id of the queue item.</p>
+ */
+@Extension
+public final class BatchScheduleAction implements RootAction {
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String getIconFileName() {
+		return null;
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String getDisplayName() {
+		return null;
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String getUrlName() {
+		return "inheritance-batch";
+	}
+
+
+	@RequirePOST
+	public void doSchedule(
+			StaplerRequest req, StaplerResponse rsp,
+			@QueryParameter("delay") Integer delay,
+			@QueryParameter("versions") String versions)
+			throws IOException, ServletException {
+		Jenkins.get().checkPermission(Jenkins.READ);
+
+		String[] names = req.getParameterValues("job");
+		if (names == null) { names = new String[0]; }
+
+		//Resolving the jobs; keeping the ones that can't be built as errors
+		String[] errors = new String[names.length];
+		List<InheritanceProject> projects = new LinkedList<InheritanceProject>();
+		for (int i = 0; i < names.length; i++) {
+			InheritanceProject ip = Jenkins.get().getItemByFullName(
+					names[i], InheritanceProject.class
+			);
+			if (ip == null) {
+				errors[i] = "NOT_FOUND";
+			} else if (!ip.hasPermission(Item.BUILD)) {
+				errors[i] = "NO_PERMISSION";
+			} else {
+				projects.add(ip);
+			}
+		}
+
+		List<Action> actions = (versions == null || versions.isEmpty())
+				? Collections.<Action>emptyList()
+				: Collections.<Action>singletonList(
+						new VersioningAction(VersionVector.decode(versions))
+				);
+
+		List<BatchResult> results = InheritanceProject.scheduleBuilds(
+				projects,
+				(delay == null) ? -1 : delay,
+				new Cause.RemoteCause(req.getRemoteAddr(), "batch scheduling"),
+				actions
+		);
+
+		//Reporting in the order of the request; the results follow that, too
+		JSONArray out = new JSONArray();
+		Iterator<BatchResult> resIter = results.iterator();
+		for (int i = 0; i < names.length; i++) {
+			JSONObject obj = new JSONObject();
+			if (errors[i] != null) {
+				obj.put("job", names[i]);
+				obj.put("status", errors[i]);
+			} else {
+				BatchResult res = resIter.next();
+				obj.put("job", res.project.getFullName());
+				obj.put("status", res.status.name());
+				if (res.item != null) {
+					obj.put("queueId", res.item.getId());
+				}
+			}
+			out.add(obj);
+		}
+
+		rsp.setContentType("application/json;charset=UTF-8");
+		rsp.getWriter().print(out.toString());
+	}
+}
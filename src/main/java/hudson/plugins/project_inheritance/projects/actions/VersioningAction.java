@@ -23,20 +23,36 @@ package hudson.plugins.project_inheritance.projects.actions;
 import hudson.model.Action;
 import hudson.model.AbstractProject;
 import hudson.plugins.project_inheritance.projects.versioning.VersionHandler;
+import hudson.plugins.project_inheritance.projects.versioning.VersionVector;
 
 import java.util.Map;
 
 public class VersioningAction implements Action {
+	/**
+	 * The versions; always stored as an immutable {@link VersionVector}.
+	 */
 	public final Map<String, Long> versionMap;
 	
 	public VersioningAction(Map<String, Long> versionMap) {
-		this.versionMap = versionMap;
+		this.versionMap = VersionVector.of(versionMap);
 	}
 	
 	public VersioningAction(AbstractProject<?, ?> root) {
 		this(VersionHandler.getFromProject(root));
 	}
 	
+	/**
+	 * Converts the plain maps of old build records into a {@link VersionVector}.
+	 *
+	 * @return this, or a converted copy of this action
+	 */
+	protected Object readResolve() {
+		if (versionMap instanceof VersionVector) {
+			return this;
+		}
+		return new VersioningAction(versionMap);
+	}
+	
 	public String getIconFileName() {
 		// This kind of action is not visible
 		return null;
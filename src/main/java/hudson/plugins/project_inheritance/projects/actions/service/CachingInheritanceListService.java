@@ -20,22 +20,39 @@
  */
 package hudson.plugins.project_inheritance.projects.actions.service;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import hudson.plugins.project_inheritance.projects.InheritanceProject;
 import hudson.plugins.project_inheritance.projects.actions.service.InheritanceListService;
+import hudson.plugins.project_inheritance.projects.versioning.VersionHandler;
+import hudson.plugins.project_inheritance.util.DependencyBuffer;
 
 
 /**
  * Concrete implementation of <code>InheritanceListService</code> that
  * obtains inheritance data from the job itself.
  * 
- * <p>NOTE: This class will evolve to also generate inheritance
- * diagrams for a given job. At that poing the "Caching" part of this
- * class name will begun to be real.
+ * <p>The sorted lists of parents and children are computed once per job and
+ * kept as immutable lists until they are invalidated. The lists of parents
+ * are kept per selected version of the job, as each version may have other
+ * parents. Each list records the names of the job itself and of all jobs in
+ * it; so that a change to any of them evicts it via
+ * {@link #invalidate(String, Iterable)}. That method is called by
+ * {@link InheritanceProject#clearBuffers(InheritanceProject)} whenever the
+ * references of a job change, and when a job is renamed or deleted.</p>
+ * 
+ * <p>The number and duration of all calls, split into cached and computed
+ * ones, is available from {@link #getStatistics()}.</p>
  */
 public final class CachingInheritanceListService
 		implements InheritanceListService {
@@ -59,6 +76,17 @@ public final class CachingInheritanceListService
 				}
 			};
 	
+	/**
+	 * The sorted lists, keyed by "parents|name|version" or "children|name".
+	 */
+	private static final DependencyBuffer<Object, String> lists =
+			new DependencyBuffer<Object, String>(-1, 10000);
+	
+	private static final AtomicLong hitCalls = new AtomicLong();
+	private static final AtomicLong hitNanos = new AtomicLong();
+	private static final AtomicLong missCalls = new AtomicLong();
+	private static final AtomicLong missNanos = new AtomicLong();
+	
 
 	public CachingInheritanceListService() {
         log.info(String.format(
@@ -71,24 +99,7 @@ public final class CachingInheritanceListService
 	 * {@inheritDoc}
 	 */
 	public List<InheritanceProject> getParentJobs(InheritanceProject myJob) {
-
-		long startTime = System.currentTimeMillis();
-
-		List<InheritanceProject> result = myJob.getParentProjects();
-		Collections.sort(result, JOB_COMPARATOR);
-
-		long delay = System.currentTimeMillis() - startTime;
-		log.fine(String.format(
-				"Job '%s' inherits from %d other jobs (%d ms):",
-				myJob.getFullName(),
-				result.size(),
-				delay
-		));
-		for ( InheritanceProject job : result ) {
-			log.fine(String.format("\t%s", job.getFullName()));
-		}
-
-		return result;
+		return this.getList(myJob, true);
 	}
 
 
@@ -96,23 +107,98 @@ public final class CachingInheritanceListService
 	 * {@inheritDoc}
 	 */
 	public List<InheritanceProject> getChildJobs(InheritanceProject myJob) {
+		return this.getList(myJob, false);
+	}
+
 
-		long startTime = System.currentTimeMillis();
+	@SuppressWarnings("unchecked")
+	private List<InheritanceProject> getList(InheritanceProject myJob, boolean parents) {
+		long startTime = System.nanoTime();
+		String name = myJob.getFullName();
+		//The parents are read from the version of the job that is selected;
+		//either explicitly for the current request or thread, or by default
+		String key = (parents)
+				? "parents|" + name + "|" + VersionHandler.getVersion(myJob)
+				: "children|" + name;
+
+		Entry<Object, Long> cached = lists.getWithTimestamp(null, key);
+		if (cached != null) {
+			recordTime(startTime, hitCalls, hitNanos);
+			return (List<InheritanceProject>) cached.getKey();
+		}
 
-		List<InheritanceProject> result = myJob.getChildrenProjects();
+		List<InheritanceProject> result = new ArrayList<InheritanceProject>(
+				(parents) ? myJob.getParentProjects() : myJob.getChildrenProjects()
+		);
 		Collections.sort(result, JOB_COMPARATOR);
+		result = Collections.unmodifiableList(result);
 
-		long delay = System.currentTimeMillis() - startTime;
-		log.fine(String.format(
-				"Job '%s' is inherited by %d other jobs (%d ms):",
-				myJob.getFullName(),
-				result.size(),
-				delay
-		));
-		for ( InheritanceProject job : result ) {
-			log.fine(String.format("\t%s", job.getFullName()));
+		Set<String> deps = new HashSet<String>();
+		deps.add(name);
+		for (InheritanceProject job : result) {
+			deps.add(job.getFullName());
+		}
+		lists.set(null, key, result, deps);
+
+		long delay = recordTime(startTime, missCalls, missNanos);
+		if (log.isLoggable(Level.FINE)) {
+			log.fine(String.format(
+					(parents)
+							? "Job '%s' inherits from %d other jobs (%d ms):"
+							: "Job '%s' is inherited by %d other jobs (%d ms):",
+					name,
+					result.size(),
+					TimeUnit.NANOSECONDS.toMillis(delay)
+			));
+			for ( InheritanceProject job : result ) {
+				log.fine(String.format("\t%s", job.getFullName()));
+			}
 		}
-
 		return result;
 	}
+
+	private static long recordTime(long startTime, AtomicLong calls, AtomicLong nanos) {
+		long delay = System.nanoTime() - startTime;
+		calls.incrementAndGet();
+		nanos.addAndGet(delay);
+		return delay;
+	}
+
+
+	/**
+	 * Evicts the lists of the given job and all lists that contain it.
+	 * 
+	 * @param name the full name of the job whose references changed, or
+	 * which was renamed or deleted. If null, all lists are dropped.
+	 * @param relatives the full names of further jobs whose lists are to be
+	 * evicted; usually the current parents of the job, which might have
+	 * just gained it as a child. May be null.
+	 */
+	public static void invalidate(String name, Iterable<String> relatives) {
+		if (name == null) {
+			lists.clearAll();
+			return;
+		}
+		lists.invalidate(name);
+		if (relatives == null) { return; }
+		for (String rel : relatives) {
+			lists.invalidate(rel);
+		}
+	}
+
+	/**
+	 * @return the number of calls and their average duration; split into the
+	 * ones served from the cache and the ones that computed their list. Also
+	 * includes the counters of the underlying buffer.
+	 */
+	public static String getStatistics() {
+		long hc = hitCalls.get();
+		long mc = missCalls.get();
+		return String.format(
+				"cached=%d (avg %d ns), computed=%d (avg %d ns), %s",
+				hc, (hc > 0) ? hitNanos.get() / hc : 0,
+				mc, (mc > 0) ? missNanos.get() / mc : 0,
+				lists.toString()
+		);
+	}
 }
@@ -76,6 +76,7 @@ import hudson.model.TopLevelItem;
 import hudson.model.Descriptor.FormException;
 import hudson.model.listeners.ItemListener;
 import hudson.plugins.project_inheritance.projects.InheritanceProject;
+import hudson.plugins.project_inheritance.projects.inheritance.InheritanceContext;
 import hudson.plugins.project_inheritance.projects.references.AbstractProjectReference;
 import hudson.plugins.project_inheritance.projects.references.ParameterizedProjectReference;
 import hudson.plugins.project_inheritance.projects.references.ProjectReference;
@@ -334,6 +335,12 @@ public class ProjectCreationEngine extends ManagementLink implements Saveable, D
 	
 	protected boolean disallowVanillaArchiver = false;
 	
+	/**
+	 * If set, the call stack is no longer examined to decide whether fields
+	 * need to be inherited, when no {@link InheritanceContext} was set.
+	 */
+	protected boolean disableStackReflection = false;
+	
 	protected boolean enableCreation = false;
 	protected boolean triggerOnChange = true;
 	protected boolean triggerOnStartup = true;
@@ -468,6 +475,12 @@ public class ProjectCreationEngine extends ManagementLink implements Saveable, D
 				this.disallowVanillaArchiver = false;
 			}
 			
+			try {
+				this.disableStackReflection = json.getBoolean("disableStackReflection");
+			} catch (JSONException ex) {
+				this.disableStackReflection = false;
+			}
+			
 			try {
 				this.enableCreation = json.getBoolean("enableCreation");
 			} catch (JSONException ex) {
@@ -1078,6 +1091,15 @@ public class ProjectCreationEngine extends ManagementLink implements Saveable, D
 		return disallowVanillaArchiver;
 	}
 	
+	/**
+	 * @return whether the expensive examination of the call stack is disabled,
+	 * that is used as a fallback to detect the need for inheritance when no
+	 * {@link InheritanceContext} was set.
+	 */
+	public boolean getDisableStackReflection() {
+		return disableStackReflection;
+	}
+	
 	/**
 	 * Returns the list of error URLs that are safe to ignore when checking the
 	 * validation fields of the job configuration files.
@@ -0,0 +1,172 @@
+/**
+ * Copyright (c) 2019 Intel Corporation
+ * Copyright (c) 2015-2017 Intel Deutschland GmbH
+ * Copyright (c) 2011-2015 Intel Mobile Communications GmbH
+ *
+ * This file is part of the Inheritance plug-in for Jenkins.
+ *
+ * The Inheritance plug-in is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation in version 3
+ * of the License
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.project_inheritance.projects.inheritance;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.plugins.project_inheritance.projects.InheritanceProject;
+
+/**
+ * The fully derived fields of a project, as resolved once for a single
+ * build.
+ * <p>
+ * When a build starts, {@link #capture(InheritanceProject)} derives all
+ * fields that the build will read from its project and activates the
+ * snapshot for the current thread. While it is active,
+ * {@link InheritanceGovernor#retrieveFullyDerivedField(InheritanceProject, InheritanceProject.IMode)}
+ * serves those fields from the snapshot; instead of deriving them again
+ * against the live projects. Thus, the build sees the same configuration
+ * from start to end, even if a project is reconfigured meanwhile.
+ * <p>
+ * Fields that were not captured up-front are derived on their first use and
+ * then kept as well. A field, once it is in the snapshot, never changes.
+ */
+public final class DerivedConfigSnapshot {
+	private static final Logger log = Logger.getLogger(
+			DerivedConfigSnapshot.class.toString()
+	);
+
+	private static final ThreadLocal<DerivedConfigSnapshot> current =
+			new ThreadLocal<DerivedConfigSnapshot>();
+
+	/**
+	 * Stands in for fields that were derived as null, which the map can't hold.
+	 */
+	private static final Object NULL = new Object();
+
+	private final InheritanceProject project;
+	private final Map<String, Object> fields =
+			new ConcurrentHashMap<String, Object>();
+
+
+	private DerivedConfigSnapshot(InheritanceProject project) {
+		this.project = project;
+	}
+
+	/**
+	 * Creates the snapshot for the given project and activates it for the
+	 * current thread.
+	 * <p>
+	 * This must be called with the versions of the build already selected
+	 * and within an {@link InheritanceContext} of mode
+	 * {@link InheritanceContext.Mode#INHERIT}.
+	 *
+	 * @param project the project being built
+	 * @return the scope of the snapshot, which must be closed in the same
+	 * thread.
+	 */
+	public static Scope capture(InheritanceProject project) {
+		DerivedConfigSnapshot snap = new DerivedConfigSnapshot(project);
+		Scope scope = new Scope(snap);
+		try {
+			//The fields that are read while preparing and running the build
+			project.getBuildersList();
+			project.getBuildWrappersList();
+			project.getPublishersList();
+			project.getAllProperties();
+			project.getScm();
+			project.getScmCheckoutStrategy();
+			project.getScmCheckoutRetryCount();
+			project.getQuietPeriod();
+			project.getAssignedLabel();
+			project.getCustomWorkspace();
+			project.getParameterizedWorkspace();
+		} catch (RuntimeException ex) {
+			//The build will derive the field again and fail in its own way
+			log.log(Level.WARNING, "Could not derive the fields of " + project.getFullName(), ex);
+		}
+		return scope;
+	}
+
+	/**
+	 * @param root the project whose fields are requested
+	 * @return the snapshot active in the current thread, if it was taken for
+	 * the given project. Null otherwise.
+	 */
+	static DerivedConfigSnapshot getFor(InheritanceProject root) {
+		DerivedConfigSnapshot snap = current.get();
+		if (snap == null || snap.project != root) { return null; }
+		return snap;
+	}
+
+	/**
+	 * @return the snapshot active in the current thread, or null.
+	 */
+	public static DerivedConfigSnapshot get() {
+		return current.get();
+	}
+
+	public InheritanceProject getProject() {
+		return this.project;
+	}
+
+	boolean contains(String key) {
+		return this.fields.containsKey(key);
+	}
+
+	Object get(String key) {
+		Object obj = this.fields.get(key);
+		return (obj == NULL) ? null : obj;
+	}
+
+	/**
+	 * Adds the given field to the snapshot, unless it is already present.
+	 *
+	 * @return the value stored in the snapshot for the key afterwards.
+	 */
+	Object put(String key, Object value) {
+		Object prev = this.fields.putIfAbsent(key, (value == null) ? NULL : value);
+		if (prev == null) { return value; }
+		return (prev == NULL) ? null : prev;
+	}
+
+
+	/**
+	 * The activation of a snapshot for the current thread. Closing it
+	 * restores the snapshot that was active before.
+	 */
+	public static final class Scope implements AutoCloseable {
+		private final DerivedConfigSnapshot snapshot;
+		private final DerivedConfigSnapshot previous;
+
+		private Scope(DerivedConfigSnapshot snapshot) {
+			this.snapshot = snapshot;
+			this.previous = current.get();
+			current.set(snapshot);
+		}
+
+		public DerivedConfigSnapshot getSnapshot() {
+			return this.snapshot;
+		}
+
+		@Override
+		public void close() {
+			if (this.previous == null) {
+				current.remove();
+			} else {
+				current.set(this.previous);
+			}
+		}
+	}
+}
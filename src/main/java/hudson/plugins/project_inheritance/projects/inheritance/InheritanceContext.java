@@ -0,0 +1,91 @@
+/**
+ * Copyright (c) 2019 Intel Corporation
+ * Copyright (c) 2015-2017 Intel Deutschland GmbH
+ * Copyright (c) 2011-2015 Intel Mobile Communications GmbH
+ *
+ * This file is part of the Inheritance plug-in for Jenkins.
+ *
+ * The Inheritance plug-in is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation in version 3
+ * of the License
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.project_inheritance.projects.inheritance;
+
+/**
+ * This class marks a section of code running in the current thread as
+ * needing a particular kind of field lookup from {@link InheritanceGovernor}.
+ * <p>
+ * The entry points that know what they need -- scheduling and running
+ * builds, the queue and the configuration submission -- open a context via
+ * {@link #enter(Mode)} in a try-with-resources block. The governor then only
+ * needs to read a thread-local, instead of examining the call stack.
+ * <p>
+ * Contexts can be nested; closing a context restores the previous one.
+ *
+ * @see InheritanceGovernor#inheritanceLookupRequired(hudson.plugins.project_inheritance.projects.InheritanceProject)
+ */
+public final class InheritanceContext implements AutoCloseable {
+
+	public enum Mode {
+		/**
+		 * Fields must be resolved through inheritance and versioning; for
+		 * example when a build is scheduled or run.
+		 */
+		INHERIT,
+		/**
+		 * The raw, local fields must be returned without inheritance or
+		 * versioning; for example when Jenkins applies a configuration form.
+		 */
+		RAW;
+	}
+
+	private static final ThreadLocal<Mode> current = new ThreadLocal<Mode>();
+
+	private final Mode previous;
+
+
+	private InheritanceContext(Mode previous) {
+		this.previous = previous;
+	}
+
+	/**
+	 * Opens a new context with the given mode for the current thread.
+	 *
+	 * @param mode the mode to apply until the returned context is closed
+	 * @return the context, which must be closed in the same thread.
+	 */
+	public static InheritanceContext enter(Mode mode) {
+		InheritanceContext ctx = new InheritanceContext(current.get());
+		current.set(mode);
+		return ctx;
+	}
+
+	/**
+	 * @return the mode of the innermost open context in the current thread,
+	 * or null if no context is open.
+	 */
+	public static Mode get() {
+		return current.get();
+	}
+
+	/**
+	 * Restores the context that was active before this one was entered.
+	 */
+	@Override
+	public void close() {
+		if (previous == null) {
+			current.remove();
+		} else {
+			current.set(previous);
+		}
+	}
+}
@@ -30,10 +30,12 @@ import hudson.model.Descriptor;
 import hudson.model.Project;
 import hudson.plugins.project_inheritance.projects.InheritanceProject;
 import hudson.plugins.project_inheritance.projects.InheritanceProject.IMode;
+import hudson.plugins.project_inheritance.projects.creation.ProjectCreationEngine;
 import hudson.plugins.project_inheritance.projects.references.AbstractProjectReference;
 import hudson.plugins.project_inheritance.projects.references.ProjectReference.PrioComparator;
 import hudson.plugins.project_inheritance.projects.references.ProjectReference.PrioComparator.SELECTOR;
 import hudson.plugins.project_inheritance.projects.versioning.VersionHandler;
+import hudson.plugins.project_inheritance.util.DependencyBuffer;
 import hudson.plugins.project_inheritance.util.Reflection;
 import hudson.scm.SCM;
 import hudson.tasks.BuildStep;
@@ -43,14 +45,19 @@ import hudson.util.DescribableList;
 import jenkins.model.ParameterizedJobMixIn;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Deque;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.regex.Pattern;
 
 import org.kohsuke.stapler.Stapler;
@@ -81,6 +88,22 @@ public abstract class InheritanceGovernor<T> {
 		public void save() throws IOException {}
 	};
 	
+	/**
+	 * Buffers the fully derived fields of projects, keyed by the field, the
+	 * selector and the versions of all projects in the scope of the
+	 * derivation. Each value records the names of the projects in that scope
+	 * as its dependencies; see {@link #invalidateDerivedFields(String)}.
+	 */
+	private static final DependencyBuffer<InheritanceProject, String> derivedFieldBuffer =
+			new DependencyBuffer<InheritanceProject, String>(-1, 50000);
+	
+	/**
+	 * Buffers the ordered scope of projects, keyed by the selector and the
+	 * selected versions; see {@link #getFullScope(InheritanceProject, SELECTOR, Map)}.
+	 */
+	private static final DependencyBuffer<InheritanceProject, String> scopeBuffer =
+			new DependencyBuffer<InheritanceProject, String>(-1, 50000);
+	
 	
 	
 	public InheritanceGovernor(String field, SELECTOR order, InheritanceProject caller) {
@@ -104,6 +127,55 @@ public abstract class InheritanceGovernor<T> {
 	
 	public abstract T getRawField(InheritanceProject ip);
 	
+	/**
+	 * Identifies what this governor derives; beyond its field, selector and
+	 * caller. Derived values are buffered under this identity, so two
+	 * governors must only share it if they derive the very same value.
+	 * <p>
+	 * The default is the name of the class of this governor. Governors whose
+	 * result depends on any other argument, for example a class to select,
+	 * must add that argument.
+	 * 
+	 * @return the identity of this governor. Never null.
+	 */
+	protected String getIdentity() {
+		return this.getClass().getName();
+	}
+	
+	/**
+	 * @return the key under which the derived value of this governor is
+	 * buffered; lacking the versions of its scope.
+	 */
+	private String getBufferKey() {
+		return fieldName + '|' + orderMode +
+				'|' + ((caller != null) ? caller.getFullName() : null) +
+				'|' + this.getIdentity();
+	}
+	
+	/**
+	 * Returns a copy of a derived value that is buffered and thus shared with
+	 * other callers; so that the caller may change it, just like a freshly
+	 * reduced value.
+	 * <p>
+	 * Lists and other collections are copied shallowly; all other values
+	 * are returned as they are.
+	 * 
+	 * @param value the buffered value. May be null.
+	 * @return a copy of the value, if it is a collection.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	protected T copyDerivedValue(T value) {
+		if (value instanceof DescribableList) {
+			return (T) new DescribableList(NOOP, ((DescribableList) value).toList());
+		} else if (value instanceof List) {
+			return (T) new LinkedList((List) value);
+		} else if (value instanceof Set) {
+			return (T) new LinkedHashSet((Set) value);
+		} else if (value instanceof Collection) {
+			return (T) new LinkedList((Collection) value);
+		}
+		return value;
+	}
 	
 	private final T noCopyCast(Object o) {
 		T cast = castToDestinationType(o);
@@ -187,38 +259,120 @@ public abstract class InheritanceGovernor<T> {
 			);
 		}
 		
+		//A running build derives each field only once; see DerivedConfigSnapshot
+		DerivedConfigSnapshot snap = DerivedConfigSnapshot.getFor(root);
+		if (snap == null) {
+			return this.copyDerivedValue(this.retrieveInheritedField(root));
+		}
+		String snapKey = this.getBufferKey();
+		if (!snap.contains(snapKey)) {
+			snap.put(snapKey, this.retrieveInheritedField(root));
+		}
+		Object obj = snap.get(snapKey);
+		return (obj == null) ? null : this.copyDerivedValue(this.noCopyCast(obj));
+	}
+	
+	/**
+	 * Derives the field from the full, versioned scope of the given project;
+	 * or returns it from the buffer of derived fields.
+	 * <p>
+	 * The returned value is shared with all other callers and must not be
+	 * changed; see {@link #copyDerivedValue(Object)}.
+	 */
+	private T retrieveInheritedField(InheritanceProject root) {
 		//Retrieving the full scope of all parents and ourselves in order
-		List<InheritanceProject> scope =
-				getFullScopeOrdered(root, new HashSet<String>());
-		LinkedList<T> allFields = new LinkedList<T>();
+		Map<String, Long> vMap = VersionHandler.getVersions();
+		InheritanceProject[] scope = getFullScope(root, orderMode, vMap);
 		
-		for (InheritanceProject ip : scope) {
-			//Fetch the version desired for this project
-			Long version = VersionHandler.getVersion(ip);
-			//Fetch the field for that tuple
-			T field = this.getVersionedField(ip, version);
+		//Resolve the versions of the scope; they are part of the buffer key
+		Long[] versions = new Long[scope.length];
+		List<String> deps = new ArrayList<String>(scope.length);
+		StringBuilder key = new StringBuilder(this.getBufferKey());
+		for (int i = 0; i < scope.length; i++) {
+			String name = scope[i].getFullName();
+			Long v = vMap.get(name);
+			versions[i] = (v != null) ? v : scope[i].getStableVersion();
+			deps.add(name);
+			key.append('|').append(name).append('@').append(versions[i]);
+		}
+		String bufKey = key.toString();
+		
+		Entry<Object, Long> cached = derivedFieldBuffer.getWithTimestamp(root, bufKey);
+		if (cached != null) {
+			Object obj = cached.getKey();
+			return (obj == null) ? null : this.noCopyCast(obj);
+		}
+		
+		LinkedList<T> allFields = new LinkedList<T>();
+		for (int i = 0; i < scope.length; i++) {
+			//Fetch the field for the version desired for this project
+			T field = this.getVersionedField(scope[i], versions[i]);
 			if (field != null) {
 				allFields.add(field);
 			}
 		}
 		
 		//Now, at the end, reduce the list to a single element
-		return reduceFromFullInheritance(allFields);
+		T result = reduceFromFullInheritance(allFields);
+		derivedFieldBuffer.set(root, bufKey, result, deps);
+		return result;
+	}
+	
+	/**
+	 * Evicts all buffered values of {@link #retrieveFullyDerivedField(InheritanceProject, IMode)}
+	 * and all buffered scopes that were derived from the project with the
+	 * given name.
+	 * 
+	 * @param name the full name of the project that changed. If null, the
+	 * whole buffers are cleared.
+	 */
+	public static void invalidateDerivedFields(String name) {
+		if (name == null) {
+			derivedFieldBuffer.clearAll();
+			scopeBuffer.clearAll();
+		} else {
+			derivedFieldBuffer.invalidate(name);
+			scopeBuffer.invalidate(name);
+		}
 	}
 	
-	private final List<InheritanceProject> getFullScopeOrdered(
-			InheritanceProject root, Set<String> seen) {
-		return getFullScopeOrdered(root, orderMode, seen);
+	/**
+	 * Evicts all buffered derived fields and scopes of the given project
+	 * object; for example when that object is only a temporary copy.
+	 * 
+	 * @param root the project whose derived fields to drop.
+	 */
+	public static void clearDerivedFields(InheritanceProject root) {
+		derivedFieldBuffer.clear(root);
+		scopeBuffer.clear(root);
+	}
+	
+	/**
+	 * @return the hit, miss and eviction counters of the derived field buffer.
+	 */
+	public static String getDerivedFieldStatistics() {
+		return derivedFieldBuffer.toString();
+	}
+	
+	/**
+	 * @return the hit, miss and eviction counters of the scope buffer.
+	 */
+	public static String getScopeStatistics() {
+		return scopeBuffer.toString();
 	}
 	
 	/**
 	 * Returns the list of parents of a given job (including the given root),
 	 * ordered according to the given selector.
+	 * <p>
+	 * If no names were seen before, the list is copied from a buffer that
+	 * is shared with all other callers.
 	 * 
 	 * @param root the job to get parents for.
 	 * @param order the order to use.
 	 * @param seen a set of names of projects which have already been included.
-	 *  If null, an empty set is used.
+	 *  If null, an empty set is used. The names of the returned projects are
+	 *  added to it.
 	 * 
 	 * @return the list of parents, including the given root. As such, is never
 	 * empty or null.
@@ -226,8 +380,62 @@ public abstract class InheritanceGovernor<T> {
 	public static final List<InheritanceProject> getFullScopeOrdered(
 			InheritanceProject root, SELECTOR order, Set<String> seen
 	) {
-		if (seen == null) { seen = new HashSet<String>(); }
-		List<InheritanceProject> all = new LinkedList<InheritanceProject>();
+		if (root == null) { return new LinkedList<InheritanceProject>(); }
+		if (seen != null && !seen.isEmpty()) {
+			return computeFullScopeOrdered(root, order, seen);
+		}
+		List<InheritanceProject> scope = new ArrayList<InheritanceProject>(Arrays.asList(
+				getFullScope(root, order, VersionHandler.getVersions())
+		));
+		if (seen != null) {
+			for (InheritanceProject ip : scope) {
+				seen.add(ip.getFullName());
+			}
+		}
+		return scope;
+	}
+	
+	/**
+	 * Returns the buffered ancestor linearization of the given project, as
+	 * computed by {@link #computeFullScopeOrdered(InheritanceProject, SELECTOR, Set)}.
+	 * <p>
+	 * The order depends on the versions of the parent references, so the
+	 * given version map is part of the buffer key. Each linearization
+	 * records all projects in it as its dependencies.
+	 * 
+	 * @param root the job to get parents for. Must not be null.
+	 * @param order the order to use.
+	 * @param versions the versions currently selected.
+	 * @return the shared array of parents, including the given root.
+	 * Must not be modified.
+	 */
+	private static InheritanceProject[] getFullScope(
+			InheritanceProject root, SELECTOR order, Map<String, Long> versions) {
+		String key = (versions == null || versions.isEmpty())
+				? order.name()
+				: order.name() + "|" + new TreeMap<String, Long>(versions);
+		
+		Object obj = scopeBuffer.get(root, key);
+		if (obj instanceof InheritanceProject[]) {
+			return (InheritanceProject[]) obj;
+		}
+		
+		List<InheritanceProject> lst = computeFullScopeOrdered(
+				root, order, new HashSet<String>()
+		);
+		InheritanceProject[] scope = lst.toArray(new InheritanceProject[lst.size()]);
+		List<String> deps = new ArrayList<String>(scope.length);
+		for (InheritanceProject ip : scope) {
+			deps.add(ip.getFullName());
+		}
+		scopeBuffer.set(root, key, scope, deps);
+		return scope;
+	}
+	
+	private static List<InheritanceProject> computeFullScopeOrdered(
+			InheritanceProject root, SELECTOR order, Set<String> seen
+	) {
+		List<InheritanceProject> all = new ArrayList<InheritanceProject>();
 		if (root == null) { return all; }
 		
 		String name = root.getFullName();
@@ -236,8 +444,7 @@ public abstract class InheritanceGovernor<T> {
 		}
 		seen.add(name);
 		
-		List<InheritanceProject> priors = new LinkedList<InheritanceProject>();
-		List<InheritanceProject> latters = new LinkedList<InheritanceProject>();
+		List<InheritanceProject> latters = new ArrayList<InheritanceProject>();
 		
 		for (AbstractProjectReference apr : root.getParentReferences(order)) {
 			if (apr == null) { continue; }
@@ -245,13 +452,12 @@ public abstract class InheritanceGovernor<T> {
 			if (ip == null) { continue; }
 			int prio = PrioComparator.getPriorityFor(apr, order);
 			if (prio <= 0) {
-				priors.addAll(getFullScopeOrdered(ip, order, seen));
+				all.addAll(computeFullScopeOrdered(ip, order, seen));
 			} else {
-				latters.addAll(getFullScopeOrdered(ip, order, seen));
+				latters.addAll(computeFullScopeOrdered(ip, order, seen));
 			}
 		}
 		
-		all.addAll(0, priors);
 		all.add(root);
 		all.addAll(latters);
 		
@@ -486,6 +692,12 @@ public abstract class InheritanceGovernor<T> {
 			return true;
 		}
 		
+		//Checking the context set by the entry points, because it is cheapest
+		InheritanceContext.Mode ctx = InheritanceContext.get();
+		if (ctx != null) {
+			return ctx == InheritanceContext.Mode.INHERIT;
+		}
+		
 		//Checking the Stapler Request, because it is fast
 		StaplerRequest req = Stapler.getCurrentRequest();
 		if (req != null) {
@@ -500,7 +712,10 @@ public abstract class InheritanceGovernor<T> {
 			}
 		}
 		
-		//Check via expensive stack reflection
+		//Check via expensive stack reflection; if not disabled
+		if (!stackReflectionEnabled()) {
+			return false;
+		}
 		if (Reflection.calledFromClass(
 				Build.class, BuildCommand.class,
 				Queue.class, BuildTrigger.class,
@@ -534,12 +749,27 @@ public abstract class InheritanceGovernor<T> {
 	 * @return true if versioning for the various fields is needed.
 	 */
 	protected static boolean versioningRequired() {
-		if (Reflection.calledFromMethod(Project.class, "submit")) {
+		InheritanceContext.Mode ctx = InheritanceContext.get();
+		if (ctx != null) {
+			return ctx != InheritanceContext.Mode.RAW;
+		}
+		
+		if (stackReflectionEnabled() &&
+				Reflection.calledFromMethod(Project.class, "submit")) {
 			return false;
 		}
 		
 		//In all other cases, always return true
 		return true;
 	}
+	
+	/**
+	 * @return true, if the call stack may be examined when no
+	 * {@link InheritanceContext} was set by the caller.
+	 */
+	private static boolean stackReflectionEnabled() {
+		ProjectCreationEngine pce = ProjectCreationEngine.instance;
+		return pce == null || !pce.getDisableStackReflection();
+	}
 
 }
@@ -0,0 +1,1003 @@
+/**
+ * Copyright (c) 2019 Intel Corporation
+ * Copyright (c) 2015-2017 Intel Deutschland GmbH
+ * Copyright (c) 2011-2015 Intel Mobile Communications GmbH
+ *
+ * This file is part of the Inheritance plug-in for Jenkins.
+ *
+ * The Inheritance plug-in is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation in version 3
+ * of the License
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.project_inheritance.projects.inheritance;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+
+import hudson.Extension;
+import hudson.model.Item;
+import hudson.model.listeners.ItemListener;
+import hudson.plugins.project_inheritance.projects.InheritanceProject;
+import hudson.plugins.project_inheritance.projects.InheritanceProject.Relationship;
+import hudson.plugins.project_inheritance.projects.references.AbstractProjectReference;
+import jenkins.model.Jenkins;
+
+/**
+ * This class maintains an index of the reference graph spanned by all
+ * {@link InheritanceProject}s.
+ * <p>
+ * Every project name that is either defined or referenced gets assigned a
+ * fixed integer ID. The parent and mate references of each node are stored
+ * as plain int arrays, in the order in which they are defined on the project.
+ * Do note that duplicated references are kept, since they are relevant for
+ * the cycle detection and the child listing.
+ * <p>
+ * The index is filled lazily on the first access and then updated
+ * incrementally, whenever the references of a single project change. As such,
+ * a config change on one job no longer causes the graph of all jobs to be
+ * rebuilt. A full rebuild only happens after {@link #invalidate()} is called,
+ * for example when Jenkins reloads all jobs from disk.
+ * <p>
+ * The reverse (child) edges are maintained alongside the parent edges.
+ * Whenever the parents of a node change, only the child arrays of the old
+ * and new parents are patched. As such, looking up the children of a project
+ * costs O(children) and is not affected by saves of unrelated projects.
+ * <p>
+ * The index also answers whether a project has a cyclic, diamond or repeated
+ * dependency. The strongly connected components of the parent edges are
+ * computed once (see Tarjan's algorithm) and the verdict for each node is
+ * memoized. When the parents of a node change, only the verdicts of that node
+ * and its descendants are dropped; as no other node can be affected.
+ * <p>
+ * Do note that the index is shared by all threads. It thus stores the
+ * references of the stable version of each project, as returned by
+ * {@link InheritanceProject#getParentReferencesForVersion(Long)} and
+ * {@link InheritanceProject#getCompatibleProjectsForVersion(Long)}; never
+ * those of the versions selected by the thread that triggers the update.
+ * That version is recorded, so that callers can detect via
+ * {@link #matchesVersions(Map)} when the index does not apply to the
+ * versions they are interested in.
+ */
+public class InheritanceGraph {
+	private static final Logger log = Logger.getLogger(
+			InheritanceGraph.class.toString()
+	);
+
+	private static final int[] EMPTY = new int[0];
+
+	private static final byte UNKNOWN = 0;
+	private static final byte ACYCLIC = 1;
+	private static final byte CYCLIC = 2;
+
+	/**
+	 * The maximum number of times a full population of the index is retried,
+	 * in case the graph was altered while the projects were being scanned.
+	 */
+	private static final int MAX_POPULATE_RETRIES = 3;
+
+	public static final InheritanceGraph instance = new InheritanceGraph();
+
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * Maps the full name of a project to its numerical ID in the arrays below.
+	 */
+	private final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+
+	private String[] names = new String[0];
+	private int[][] parents = new int[0][];
+	private int[][] mates = new int[0][];
+	private int[][] children = new int[0][];
+	private int size = 0;
+
+	/**
+	 * Whether a node belongs to an existing project, instead of only being
+	 * referenced by name. Edges to undefined nodes are ignored by the cycle
+	 * detection, the same way that missing parents are ignored everywhere.
+	 */
+	private boolean[] defined = new boolean[0];
+
+	/**
+	 * The version of each project, at which its references were read.
+	 */
+	private Long[] edgeVersions = new Long[0];
+
+	/**
+	 * Whether a node is part of a non-trivial strongly connected component.
+	 * Only valid, if {@link #sccDirty} is false.
+	 */
+	private boolean[] inCycle = new boolean[0];
+	private boolean sccDirty = true;
+
+	/**
+	 * The memoized cycle verdict of each node; one of {@link #UNKNOWN},
+	 * {@link #ACYCLIC} and {@link #CYCLIC}.
+	 */
+	private byte[] verdicts = new byte[0];
+
+	/**
+	 * Visitation marks for graph walks, to avoid allocating a new set on
+	 * each walk. A node is marked, if its entry is equal to {@link #stamp}.
+	 */
+	private int[] stamps = new int[0];
+	private int stamp = 0;
+
+	private boolean populated = false;
+
+	/**
+	 * Counts all modifications, to detect changes that happen while the
+	 * index is being populated without holding the lock.
+	 */
+	private long modCount = 0;
+
+
+	private InheritanceGraph() {
+		//Only the singleton instance may be created
+	}
+
+
+	// === MODIFICATION METHODS ===
+
+	/**
+	 * Re-reads the references of the given project and replaces all
+	 * outgoing edges of its node in the graph.
+	 * <p>
+	 * This does nothing, if the index has not yet been populated, as the
+	 * project will then be read during the population anyway.
+	 *
+	 * @param ip the project whose references may have changed. May be null.
+	 */
+	public void update(InheritanceProject ip) {
+		if (ip == null) { return; }
+		String name = ip.getFullName();
+
+		//Reading the references outside of the lock; as that might cause
+		//versioning to be evaluated
+		Long version = ip.getStableVersion();
+		List<String> pNames = getNames(ip.getParentReferencesForVersion(version));
+		List<String> mNames = getNames(ip.getCompatibleProjectsForVersion(version));
+
+		lock.writeLock().lock();
+		try {
+			modCount++;
+			if (!populated) { return; }
+			this.setEdges(name, pNames, mNames, version, true);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Removes all outgoing edges of the given project; for example after it
+	 * has been deleted.
+	 * <p>
+	 * The node itself is kept, as other projects may still reference the name.
+	 *
+	 * @param name the full name of the removed project.
+	 */
+	public void remove(String name) {
+		if (name == null) { return; }
+		lock.writeLock().lock();
+		try {
+			modCount++;
+			if (!populated) { return; }
+			Integer id = ids.get(name);
+			if (id == null) { return; }
+			this.setParents(id, EMPTY);
+			mates[id] = EMPTY;
+			defined[id] = false;
+			edgeVersions[id] = null;
+			this.invalidateCycles(id);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Moves the node of a renamed project to its new name.
+	 * <p>
+	 * Since edges are stored by ID, all references to the project stay valid
+	 * without having to touch any other node.
+	 *
+	 * @param oldName the old full name of the project
+	 * @param newName the new full name of the project
+	 */
+	public void rename(String oldName, String newName) {
+		if (oldName == null || newName == null || oldName.equals(newName)) {
+			return;
+		}
+		lock.writeLock().lock();
+		try {
+			modCount++;
+			if (!populated) { return; }
+			Integer id = ids.get(oldName);
+			if (id == null) { return; }
+			if (ids.containsKey(newName)) {
+				//Some projects already referenced the new name; which means
+				//two nodes would need to be merged. Just rebuild everything.
+				this.clear();
+				return;
+			}
+			ids.remove(oldName);
+			names[id] = newName;
+			ids.put(newName, id);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Drops the whole index. It will be repopulated from all projects on
+	 * the next access.
+	 */
+	public void invalidate() {
+		lock.writeLock().lock();
+		try {
+			modCount++;
+			this.clear();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+
+	// === QUERY METHODS ===
+
+	/**
+	 * Returns the names of the direct parents of the given project.
+	 *
+	 * @param name the full name of the project
+	 * @return the names of the parents in the order of their definition.
+	 * Never null, but may be empty. May contain duplicates.
+	 */
+	public List<String> getParents(String name) {
+		this.ensurePopulated();
+		lock.readLock().lock();
+		try {
+			Integer id = ids.get(name);
+			return (id == null) ? Collections.<String>emptyList() : this.toNames(parents[id]);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the names of the direct children of the given project.
+	 * <p>
+	 * A child that references this project multiple times is also returned
+	 * multiple times.
+	 *
+	 * @param name the full name of the project
+	 * @return the names of the children. Never null, but may be empty.
+	 */
+	public List<String> getChildren(String name) {
+		this.ensurePopulated();
+		lock.readLock().lock();
+		try {
+			Integer id = ids.get(name);
+			return (id == null) ? Collections.<String>emptyList() : this.toNames(children[id]);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the names of the projects marked as compatible by the given project.
+	 *
+	 * @param name the full name of the project
+	 * @return the names of the mates. Never null, but may be empty.
+	 */
+	public List<String> getMates(String name) {
+		this.ensurePopulated();
+		lock.readLock().lock();
+		try {
+			Integer id = ids.get(name);
+			return (id == null) ? Collections.<String>emptyList() : this.toNames(mates[id]);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the names of all transitive parents of the given project.
+	 *
+	 * @param name the full name of the project
+	 * @return the distinct names of all ancestors, in breadth-first order.
+	 * Never null, but may be empty.
+	 */
+	public List<String> getAncestors(String name) {
+		this.ensurePopulated();
+		lock.readLock().lock();
+		try {
+			Integer id = ids.get(name);
+			if (id == null) { return Collections.emptyList(); }
+			List<String> out = new ArrayList<String>();
+			boolean[] seen = new boolean[size];
+			seen[id] = true;
+			int[] queue = new int[size];
+			int head = 0, tail = 0;
+			queue[tail++] = id;
+			while (head < tail) {
+				for (int par : parents[queue[head++]]) {
+					if (seen[par]) { continue; }
+					seen[par] = true;
+					queue[tail++] = par;
+					out.add(names[par]);
+				}
+			}
+			return out;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param name the full name of the project
+	 * @return true, if at least one project inherits from the given one.
+	 */
+	public boolean hasChildren(String name) {
+		this.ensurePopulated();
+		lock.readLock().lock();
+		try {
+			Integer id = ids.get(name);
+			return id != null && children[id].length > 0;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Computes the transitive relationships of the given project, by doing a
+	 * breadth-first search along the parent and the child edges.
+	 * <p>
+	 * Mates are only looked up directly, with a distance of zero. If a project
+	 * is related in multiple ways, children take precedence over parents,
+	 * which take precedence over mates.
+	 *
+	 * @param root the project whose relationships to compute.
+	 * @return a new map of related projects. Never null, but may be empty.
+	 */
+	public Map<InheritanceProject, Relationship> getRelationships(InheritanceProject root) {
+		Map<InheritanceProject, Relationship> map =
+				new HashMap<InheritanceProject, Relationship>();
+		if (root == null) { return map; }
+
+		//Computing the relations by ID and name under the lock, but resolving
+		//the project objects only after the lock was released
+		List<String> relNames = new ArrayList<String>();
+		List<Relationship> rels = new ArrayList<Relationship>();
+
+		this.ensurePopulated();
+		lock.readLock().lock();
+		try {
+			Integer rootID = ids.get(root.getFullName());
+			if (rootID == null) { return map; }
+
+			for (int mate : mates[rootID]) {
+				relNames.add(names[mate]);
+				rels.add(new Relationship(
+						Relationship.Type.MATE, 0, children[mate].length == 0
+				));
+			}
+			this.explore(rootID, parents, Relationship.Type.PARENT, relNames, rels);
+			this.explore(rootID, children, Relationship.Type.CHILD, relNames, rels);
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		for (int i = 0; i < relNames.size(); i++) {
+			InheritanceProject p = InheritanceProject.getProjectByName(relNames.get(i));
+			if (p == null) { continue; }
+			map.put(p, rels.get(i));
+		}
+		return map;
+	}
+
+	/**
+	 * Breadth-first search starting at the given ID along the given edges.
+	 * Must be called while holding (at least) the read lock.
+	 */
+	private void explore(
+			int rootID, int[][] edges, Relationship.Type type,
+			List<String> relNames, List<Relationship> rels
+	) {
+		boolean[] seen = new boolean[size];
+		seen[rootID] = true;
+		int[] queue = new int[size];
+		int head = 0, tail = 0;
+		queue[tail++] = rootID;
+
+		int distance = 0;
+		while (head < tail) {
+			//Processing one full level of the BFS at a time
+			int levelEnd = tail;
+			distance++;
+			while (head < levelEnd) {
+				int curr = queue[head++];
+				for (int next : edges[curr]) {
+					if (seen[next]) { continue; }
+					seen[next] = true;
+					queue[tail++] = next;
+					//Parents are never marked as leaves
+					boolean isLeaf = (type == Relationship.Type.CHILD)
+							? children[next].length == 0
+							: false;
+					relNames.add(names[next]);
+					rels.add(new Relationship(type, distance, isLeaf));
+				}
+			}
+		}
+	}
+
+
+	// === CYCLE DETECTION ===
+
+	/**
+	 * Checks whether the recorded references were read at the same versions
+	 * as the ones given. If not, the cycle verdicts of this index do not apply
+	 * to that selection of versions.
+	 *
+	 * @param versions a map of full project names to their selected versions.
+	 * Projects not contained in the map are assumed to use their default.
+	 * @return true, if all given versions match the recorded ones.
+	 */
+	public boolean matchesVersions(Map<String, Long> versions) {
+		if (versions == null || versions.isEmpty()) { return true; }
+		this.ensurePopulated();
+		lock.readLock().lock();
+		try {
+			for (Map.Entry<String, Long> e : versions.entrySet()) {
+				Integer id = ids.get(e.getKey());
+				if (id == null || !defined[id]) { continue; }
+				Long v = edgeVersions[id];
+				if (v == null ? e.getValue() != null : !v.equals(e.getValue())) {
+					return false;
+				}
+			}
+			return true;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Wrapper around {@link #hasCyclicDependency(String, boolean, String...)}
+	 * that only considers the existing references.
+	 *
+	 * @param name the full name of the project
+	 * @return true, if a cycle or diamond was detected.
+	 */
+	public boolean hasCyclicDependency(String name) {
+		return this.hasCyclicDependency(name, true);
+	}
+
+	/**
+	 * Tests if the given project leads to a cyclic, diamond or repeated
+	 * dependency; with the same semantics as
+	 * {@link InheritanceProject#hasCyclicDependency(boolean, String...)}.
+	 * <p>
+	 * Without hypothetical additions, the answer is memoized per node. With
+	 * additions, only the union of the ancestors of the added projects is
+	 * walked; since the verdicts of the added projects are memoized, too.
+	 *
+	 * @param name the full name of the project
+	 * @param addExisting whether to consider the existing parent references
+	 * @param whenTheseProjectsAdded full names of projects that are to be
+	 * considered as additional parents
+	 * @return true, if a cycle or diamond was detected.
+	 */
+	public boolean hasCyclicDependency(
+			String name, boolean addExisting, String... whenTheseProjectsAdded
+	) {
+		if (name == null) { return false; }
+		boolean onlyExisting = addExisting && (
+				whenTheseProjectsAdded == null || whenTheseProjectsAdded.length == 0
+		);
+
+		this.ensurePopulated();
+		if (onlyExisting) {
+			//Checking the memoized verdict under the cheaper read lock first
+			lock.readLock().lock();
+			try {
+				Integer id = ids.get(name);
+				if (id == null) { return false; }
+				if (verdicts[id] != UNKNOWN) { return verdicts[id] == CYCLIC; }
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		lock.writeLock().lock();
+		try {
+			if (sccDirty) { this.computeStronglyConnected(); }
+			Integer id = ids.get(name);
+			int self = (id == null) ? -1 : id;
+			if (onlyExisting) {
+				return self >= 0 && this.isCyclic(self);
+			}
+
+			int nAdded = (whenTheseProjectsAdded == null) ? 0 : whenTheseProjectsAdded.length;
+			int nExisting = (addExisting && self >= 0) ? parents[self].length : 0;
+			int[] starts = new int[nAdded + nExisting];
+			int n = 0;
+			for (int i = 0; i < nAdded; i++) {
+				Integer aid = ids.get(whenTheseProjectsAdded[i]);
+				if (aid == null || !defined[aid]) { continue; }
+				starts[n++] = aid;
+			}
+			for (int i = 0; i < nExisting; i++) {
+				int par = parents[self][i];
+				if (defined[par]) { starts[n++] = par; }
+			}
+			for (int i = 0; i < n; i++) {
+				if (starts[i] == self || this.isCyclic(starts[i])) { return true; }
+			}
+			return !this.visitsDistinct(self, starts, n);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the memoized verdict for the given node, computing it first if
+	 * necessary. A node is cyclic, if it is part of a cycle, if any parent
+	 * is cyclic or if the ancestor trees of its parents are not disjoint.
+	 * <p>
+	 * Must be called while holding the write lock and with an up-to-date
+	 * {@link #inCycle} array.
+	 */
+	private boolean isCyclic(int id) {
+		if (verdicts[id] != UNKNOWN) { return verdicts[id] == CYCLIC; }
+
+		boolean cyclic = inCycle[id];
+		int nDefined = 0;
+		for (int i = 0; !cyclic && i < parents[id].length; i++) {
+			int par = parents[id][i];
+			if (!defined[par]) { continue; }
+			nDefined++;
+			//Outside of cycles, the parent edges form a DAG; so this recursion
+			//always terminates
+			cyclic = this.isCyclic(par);
+		}
+		//With a single acyclic parent, the ancestors necessarily form a tree
+		if (!cyclic && nDefined > 1) {
+			cyclic = !this.visitsDistinct(id, parents[id], parents[id].length);
+		}
+		verdicts[id] = (cyclic) ? CYCLIC : ACYCLIC;
+		return cyclic;
+	}
+
+	/**
+	 * Walks all ancestors of the given (acyclic) start nodes and checks that
+	 * no node -- including the given self node -- is reached twice.
+	 * <p>
+	 * Must be called while holding the write lock.
+	 *
+	 * @param self a node that must not be reached at all; or -1.
+	 * @param starts the nodes from which to start the walk
+	 * @param n the number of valid entries in starts
+	 * @return true, if every node was reached at most once.
+	 */
+	private boolean visitsDistinct(int self, int[] starts, int n) {
+		int mark = this.nextStamp();
+		if (self >= 0) { stamps[self] = mark; }
+
+		int[] stack = new int[Math.max(16, n)];
+		int sp = 0;
+		for (int i = 0; i < n; i++) {
+			if (defined[starts[i]]) { stack[sp++] = starts[i]; }
+		}
+		while (sp > 0) {
+			int curr = stack[--sp];
+			if (stamps[curr] == mark) { return false; }
+			stamps[curr] = mark;
+			for (int par : parents[curr]) {
+				if (!defined[par]) { continue; }
+				if (sp == stack.length) { stack = Arrays.copyOf(stack, sp * 2); }
+				stack[sp++] = par;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Drops the memoized verdicts of the given node and all its descendants,
+	 * since those are the only nodes whose ancestry contains the given node.
+	 * <p>
+	 * Must be called while holding the write lock.
+	 */
+	private void invalidateCycles(int id) {
+		sccDirty = true;
+		int mark = this.nextStamp();
+		int[] queue = new int[size];
+		int head = 0, tail = 0;
+		queue[tail++] = id;
+		stamps[id] = mark;
+		while (head < tail) {
+			int curr = queue[head++];
+			verdicts[curr] = UNKNOWN;
+			for (int child : children[curr]) {
+				if (stamps[child] == mark) { continue; }
+				stamps[child] = mark;
+				queue[tail++] = child;
+			}
+		}
+	}
+
+	/**
+	 * Computes the strongly connected components along the parent edges via
+	 * an iterative version of Tarjan's algorithm, and marks each node that
+	 * is part of a non-trivial component or has a reference to itself.
+	 * <p>
+	 * Must be called while holding the write lock.
+	 */
+	private void computeStronglyConnected() {
+		int[] index = new int[size];
+		Arrays.fill(index, -1);
+		int[] low = new int[size];
+		boolean[] onStack = new boolean[size];
+		int[] stack = new int[size];
+		int sp = 0;
+		//The explicit call stack of the depth-first search
+		int[] callNode = new int[size];
+		int[] callEdge = new int[size];
+		int cp = 0;
+		int counter = 0;
+
+		boolean[] cyc = new boolean[names.length];
+		for (int root = 0; root < size; root++) {
+			if (index[root] >= 0) { continue; }
+			index[root] = low[root] = counter++;
+			stack[sp++] = root;
+			onStack[root] = true;
+			callNode[cp] = root;
+			callEdge[cp++] = 0;
+
+			while (cp > 0) {
+				int v = callNode[cp - 1];
+				int[] edges = parents[v];
+				if (callEdge[cp - 1] < edges.length) {
+					int w = edges[callEdge[cp - 1]++];
+					if (!defined[w]) { continue; }
+					if (w == v) {
+						cyc[v] = true;
+					} else if (index[w] < 0) {
+						index[w] = low[w] = counter++;
+						stack[sp++] = w;
+						onStack[w] = true;
+						callNode[cp] = w;
+						callEdge[cp++] = 0;
+					} else if (onStack[w]) {
+						low[v] = Math.min(low[v], index[w]);
+					}
+					continue;
+				}
+
+				//All edges of v have been explored
+				cp--;
+				if (cp > 0) {
+					int u = callNode[cp - 1];
+					low[u] = Math.min(low[u], low[v]);
+				}
+				if (low[v] == index[v]) {
+					//v is the root of a component; pop it off the stack
+					int count = 0;
+					int w;
+					do {
+						w = stack[--sp];
+						onStack[w] = false;
+						count++;
+					} while (w != v);
+					if (count > 1) {
+						for (int i = sp; i < sp + count; i++) {
+							cyc[stack[i]] = true;
+						}
+					}
+				}
+			}
+		}
+		inCycle = cyc;
+		sccDirty = false;
+	}
+
+
+	// === INTERNAL HELPER METHODS ===
+
+	private void ensurePopulated() {
+		lock.readLock().lock();
+		try {
+			if (populated) { return; }
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		for (int i = 0; ; i++) {
+			long startCount;
+			lock.readLock().lock();
+			try {
+				if (populated) { return; }
+				startCount = modCount;
+			} finally {
+				lock.readLock().unlock();
+			}
+
+			//Scanning all projects without holding the lock
+			List<String> pNames = new LinkedList<String>();
+			List<List<String>> pRefs = new LinkedList<List<String>>();
+			List<List<String>> mRefs = new LinkedList<List<String>>();
+			List<Long> pVers = new LinkedList<Long>();
+			for (InheritanceProject ip : Jenkins.get().getAllItems(InheritanceProject.class)) {
+				if (ip == null) { continue; }
+				Long version = ip.getStableVersion();
+				pNames.add(ip.getFullName());
+				pRefs.add(getNames(ip.getParentReferencesForVersion(version)));
+				mRefs.add(getNames(ip.getCompatibleProjectsForVersion(version)));
+				pVers.add(version);
+			}
+
+			lock.writeLock().lock();
+			try {
+				if (populated) { return; }
+				if (modCount != startCount && i < MAX_POPULATE_RETRIES) {
+					//Something changed during the scan; try again
+					continue;
+				}
+				this.clear();
+				Iterator<String> nIter = pNames.iterator();
+				Iterator<List<String>> pIter = pRefs.iterator();
+				Iterator<List<String>> mIter = mRefs.iterator();
+				Iterator<Long> vIter = pVers.iterator();
+				while (nIter.hasNext()) {
+					this.setEdges(
+							nIter.next(), pIter.next(), mIter.next(),
+							vIter.next(), false
+					);
+				}
+				this.rebuildChildren();
+				populated = true;
+				log.fine(String.format(
+						"Populated inheritance graph with %d nodes", size
+				));
+				return;
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+	}
+
+	/**
+	 * Regenerates all child arrays from the parent arrays in O(nodes + edges).
+	 * Used after a full population, instead of patching each edge one by one.
+	 * <p>
+	 * Must be called while holding the write lock.
+	 */
+	private void rebuildChildren() {
+		//Counting the children first, to allocate exactly sized arrays
+		int[] counts = new int[size];
+		for (int i = 0; i < size; i++) {
+			for (int par : parents[i]) { counts[par]++; }
+		}
+		int[][] rev = new int[names.length][];
+		for (int i = 0; i < size; i++) {
+			rev[i] = (counts[i] == 0) ? EMPTY : new int[counts[i]];
+			counts[i] = 0;
+		}
+		for (int i = 0; i < size; i++) {
+			for (int par : parents[i]) { rev[par][counts[par]++] = i; }
+		}
+		children = rev;
+		//All verdicts need to be recomputed
+		verdicts = new byte[names.length];
+		sccDirty = true;
+	}
+
+	/**
+	 * Must be called while holding the write lock.
+	 *
+	 * @param patchChildren if false, the child arrays are left untouched and
+	 * must be regenerated via {@link #rebuildChildren()} afterwards.
+	 */
+	private void setEdges(
+			String name, List<String> pNames, List<String> mNames,
+			Long version, boolean patchChildren
+	) {
+		int id = this.getOrCreateID(name);
+		int[] pArr = new int[pNames.size()];
+		for (int i = 0; i < pArr.length; i++) {
+			pArr[i] = this.getOrCreateID(pNames.get(i));
+		}
+		int[] mArr = new int[mNames.size()];
+		for (int i = 0; i < mArr.length; i++) {
+			mArr[i] = this.getOrCreateID(mNames.get(i));
+		}
+		boolean wasDefined = defined[id];
+		defined[id] = true;
+		edgeVersions[id] = version;
+		if (!patchChildren) {
+			parents[id] = (pArr.length == 0) ? EMPTY : pArr;
+		} else if (!Arrays.equals(parents[id], pArr)) {
+			this.setParents(id, (pArr.length == 0) ? EMPTY : pArr);
+		} else if (!wasDefined) {
+			//Edges pointing to this node are no longer ignored
+			this.invalidateCycles(id);
+		}
+		mates[id] = (mArr.length == 0) ? EMPTY : mArr;
+	}
+
+	/**
+	 * Replaces the parents of the given node and patches the child arrays
+	 * of exactly those parents that were removed or added.
+	 * <p>
+	 * Must be called while holding the write lock.
+	 */
+	private void setParents(int id, int[] pArr) {
+		for (int par : parents[id]) {
+			children[par] = removeOnce(children[par], id);
+		}
+		for (int par : pArr) {
+			children[par] = append(children[par], id);
+		}
+		parents[id] = pArr;
+		this.invalidateCycles(id);
+	}
+
+	/**
+	 * Must be called while holding the write lock.
+	 */
+	private int getOrCreateID(String name) {
+		Integer id = ids.get(name);
+		if (id != null) { return id; }
+
+		if (size == names.length) {
+			int nLen = Math.max(16, names.length * 2);
+			names = Arrays.copyOf(names, nLen);
+			parents = Arrays.copyOf(parents, nLen);
+			mates = Arrays.copyOf(mates, nLen);
+			children = Arrays.copyOf(children, nLen);
+			defined = Arrays.copyOf(defined, nLen);
+			edgeVersions = Arrays.copyOf(edgeVersions, nLen);
+			inCycle = Arrays.copyOf(inCycle, nLen);
+			verdicts = Arrays.copyOf(verdicts, nLen);
+			stamps = Arrays.copyOf(stamps, nLen);
+		}
+		names[size] = name;
+		parents[size] = EMPTY;
+		mates[size] = EMPTY;
+		children[size] = EMPTY;
+		sccDirty = true;
+		ids.put(name, size);
+		return size++;
+	}
+
+	/**
+	 * Must be called while holding the write lock.
+	 */
+	private void clear() {
+		ids.clear();
+		names = new String[0];
+		parents = new int[0][];
+		mates = new int[0][];
+		children = new int[0][];
+		defined = new boolean[0];
+		edgeVersions = new Long[0];
+		inCycle = new boolean[0];
+		verdicts = new byte[0];
+		stamps = new int[0];
+		size = 0;
+		populated = false;
+		sccDirty = true;
+	}
+
+	/**
+	 * Returns a fresh mark for {@link #stamps}, that no node carries yet.
+	 * <p>
+	 * Must be called while holding the write lock.
+	 */
+	private int nextStamp() {
+		if (stamp == Integer.MAX_VALUE) {
+			Arrays.fill(stamps, 0);
+			stamp = 0;
+		}
+		return ++stamp;
+	}
+
+	private static int[] append(int[] arr, int val) {
+		int[] out = Arrays.copyOf(arr, arr.length + 1);
+		out[arr.length] = val;
+		return out;
+	}
+
+	private static int[] removeOnce(int[] arr, int val) {
+		for (int i = 0; i < arr.length; i++) {
+			if (arr[i] != val) { continue; }
+			if (arr.length == 1) { return EMPTY; }
+			int[] out = new int[arr.length - 1];
+			System.arraycopy(arr, 0, out, 0, i);
+			System.arraycopy(arr, i + 1, out, i, arr.length - i - 1);
+			return out;
+		}
+		return arr;
+	}
+
+	private List<String> toNames(int[] arr) {
+		if (arr.length == 0) { return Collections.emptyList(); }
+		List<String> out = new ArrayList<String>(arr.length);
+		for (int i : arr) { out.add(names[i]); }
+		return out;
+	}
+
+	private static List<String> getNames(List<AbstractProjectReference> refs) {
+		if (refs == null || refs.isEmpty()) { return Collections.emptyList(); }
+		List<String> out = new ArrayList<String>(refs.size());
+		for (AbstractProjectReference ref : refs) {
+			if (ref == null || ref.getName() == null) { continue; }
+			out.add(ref.getName());
+		}
+		return out;
+	}
+
+
+	// === ITEM LISTENER ===
+
+	/**
+	 * Keeps the graph index in sync with projects being created, renamed,
+	 * deleted or reloaded outside of the {@link InheritanceProject} methods
+	 * that already update it directly.
+	 */
+	@Extension
+	public static class GraphItemListener extends ItemListener {
+		@Override
+		public void onCreated(Item item) {
+			if (item instanceof InheritanceProject) {
+				instance.update((InheritanceProject) item);
+			}
+		}
+
+		@Override
+		public void onUpdated(Item item) {
+			if (item instanceof InheritanceProject) {
+				instance.update((InheritanceProject) item);
+			}
+		}
+
+		@Override
+		public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+			if (item instanceof InheritanceProject) {
+				instance.rename(oldFullName, newFullName);
+				InheritanceProject.clearProjectsMap();
+			}
+		}
+
+		@Override
+		public void onDeleted(Item item) {
+			if (item instanceof InheritanceProject) {
+				instance.remove(item.getFullName());
+				InheritanceProject.clearProjectsMap();
+			}
+		}
+
+		@Override
+		public void onLoaded() {
+			//All jobs were (re-)loaded from disk; start from scratch
+			instance.invalidate();
+		}
+	}
+}
@@ -23,6 +23,7 @@ package hudson.plugins.project_inheritance.projects.inheritance;
 
 import java.io.Serializable;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -184,6 +185,31 @@ public abstract class InheritanceSelector<T> implements Serializable, ExtensionP
 	 */
 	public abstract T merge(T prior, T latter, InheritanceProject caller);
 	
+	/**
+	 * This function is called when {@link #isApplicableFor(Class)} returned the
+	 * {@link MODE#MERGE} mode and at least 2 objects with the same ID need to
+	 * be merged.
+	 * <p>
+	 * The default implementation folds the objects pairwise, in order, via
+	 * {@link #merge(Object, Object, InheritanceProject)}. Override this, if
+	 * your selector can merge the whole chain at once without creating the
+	 * intermediate results.
+	 * 
+	 * @param chain the objects to merge, in order of their definition. Must
+	 * not be modified.
+	 * @param caller the job for which the merge is done
+	 * 
+	 * @return a merged instance. Maybe be new, or one of the input elements
+	 */
+	public T mergeAll(List<T> chain, InheritanceProject caller) {
+		Iterator<T> iter = chain.iterator();
+		T merge = iter.next();
+		while (iter.hasNext()) {
+			merge = this.merge(merge, iter.next(), caller);
+		}
+		return merge;
+	}
+	
 	/**
 	 * This function will be called with the final object that was selected 
 	 * to be returned to Jenkins during application of this selector.
@@ -287,10 +313,10 @@ public abstract class InheritanceSelector<T> implements Serializable, ExtensionP
 						//Wait until we have reached the last entry
 						if (entry != conn.peekLast()) { continue; }
 						// Merge all entries and put them into the list
-						T merge = conn.pollFirst();
-						while (conn.isEmpty() == false) {
-							merge = this.merge(merge, conn.pollFirst(), caller);
-						}
+						T merge = (conn.size() == 1)
+								? conn.peekFirst()
+								: this.mergeAll(conn, caller);
+						conn.clear();
 						out.add(this.handleSingleton(merge, caller));
 						break;
 						
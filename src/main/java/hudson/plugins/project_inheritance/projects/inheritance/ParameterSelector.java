@@ -21,11 +21,14 @@
 package hudson.plugins.project_inheritance.projects.inheritance;
 
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
-
-import org.apache.commons.lang.StringUtils;
+import java.util.concurrent.ConcurrentHashMap;
 
 import hudson.Extension;
 import hudson.model.JobProperty;
@@ -35,8 +38,9 @@ import hudson.plugins.project_inheritance.projects.InheritanceProject;
 import hudson.plugins.project_inheritance.projects.InheritanceProject.IMode;
 import hudson.plugins.project_inheritance.projects.parameters.InheritableStringParameterDefinition;
 import hudson.plugins.project_inheritance.projects.parameters.InheritanceParametersDefinitionProperty;
-import hudson.plugins.project_inheritance.projects.references.AbstractProjectReference;
 import hudson.plugins.project_inheritance.projects.references.ProjectReference.PrioComparator.SELECTOR;
+import hudson.plugins.project_inheritance.projects.versioning.VersionHandler;
+import hudson.plugins.project_inheritance.util.DependencyBuffer;
 
 public class ParameterSelector
 		extends InheritanceSelector<JobProperty<?>> {
@@ -47,6 +51,13 @@ public class ParameterSelector
 	@Extension
 	public static final ParameterSelector instance = new ParameterSelector();
 	
+	/**
+	 * Buffers the {@link ScopeTable} of projects, keyed by the versions of
+	 * the projects in their scope.
+	 */
+	private static final DependencyBuffer<InheritanceProject, String> scopeTables =
+			new DependencyBuffer<InheritanceProject, String>(-1, 50000);
+	
 	public static class ScopeEntry {
 		public final String owner;
 		public final ParameterDefinition param;
@@ -68,6 +79,91 @@ public class ParameterSelector
 		}
 	}
 	
+	/**
+	 * An immutable table of all parameter definitions in the scope of a
+	 * project, in order of derivation and indexed by their names.
+	 * <p>
+	 * Since the table is buffered exactly as long as its scope does not
+	 * change, it also holds verdicts derived from it; such as the one of
+	 * {@link InheritanceProject#getParameterSanity()}.
+	 */
+	public static class ScopeTable {
+		private final List<ScopeEntry> all;
+		private final Map<String, List<ScopeEntry>> byName;
+		
+		/**
+		 * The verdicts derived from this table, by their key.
+		 */
+		private final Map<String, Object> verdicts =
+				new ConcurrentHashMap<String, Object>();
+		
+		public ScopeTable(List<ScopeEntry> entries) {
+			this.all = Collections.unmodifiableList(
+					new ArrayList<ScopeEntry>(entries)
+			);
+			Map<String, List<ScopeEntry>> map = new HashMap<String, List<ScopeEntry>>();
+			for (ScopeEntry se : this.all) {
+				String name = se.param.getName();
+				List<ScopeEntry> lst = map.get(name);
+				if (lst == null) {
+					lst = new ArrayList<ScopeEntry>(2);
+					map.put(name, lst);
+				}
+				lst.add(se);
+			}
+			for (Map.Entry<String, List<ScopeEntry>> e : map.entrySet()) {
+				e.setValue(Collections.unmodifiableList(e.getValue()));
+			}
+			this.byName = map;
+		}
+		
+		/**
+		 * @param key the key of the verdict
+		 * @return the verdict stored via {@link #setVerdict(String, Object)},
+		 * or null if none was stored yet.
+		 */
+		public Object getVerdict(String key) {
+			return this.verdicts.get(key);
+		}
+		
+		/**
+		 * Stores a verdict that was derived solely from this table.
+		 * 
+		 * @param key the key of the verdict
+		 * @param verdict the verdict. Must be immutable and not null.
+		 */
+		public void setVerdict(String key, Object verdict) {
+			this.verdicts.put(key, verdict);
+		}
+		
+		/**
+		 * @return all entries, in order of derivation. Never null.
+		 */
+		public List<ScopeEntry> getAll() {
+			return this.all;
+		}
+		
+		/**
+		 * @param name the name of a parameter
+		 * @return all entries for the given parameter, in order of
+		 * derivation. Never null, but may be empty.
+		 */
+		public List<ScopeEntry> get(String name) {
+			List<ScopeEntry> lst = this.byName.get(name);
+			if (lst == null) {
+				return Collections.emptyList();
+			}
+			return lst;
+		}
+		
+		/**
+		 * @return the names of all parameters in the scope.
+		 */
+		public Set<String> getNames() {
+			return Collections.unmodifiableSet(this.byName.keySet());
+		}
+	}
+	
 	
 	@Override
 	public boolean isApplicableFor(
@@ -104,29 +200,44 @@ public class ParameterSelector
 			return latter;
 		}
 		
-		return this.createMerged(
+		return this.createMerged(Arrays.asList(
 				(ParametersDefinitionProperty) prior,
 				(ParametersDefinitionProperty) latter
-		);
+		));
+	}
+	
+	@Override
+	public JobProperty<?> mergeAll(
+			List<JobProperty<?>> chain, InheritanceProject caller) {
+		List<ParametersDefinitionProperty> pdps =
+				new ArrayList<ParametersDefinitionProperty>(chain.size());
+		for (JobProperty<?> jp : chain) {
+			if (!(jp instanceof ParametersDefinitionProperty)) {
+				//Foreign properties need the pairwise semantics of merge()
+				return super.mergeAll(chain, caller);
+			}
+			pdps.add((ParametersDefinitionProperty) jp);
+		}
+		return this.createMerged(pdps);
 	}
 	
 	/**
-	 * This method is used to merge two PDPs in the order of their inheritance.
-	 * <p>
-	 * This is repeatedly called, until the final set of properties only
-	 * contains a single parameter-property.
+	 * This method is used to merge all PDPs in the order of their inheritance
+	 * in a single pass.
 	 * <p>
 	 * This method will merge ParameterDefinitions based on their name. If they
 	 * are inheritance-aware (e.g. an {@link InheritableStringParameterDefinition}),
-	 * it will merge the two parameters into one, based on the inheritance
-	 * settings.
+	 * it will merge all definitions of a parameter into one, based on the
+	 * inheritance settings. Only the final definition of each parameter and
+	 * a single property are created; the result is the same as merging the
+	 * PDPs pairwise.
 	 * <p>
 	 * The result is a "frozen" parameter definition with the full inheritance
 	 * applied to it. That property can then be used as-is, without having to
 	 * be inheritance and versioning unaware.
 	 * <p>
 	 * If you need access to the precise nature of how everything was merged,
-	 * use 
+	 * use {@link #getAllScopedParameterDefinitions(InheritanceProject)}.
 	 * <p>
 	 * Related to this, do note that the sanity of this merge is checked 
 	 * separately by:
@@ -137,33 +248,30 @@ public class ParameterSelector
 	 * The former will emit a warning and disable the buildable flag.<br>
 	 * The latter will abort builds if bad values are present.
 	 * 
-	 * @param prior the property from earlier in the inheritance
-	 * @param latter the property from later in the inheritance
+	 * @param pdps the properties in order of their inheritance. Must contain
+	 * at least one element.
 	 * 
 	 * @return a merged property, according to the rules laid out above.
 	 */
 	private ParametersDefinitionProperty createMerged(
-			ParametersDefinitionProperty prior,
-			ParametersDefinitionProperty latter) {
-		ParametersDefinitionProperty[] pdps = {latter, prior};
-		
+			List<ParametersDefinitionProperty> pdps) {
 		/* Merge the ParameterDefinitions based on their name
 		 * 
 		 * Using a tree-map sorts the parameters alphabetically, which avoids
 		 * the issue of the order being affected by the inheritance order.
 		 */
-		TreeMap<String, ParameterDefinition> unifyMap =
-				new TreeMap<String, ParameterDefinition>();
-		for (int i = pdps.length-1; i >= 0; i--) {
-			ParametersDefinitionProperty pdp = pdps[i];
+		TreeMap<String, InheritableStringParameterDefinition.Merger> unifyMap =
+				new TreeMap<String, InheritableStringParameterDefinition.Merger>();
+		for (ParametersDefinitionProperty pdp : pdps) {
 			for (ParameterDefinition pd : pdp.getParameterDefinitions()) {
-				ParameterDefinition past = unifyMap.get(pd.getName());
-				//Check if there exists a predecessor
-				if (past == null) {
-					unifyMap.put(pd.getName(), pd);
-					continue;
+				InheritableStringParameterDefinition.Merger merger =
+						unifyMap.get(pd.getName());
+				if (merger == null) {
+					merger = new InheritableStringParameterDefinition.Merger();
+					unifyMap.put(pd.getName(), merger);
 				}
-				/* If a previous version exists, a merge might need to happen.
+				/* Inheritance-aware definitions are merged with their
+				 * predecessor; all others are straight overwrites.
 				 * 
 				 * Do note that the sanity of this merge is checked separately
 				 * by:
@@ -174,29 +282,21 @@ public class ParameterSelector
 				 * The latter will abort builds if bad values are present.
 				 * 
 				 */
-				if (pd instanceof InheritableStringParameterDefinition) {
-					InheritableStringParameterDefinition ispd =
-							((InheritableStringParameterDefinition)pd);
-					//Execute the merge
-					unifyMap.put(
-							pd.getName(),
-							ispd.getMergeWithOther(past)
-					);
-				} else {
-					//Straight overwrite in case of non-inheritance-aware PDs
-					unifyMap.put(pd.getName(), pd);
-				}
+				merger.add(pd);
 			}
 		}
 		
 		//PDP expects a list -- use ArrayList, to avoid chain-link creation
 		List<ParameterDefinition> unifyList =
-				new ArrayList<ParameterDefinition>(unifyMap.values());
+				new ArrayList<ParameterDefinition>(unifyMap.size());
+		for (InheritableStringParameterDefinition.Merger merger : unifyMap.values()) {
+			unifyList.add(merger.get());
+		}
 		
-		//Return the merged PDP, as an IPDP, while using the "latter" owner
+		//Return the merged PDP, as an IPDP, while using the last owner
 		InheritanceParametersDefinitionProperty ret =
 				new InheritanceParametersDefinitionProperty(
-						latter.getOwner(), unifyList
+						pdps.get(pdps.size()-1).getOwner(), unifyList
 				);
 		return ret;
 	}
@@ -249,21 +349,68 @@ public class ParameterSelector
 	 * the inheritance. If you need finalized values, you need to use
 	 * {@link InheritableStringParameterDefinition#getMergeWithOther(ParameterDefinition)}
 	 * or
-	 * {@link #createMerged(ParametersDefinitionProperty, ParametersDefinitionProperty)}
+	 * {@link #createMerged(List)}
 	 * 
 	 * @param root the project for which to retrieve the parameter scope
 	 * 
-	 * @return a list of {@link ScopeEntry} instances, sorted by order of
-	 * derivation by inheritance. Never null, but may be empty.
+	 * @return an unmodifiable list of {@link ScopeEntry} instances, sorted by
+	 * order of derivation by inheritance. Never null, but may be empty.
 	 */
 	public List<ScopeEntry> getAllScopedParameterDefinitions(InheritanceProject root) {
-		List<ScopeEntry> lst = new LinkedList<ScopeEntry>();
+		return this.getScopeTable(root).getAll();
+	}
+	
+	/**
+	 * Returns all definitions of the parameter with the given name that are
+	 * involved in generating its value; in the same order as
+	 * {@link #getAllScopedParameterDefinitions(InheritanceProject)}.
+	 * 
+	 * @param root the project for which to retrieve the parameter scope
+	 * @param name the name of the parameter
+	 * @return an unmodifiable list of {@link ScopeEntry} instances.
+	 * Never null, but may be empty.
+	 */
+	public List<ScopeEntry> getScopedParameterDefinition(InheritanceProject root, String name) {
+		return this.getScopeTable(root).get(name);
+	}
+	
+	/**
+	 * Returns the table of all parameter definitions in the scope of the
+	 * given project, for the versions selected in the current request or
+	 * thread.
+	 * <p>
+	 * The table is buffered until a project in the scope changes.
+	 * 
+	 * @param root the project for which to retrieve the parameter scope
+	 * @return the table. Never null.
+	 */
+	public ScopeTable getScopeTable(InheritanceProject root) {
+		//The sorted list of *all* parents, not just the direct ones
+		List<InheritanceProject> scope = InheritanceGovernor.getFullScopeOrdered(
+				root, SELECTOR.PARAMETER, null
+		);
 		
-		//Now, we get the sorted list of *all* parents, not just the direct ones
-		for (AbstractProjectReference ref : root.getAllParentReferences(SELECTOR.PARAMETER, true)) {
-			InheritanceProject par = ref.getProject();
-			if (par == null) { continue; }
-			
+		//The local parameters of each project depend on its version
+		Map<String, Long> vMap = VersionHandler.getVersions();
+		List<String> deps = new ArrayList<String>(scope.size());
+		StringBuilder key = new StringBuilder("scopeTable");
+		for (InheritanceProject par : scope) {
+			String name = par.getFullName();
+			Long v = vMap.get(name);
+			deps.add(name);
+			key.append('|').append(name).append('@').append(
+					(v != null) ? v : par.getStableVersion()
+			);
+		}
+		String bufKey = key.toString();
+		
+		Object obj = scopeTables.get(root, bufKey);
+		if (obj instanceof ScopeTable) {
+			return (ScopeTable) obj;
+		}
+		
+		List<ScopeEntry> lst = new ArrayList<ScopeEntry>();
+		for (InheritanceProject par : scope) {
 			//Grab the LOCALLY defined parameters for the project
 			ParametersDefinitionProperty parPDP = par.getProperty(
 					ParametersDefinitionProperty.class,
@@ -284,20 +431,32 @@ public class ParameterSelector
 			}
 		}
 		
-		//TODO: This should be cached, if possible
-		return lst;
+		ScopeTable table = new ScopeTable(lst);
+		scopeTables.set(root, bufKey, table, deps);
+		return table;
 	}
 	
-	
-	public List<ScopeEntry> getScopedParameterDefinition(InheritanceProject root, String name) {
-		List<ScopeEntry> all = getAllScopedParameterDefinitions(root);
-		List<ScopeEntry> out = new LinkedList<ScopeEntry>();
-		for (ScopeEntry se : all) {
-			String sName = se.param.getName();
-			if (StringUtils.equals(sName, name)) {
-				out.add(se);
-			}
+	/**
+	 * Evicts all buffered {@link ScopeTable}s that were derived from the
+	 * project with the given name.
+	 * 
+	 * @param name the full name of the project that changed. If null, all
+	 * tables are evicted.
+	 */
+	public static void invalidateScopeTables(String name) {
+		if (name == null) {
+			scopeTables.clearAll();
+		} else {
+			scopeTables.invalidate(name);
 		}
-		return out;
+	}
+	
+	/**
+	 * Evicts all buffered {@link ScopeTable}s of the given project object.
+	 * 
+	 * @param root the project whose tables to drop.
+	 */
+	public static void clearScopeTables(InheritanceProject root) {
+		scopeTables.clear(root);
 	}
 }
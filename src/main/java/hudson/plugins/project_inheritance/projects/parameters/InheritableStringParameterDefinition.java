@@ -339,80 +339,143 @@ public class InheritableStringParameterDefinition extends StringParameterDefinit
 	// === VALUE DERIVATION ===
 	
 	public InheritableStringParameterDefinition getMergeWithOther(ParameterDefinition past) {
-		if (!(past instanceof InheritableStringParameterDefinition)) {
-			//Non-inheritable values are always overwritten
-			return this;
-		}
-		InheritableStringParameterDefinition iPast =
-				(InheritableStringParameterDefinition) past;
-		
-		/* NOTE: Due to the way merging works, iPast can never be an
+		/* NOTE: Due to the way merging works, past can never be an
 		 * InheritableStringParameterReferenceDefinition.
 		 * As such, the "reference lookup" can only be from the current
 		 * to the past instance.
 		 */
+		return (InheritableStringParameterDefinition) new Merger().add(past).add(this).get();
+	}
+	
+	/**
+	 * This class merges all definitions of a parameter, in order of their
+	 * inheritance, into the final definition.
+	 * <p>
+	 * The result is the same as repeatedly calling
+	 * {@link InheritableStringParameterDefinition#getMergeWithOther(ParameterDefinition)}
+	 * on the next definition with the result so far; but only the final
+	 * definition is created.
+	 */
+	public static final class Merger {
+		private ParameterDefinition current = null;
+		
+		/**
+		 * Whether {@link #current} was merged with an earlier definition, in
+		 * which case the merged state is held in the fields below.
+		 */
+		private boolean merged = false;
+		
+		private String name;
+		private String value;
+		private String desc;
+		private IModes mode;
+		private boolean mustHaveDefaultValue;
+		private boolean mustBeAssigned;
+		private boolean isHidden;
+		private WhitespaceMode whitespaceMode;
 		
-		//The past version defines the way the value is generated
-		final String newVal;
-		switch (iPast.getInheritanceModeAsVar()) {
-			case OVERWRITABLE:
-				newVal = this.getDefaultValue();
-				break;
+		
+		/**
+		 * Merges the given definition into the result so far.
+		 * 
+		 * @param pd the next definition in order of inheritance. If null,
+		 * it is ignored.
+		 * @return this merger
+		 */
+		public Merger add(ParameterDefinition pd) {
+			if (pd == null) { return this; }
+			if (!(pd instanceof InheritableStringParameterDefinition)) {
+				//Non-inheritable values always overwrite
+				this.current = pd;
+				this.merged = false;
+				return this;
+			}
+			InheritableStringParameterDefinition later =
+					(InheritableStringParameterDefinition) pd;
+			if (!this.merged) {
+				if (!(this.current instanceof InheritableStringParameterDefinition)) {
+					//Inheritable values always overwrite non-inheritable ones
+					this.current = later;
+					return this;
+				}
+				this.load((InheritableStringParameterDefinition) this.current);
+				this.merged = true;
+			}
 			
-			case FIXED:
-				//Use the past value (note: The job will error out later anyway)
-				newVal = iPast.getDefaultValue();
-				break;
+			//The past version defines the way the value is generated
+			final String newVal;
+			switch (this.mode) {
+				case OVERWRITABLE:
+					newVal = later.getDefaultValue();
+					break;
+				
+				case FIXED:
+					//Use the past value (note: The job will error out later anyway)
+					newVal = this.value;
+					break;
+				
+				case EXTENSIBLE:
+					StringBuilder v = new StringBuilder(this.value);
+					if (this.whitespaceMode == WhitespaceMode.ADD_IF_EXTENSION) {
+						v.append(" ");
+					}
+					v.append(later.getDefaultValue());
+					newVal = v.toString();
+					break;
+					
+				default:
+					throw new IllegalArgumentException(
+							"Unknown mode: " + this.mode
+					);
+			}
 			
-			case EXTENSIBLE:
-				StringBuilder v = new StringBuilder(iPast.getDefaultValue());
-				if (iPast.getWhitespaceModeAsVar() == WhitespaceMode.ADD_IF_EXTENSION) {
-					v.append(" ");
+			//Determining the other flags based on whether a reference is used or not
+			if (!(later instanceof InheritableStringParameterReferenceDefinition)) {
+				this.mustHaveDefaultValue |= later.getMustHaveDefaultValue();
+				this.mustBeAssigned |= later.getMustBeAssigned();
+				this.isHidden |= later.getIsHidden();
+				this.mode = later.getInheritanceModeAsVar();
+				this.whitespaceMode = later.getWhitespaceModeAsVar();
+				if (StringUtils.isNotBlank(later.getDescription())) {
+					this.desc = later.getDescription();
 				}
-				v.append(this.getDefaultValue());
-				newVal = v.toString();
-				break;
-				
-			default:
-				throw new IllegalArgumentException(
-						"Unknown mode: " + iPast.getInheritanceModeAsVar()
-				);
+			}
+			this.name = later.getName();
+			this.value = newVal;
+			return this;
 		}
 		
-		//Determining the other flags based on whether a reference is used or not
-		String newDesc;
-		boolean newMustHaveDefaultValue, newMustBeAssigned, newIsHidden;
-		IModes newInheritanceMode;
-		WhitespaceMode newWhitespaceMode;
-		if (this instanceof InheritableStringParameterReferenceDefinition) {
-			newMustHaveDefaultValue = iPast.getMustHaveDefaultValue();
-			newMustBeAssigned = iPast.getMustBeAssigned();
-			newIsHidden = iPast.getIsHidden();
-			newInheritanceMode = iPast.getInheritanceModeAsVar();
-			newWhitespaceMode = iPast.getWhitespaceModeAsVar();
-			newDesc = iPast.getDescription();
-		} else {
-			newMustHaveDefaultValue = this.getMustHaveDefaultValue() || iPast.getMustHaveDefaultValue();
-			newMustBeAssigned = this.getMustBeAssigned() || iPast.getMustBeAssigned();
-			newIsHidden = this.getIsHidden() || iPast.getIsHidden();
-			newInheritanceMode = this.getInheritanceModeAsVar();
-			newWhitespaceMode = this.getWhitespaceModeAsVar();
-			newDesc = (StringUtils.isNotBlank(this.getDescription()))
-					? this.getDescription()
-					: iPast.getDescription();
+		private void load(InheritableStringParameterDefinition ispd) {
+			this.name = ispd.getName();
+			this.value = ispd.getDefaultValue();
+			this.desc = ispd.getDescription();
+			this.mode = ispd.getInheritanceModeAsVar();
+			this.mustHaveDefaultValue = ispd.getMustHaveDefaultValue();
+			this.mustBeAssigned = ispd.getMustBeAssigned();
+			this.isHidden = ispd.getIsHidden();
+			this.whitespaceMode = ispd.getWhitespaceModeAsVar();
 		}
 		
-		//Return the new ISPD
-		return new InheritableStringParameterDefinition(
-				this.getName(),
-				newVal,
-				newDesc,
-				newInheritanceMode,
-				newMustHaveDefaultValue,
-				newMustBeAssigned,
-				newWhitespaceMode,
-				newIsHidden
-		);
+		/**
+		 * @return the final definition. Either one of the added definitions, if
+		 * no merge was necessary, or a new {@link InheritableStringParameterDefinition}.
+		 * Null, if nothing was added.
+		 */
+		public ParameterDefinition get() {
+			if (!this.merged) {
+				return this.current;
+			}
+			return new InheritableStringParameterDefinition(
+					this.name,
+					this.value,
+					this.desc,
+					this.mode,
+					this.mustHaveDefaultValue,
+					this.mustBeAssigned,
+					this.whitespaceMode,
+					this.isHidden
+			);
+		}
 	}
 	
 	/**
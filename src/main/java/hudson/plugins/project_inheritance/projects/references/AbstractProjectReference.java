@@ -20,6 +20,7 @@
  */
 package hudson.plugins.project_inheritance.projects.references;
 
+import java.io.IOException;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
@@ -33,6 +34,7 @@ import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.Stapler;
 import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
 import org.kohsuke.stapler.export.ExportedBean;
 
 import com.google.common.cache.Cache;
@@ -53,6 +55,8 @@ import hudson.plugins.project_inheritance.projects.references.filters.IProjectRe
 import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
 import jenkins.model.Jenkins;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
 
 //TODO: This reference class should be converted to AbstractProject
 @ExportedBean(defaultVisibility=3)
@@ -248,6 +252,12 @@ public abstract class AbstractProjectReference implements Describable<AbstractPr
 	public abstract static class ProjectReferenceDescriptor extends
 			Descriptor<AbstractProjectReference> {
 		
+		/**
+		 * The largest page of names returned by
+		 * {@link #doSearchNames(String, String, int, int, StaplerResponse)}.
+		 */
+		public static final int MAX_NAME_PAGE_SIZE = 200;
+		
 		protected final Cache<String, IProjectReferenceFilter> filters = CacheBuilder.newBuilder()
 				.concurrencyLevel(4)
 				.expireAfterAccess(30, TimeUnit.SECONDS)
@@ -359,18 +369,9 @@ public abstract class AbstractProjectReference implements Describable<AbstractPr
 		 * @return a list of names of compatible jobs. May be empty, but never null.
 		 */
 		public ListBoxModel internalFillNameItems(String targetJob, IProjectReferenceFilter filter) {
-			TreeSet<String> projNames = new TreeSet<String>();
-			for (InheritanceProject ip : InheritanceProject.getProjectsMap().values()) {
-				//We ensure that both are compatible
-				if (!this.projectIsCompatible(ip)) {
-					continue;
-				}
-				//And that the current set-up does not filter out that job
-				if (filter != null && !filter.isApplicable(ip)) {
-					continue;
-				}
-				projNames.add(ip.getFullName());
-			}
+			TreeSet<String> projNames = new TreeSet<String>(
+					ProjectNameIndex.find(this.createNameQuery(filter))
+			);
 			//Adding the previous definition; if any is already present
 			if (targetJob != null) {
 				projNames.add(targetJob);
@@ -383,6 +384,36 @@ public abstract class AbstractProjectReference implements Describable<AbstractPr
 			return model;
 		}
 		
+		/**
+		 * Creates the lookup in the {@link ProjectNameIndex} for the projects
+		 * that are compatible according to
+		 * {@link #projectIsCompatible(Project)} and applicable according to the
+		 * given filter.
+		 * 
+		 * @param filter the filter of the list of jobs. May be null.
+		 * @return a new query, without any prefix or page set.
+		 */
+		protected ProjectNameIndex.Query createNameQuery(IProjectReferenceFilter filter) {
+			ProjectNameIndex.Query q = new ProjectNameIndex.Query()
+					.withTransience(false)
+					.withFilter(filter)
+					.withFilter(new IProjectReferenceFilter() {
+						@Override
+						public boolean isApplicable(InheritanceProject project) {
+							return projectIsCompatible(project);
+						}
+					});
+			//Only the partition of the caller class needs to be searched
+			StaplerRequest req = Stapler.getCurrentRequest();
+			if (req != null) {
+				Job<?,?> currJob = req.findAncestorObject(Job.class);
+				if (currJob != null) {
+					q.withJobClass(currJob.getClass());
+				}
+			}
+			return q;
+		}
+		
 		public ListBoxModel doFillNameItems(
 				@QueryParameter String targetJob,
 				@QueryParameter String filterKey
@@ -394,6 +425,53 @@ public abstract class AbstractProjectReference implements Describable<AbstractPr
 			return this.internalFillNameItems(targetJob, filter);
 		}
 		
+		/**
+		 * Returns a page of the names of permissible references starting with
+		 * the given prefix; so that large instances can fill the reference
+		 * selection incrementally, instead of listing all jobs at once.
+		 * <p>
+		 * The response is a JSON object with the sorted "names" and whether
+		 * there are "more" names after this page.
+		 * 
+		 * @param prefix the start of the full names. May be null or empty.
+		 * @param filterKey the key of the filter of the list of jobs, as
+		 * registered via {@link #addReferenceFilter(String, IProjectReferenceFilter)}.
+		 * @param offset the number of names to skip
+		 * @param limit the size of the page. Capped to {@link #MAX_NAME_PAGE_SIZE}.
+		 * @param rsp the response to write to
+		 * @throws IOException in case the response can't be written
+		 */
+		public void doSearchNames(
+				@QueryParameter String prefix,
+				@QueryParameter String filterKey,
+				@QueryParameter int offset,
+				@QueryParameter int limit,
+				StaplerResponse rsp
+		) throws IOException {
+			IProjectReferenceFilter filter =
+					(filterKey != null && !filterKey.isEmpty())
+							? filters.getIfPresent(filterKey) : null;
+			if (limit <= 0 || limit > MAX_NAME_PAGE_SIZE) {
+				limit = MAX_NAME_PAGE_SIZE;
+			}
+			//Asking for one more name tells whether another page follows
+			List<String> names = ProjectNameIndex.find(
+					this.createNameQuery(filter)
+							.withPrefix(prefix)
+							.withPage(offset, limit + 1)
+			);
+			boolean more = names.size() > limit;
+			if (more) {
+				names = names.subList(0, limit);
+			}
+			
+			JSONObject out = new JSONObject();
+			out.put("names", JSONArray.fromObject(names));
+			out.put("more", more);
+			rsp.setContentType("application/json;charset=UTF-8");
+			rsp.getWriter().print(out.toString());
+		}
+		
 		@SuppressWarnings("rawtypes")
 		public boolean projectIsCompatible(Project p) {
 			if (!(p instanceof InheritanceProject)) {
@@ -0,0 +1,366 @@
+/**
+ * Copyright (c) 2019 Intel Corporation
+ * Copyright (c) 2015-2017 Intel Deutschland GmbH
+ * Copyright (c) 2011-2015 Intel Mobile Communications GmbH
+ *
+ * This file is part of the Inheritance plug-in for Jenkins.
+ *
+ * The Inheritance plug-in is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation in version 3
+ * of the License
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.project_inheritance.projects.references;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Ordering;
+
+import hudson.plugins.project_inheritance.projects.InheritanceProject;
+import hudson.plugins.project_inheritance.projects.references.filters.IProjectReferenceFilter;
+import hudson.plugins.project_inheritance.projects.references.filters.MatingReferenceFilter;
+import hudson.plugins.project_inheritance.projects.references.filters.TransienceFilter;
+
+/**
+ * A sorted index of the names of all {@link InheritanceProject}s, used to
+ * fill the reference drop-downs without scanning all projects.
+ * <p>
+ * The names are partitioned by the Java class of the project, its creation
+ * class and whether it is transient; as these are the criteria of
+ * {@link AbstractProjectReference.ProjectReferenceDescriptor#projectIsCompatible(hudson.model.Project)},
+ * {@link MatingReferenceFilter} and {@link TransienceFilter}. A query thus
+ * only visits the partitions it can match and, within them, only the names
+ * starting with the requested prefix. It stops as soon as the requested page
+ * is full.
+ * <p>
+ * The index is built on first use. A project whose creation class or
+ * references change is moved via {@link #update(InheritanceProject)}; any
+ * creation, rename or deletion drops the whole index via
+ * {@link #invalidate()}, as {@link InheritanceProject#clearProjectsMap()}
+ * does for the map of projects.
+ * <p>
+ * The partitions only narrow down the candidates. Every candidate is still
+ * checked against the live project before it is returned, so a stale entry
+ * can never produce a wrong result.
+ */
+public final class ProjectNameIndex {
+
+	/**
+	 * The names of all projects sharing the same class, creation class and
+	 * transience.
+	 */
+	private static final class Partition {
+		final Class<?> jobClass;
+		final String creationClass;
+		final boolean trans;
+		final NavigableSet<String> names = new ConcurrentSkipListSet<String>();
+
+		Partition(Class<?> jobClass, String creationClass, boolean trans) {
+			this.jobClass = jobClass;
+			this.creationClass = creationClass;
+			this.trans = trans;
+		}
+	}
+
+	/**
+	 * Partitions keyed by {@link #keyOf(InheritanceProject)}. Null, if the
+	 * index needs to be rebuilt.
+	 */
+	private static Map<String, Partition> partitions = null;
+
+	/**
+	 * The key of the partition each name is currently stored in.
+	 */
+	private static Map<String, String> keyByName = null;
+
+	private static final AtomicLong rebuilds = new AtomicLong();
+	private static final AtomicLong queries = new AtomicLong();
+	private static final AtomicLong candidates = new AtomicLong();
+
+
+	private ProjectNameIndex() {
+		//Static utility class
+	}
+
+	private static String keyOf(InheritanceProject ip) {
+		return ip.getClass().getName() + "|" + ip.getCreationClass() + "|" + ip.getIsTransient();
+	}
+
+	/**
+	 * Adds the given project to its partition in the given maps.
+	 */
+	private static void add(
+			Map<String, Partition> parts, Map<String, String> keys,
+			InheritanceProject ip) {
+		String key = keyOf(ip);
+		Partition p = parts.get(key);
+		if (p == null) {
+			p = new Partition(ip.getClass(), ip.getCreationClass(), ip.getIsTransient());
+			parts.put(key, p);
+		}
+		p.names.add(ip.getFullName());
+		keys.put(ip.getFullName(), key);
+	}
+
+	/**
+	 * Removes the given name from its partition. Must be called while
+	 * holding the lock on this class.
+	 */
+	private static void remove(String name) {
+		String key = keyByName.remove(name);
+		if (key == null) { return; }
+		Partition p = partitions.get(key);
+		if (p == null) { return; }
+		p.names.remove(name);
+		if (p.names.isEmpty()) {
+			partitions.remove(key);
+		}
+	}
+
+	@SuppressWarnings("deprecation")
+	private static Collection<Partition> getPartitions() {
+		synchronized (ProjectNameIndex.class) {
+			if (partitions != null) {
+				return new ArrayList<Partition>(partitions.values());
+			}
+		}
+		//Not holding the lock while iterating over all items of Jenkins
+		Map<String, Partition> parts = new HashMap<String, Partition>();
+		Map<String, String> keys = new HashMap<String, String>();
+		for (InheritanceProject ip : InheritanceProject.getProjectsMap().values()) {
+			add(parts, keys, ip);
+		}
+		rebuilds.incrementAndGet();
+		synchronized (ProjectNameIndex.class) {
+			if (partitions == null) {
+				partitions = parts;
+				keyByName = keys;
+			}
+			return new ArrayList<Partition>(partitions.values());
+		}
+	}
+
+	/**
+	 * Moves the given project to the partition matching its current state.
+	 * Does nothing, if the index is not built yet.
+	 *
+	 * @param ip the project whose creation class, transience or name might
+	 * have changed. May be null.
+	 */
+	public static synchronized void update(InheritanceProject ip) {
+		if (ip == null || partitions == null) { return; }
+		remove(ip.getFullName());
+		add(partitions, keyByName, ip);
+	}
+
+	/**
+	 * Drops the whole index; it is rebuilt on the next query.
+	 */
+	public static synchronized void invalidate() {
+		partitions = null;
+		keyByName = null;
+	}
+
+	/**
+	 * Returns the sorted names of the projects matching the given query.
+	 *
+	 * @param q the query. May not be null.
+	 * @return the requested page of names, sorted lexically. May be empty,
+	 * but never null.
+	 */
+	public static List<String> find(Query q) {
+		queries.incrementAndGet();
+		if (q.isEmpty || q.limit == 0) {
+			return Collections.emptyList();
+		}
+
+		//Select the partitions that can match at all
+		List<Iterator<String>> its = new ArrayList<Iterator<String>>();
+		for (Partition p : getPartitions()) {
+			if (q.jobClass != null && q.jobClass != p.jobClass) { continue; }
+			if (q.trans != null && q.trans.booleanValue() != p.trans) { continue; }
+			if (q.creationClasses != null && !q.creationClasses.contains(p.creationClass)) { continue; }
+
+			NavigableSet<String> names = (q.prefix.isEmpty())
+					? p.names
+					: p.names.subSet(q.prefix, true, q.prefix + Character.MAX_VALUE, true);
+			its.add(names.iterator());
+		}
+
+		//Walk the partitions in parallel, in the order of the names
+		Iterator<String> merged = Iterators.mergeSorted(
+				its, Ordering.<String>natural()
+		);
+		List<String> out = new ArrayList<String>();
+		int skip = q.offset;
+		while (merged.hasNext() && (q.limit < 0 || out.size() < q.limit)) {
+			String name = merged.next();
+			candidates.incrementAndGet();
+			//Verifying the live project; the entry might be stale
+			InheritanceProject ip = InheritanceProject.getProjectByName(name);
+			if (ip == null || !q.accepts(ip)) { continue; }
+			if (skip > 0) {
+				skip--;
+				continue;
+			}
+			out.add(name);
+		}
+		return out;
+	}
+
+	/**
+	 * @return the number of partitions and names, and how often the index was
+	 * rebuilt and queried.
+	 */
+	public static synchronized String getStatistics() {
+		return String.format(
+				"partitions=%d, names=%d, rebuilds=%d, queries=%d, candidates=%d",
+				(partitions != null) ? partitions.size() : 0,
+				(keyByName != null) ? keyByName.size() : 0,
+				rebuilds.get(), queries.get(), candidates.get()
+		);
+	}
+
+
+	/**
+	 * The criteria of a lookup in the {@link ProjectNameIndex}.
+	 * <p>
+	 * All criteria are optional. By default, all projects are returned.
+	 */
+	public static final class Query {
+		private Class<?> jobClass = null;
+		private Set<String> creationClasses = null;
+		private Boolean trans = null;
+		private String prefix = "";
+		private int offset = 0;
+		private int limit = -1;
+		private final List<IProjectReferenceFilter> filters =
+				new ArrayList<IProjectReferenceFilter>();
+
+		/**
+		 * Set, if the criteria contradict each other; so that no project can
+		 * ever match.
+		 */
+		private boolean isEmpty = false;
+
+
+		/**
+		 * @param jobClass the exact class of the projects. Null for any class.
+		 * @return this
+		 */
+		public Query withJobClass(Class<?> jobClass) {
+			this.jobClass = jobClass;
+			return this;
+		}
+
+		/**
+		 * @param trans the transience of the projects
+		 * @return this
+		 */
+		public Query withTransience(boolean trans) {
+			if (this.trans != null && this.trans.booleanValue() != trans) {
+				this.isEmpty = true;
+			}
+			this.trans = trans;
+			return this;
+		}
+
+		/**
+		 * Restricts the projects to the given creation classes. Calling this
+		 * more than once narrows the set down further.
+		 *
+		 * @param classes the allowed creation classes
+		 * @return this
+		 */
+		public Query withCreationClasses(Collection<String> classes) {
+			if (this.creationClasses == null) {
+				this.creationClasses = new HashSet<String>(classes);
+			} else {
+				this.creationClasses.retainAll(classes);
+			}
+			if (this.creationClasses.isEmpty()) {
+				this.isEmpty = true;
+			}
+			return this;
+		}
+
+		/**
+		 * @param prefix the start of the full names of the projects. Null or
+		 * empty for any name.
+		 * @return this
+		 */
+		public Query withPrefix(String prefix) {
+			this.prefix = (prefix != null) ? prefix : "";
+			return this;
+		}
+
+		/**
+		 * @param offset the number of matching names to skip
+		 * @param limit the maximum number of names to return. Negative for
+		 * no limit.
+		 * @return this
+		 */
+		public Query withPage(int offset, int limit) {
+			this.offset = Math.max(0, offset);
+			this.limit = limit;
+			return this;
+		}
+
+		/**
+		 * Adds a filter that each project must pass.
+		 * <p>
+		 * The criteria of a {@link MatingReferenceFilter} or
+		 * {@link TransienceFilter} are also used to select the partitions;
+		 * other filters are only checked for each candidate.
+		 *
+		 * @param filter the filter. May be null, in which case this does nothing.
+		 * @return this
+		 */
+		public Query withFilter(IProjectReferenceFilter filter) {
+			if (filter == null) { return this; }
+			if (filter instanceof MatingReferenceFilter) {
+				this.withCreationClasses(
+						((MatingReferenceFilter) filter).getMateClasses()
+				);
+			} else if (filter instanceof TransienceFilter) {
+				this.withTransience(
+						((TransienceFilter) filter).getTransienceValue()
+				);
+			}
+			this.filters.add(filter);
+			return this;
+		}
+
+		boolean accepts(InheritanceProject ip) {
+			if (this.jobClass != null && this.jobClass != ip.getClass()) { return false; }
+			if (this.trans != null && this.trans.booleanValue() != ip.getIsTransient()) { return false; }
+			if (this.creationClasses != null && !this.creationClasses.contains(ip.getCreationClass())) {
+				return false;
+			}
+			for (IProjectReferenceFilter f : this.filters) {
+				if (!f.isApplicable(ip)) { return false; }
+			}
+			return true;
+		}
+	}
+}
@@ -20,6 +20,9 @@
  */
 package hudson.plugins.project_inheritance.projects.references.filters;
 
+import java.util.HashSet;
+import java.util.Set;
+
 import hudson.plugins.project_inheritance.projects.InheritanceProject;
 import hudson.plugins.project_inheritance.projects.creation.ProjectCreationEngine;
 import hudson.plugins.project_inheritance.projects.creation.ProjectCreationEngine.CreationMating;
@@ -67,5 +70,20 @@ public class MatingReferenceFilter implements IProjectReferenceFilter {
 		}
 		return false;
 	}
+	
+	/**
+	 * @return the creation classes the project under reference can mate with.
+	 * Empty, if it has no creation class.
+	 */
+	public Set<String> getMateClasses() {
+		Set<String> out = new HashSet<String>();
+		if (ownClass == null) { return out; }
+		for (CreationMating mate : ProjectCreationEngine.instance.getMatings()) {
+			if (ownClass.equals(mate.firstClass) && mate.secondClass != null) {
+				out.add(mate.secondClass);
+			}
+		}
+		return out;
+	}
 
 }
@@ -44,5 +44,12 @@ public class TransienceFilter implements IProjectReferenceFilter {
 	public boolean isApplicable(InheritanceProject project) {
 		return (project != null && project.getIsTransient() == this.trans);
 	}
+	
+	/**
+	 * @return the state of the transience flag that is kept.
+	 */
+	public boolean getTransienceValue() {
+		return this.trans;
+	}
 
 }
@@ -23,7 +23,7 @@ package hudson.plugins.project_inheritance.projects.versioning;
 import hudson.model.AbstractProject;
 import hudson.plugins.project_inheritance.projects.InheritanceProject;
 import hudson.plugins.project_inheritance.projects.InheritanceProject.InheritedVersionInfo;
-import hudson.plugins.project_inheritance.util.LimitedHashMap;
+import hudson.plugins.project_inheritance.util.DependencyBuffer;
 import hudson.plugins.project_inheritance.util.ThreadAssocStore;
 
 import java.io.UnsupportedEncodingException;
@@ -87,8 +87,20 @@ public class VersionHandler {
 	private static final Pattern leftTrimP = Pattern.compile("^[ \'\"]*");
 	private static final Pattern rightTrimP = Pattern.compile("[ \'\"]*$");
 	
-	public static final Map<String, Map<String, Long>> decodedVersionMaps =
-			new LimitedHashMap<String, Map<String,Long>>(100);
+	/**
+	 * The maximum number of recently en- or decoded version maps to keep.
+	 */
+	private static final int MAX_DECODED_VERSION_MAPS = 1000;
+	
+	/**
+	 * Buffers recently en- and decoded version maps by their URL encoding.
+	 * <p>
+	 * This is read and written from all request and build threads, so it
+	 * must be concurrent. The stored maps are immutable {@link VersionVector}s,
+	 * as they are shared between all callers.
+	 */
+	private static final DependencyBuffer<Object, String> decodedVersionMaps =
+			new DependencyBuffer<Object, String>(-1, MAX_DECODED_VERSION_MAPS);
 	
 	
 	
@@ -326,28 +338,22 @@ public class VersionHandler {
 		return encodeUrlParameter(map);
 	}
 	
+	/**
+	 * Encodes the given versions in a stable form for use in URLs.
+	 * 
+	 * @param in the versions to encode. May be null.
+	 * @return the encoding as per {@link VersionVector#encode()}. Empty if
+	 * no versions were given.
+	 */
 	public static String encodeUrlParameter(Map<String, Long> in) {
-		if (in == null || in.isEmpty()) {
+		VersionVector vec = VersionVector.of(in);
+		if (vec.isEmpty()) {
 			return "";
 		}
-		StringBuilder out = new StringBuilder();
-		for (Entry<String, Long> e : in.entrySet()) {
-			String key = e.getKey();
-			if (key == null || key.isEmpty()) {
-				continue;
-			}
-			out.append(e.getKey());
-			out.append("=");
-			out.append(e.getValue());
-			out.append(";");
-		}
-		if (out.length() > 0) {
-			out.deleteCharAt(out.length()-1);
-		}
-		String raw = out.toString();
+		String raw = vec.encode();
 		
 		//Save the encoded map into the cache; as it should be used quite soon
-		decodedVersionMaps.put(raw, in);
+		decodedVersionMaps.set(null, raw, vec);
 		return raw;
 	}
 	
@@ -358,14 +364,12 @@ public class VersionHandler {
 		}
 		
 		//Check if we already have decoded that string recently
-		Map<String, Long> out = decodedVersionMaps.get(in);
-		if (out != null) {
-			//Making sure that the hashed entry is put to the front in LRU fashion
-			decodedVersionMaps.put(in, out);
-			return out;
-		} else {
-			out = new HashMap<String, Long>();
+		@SuppressWarnings("unchecked")
+		Map<String, Long> cached = (Map<String, Long>) decodedVersionMaps.get(null, in);
+		if (cached != null) {
+			return cached;
 		}
+		Map<String, Long> out = new HashMap<String, Long>();
 		
 		//The input might've been URL encoded; decode these until the string is stable
 		String escaped = in;
@@ -404,10 +408,18 @@ public class VersionHandler {
 			}
 		}
 		
-		//Buffering that entry
-		decodedVersionMaps.put(in, out);
+		//Buffering that entry in its compact form
+		VersionVector vec = VersionVector.of(out);
+		decodedVersionMaps.set(null, in, vec);
 		
-		return out;
+		return vec;
+	}
+	
+	/**
+	 * @return the hit and miss counts of the buffer of decoded version maps.
+	 */
+	public static String getDecodedVersionMapStatistics() {
+		return decodedVersionMaps.toString();
 	}
 	
 	
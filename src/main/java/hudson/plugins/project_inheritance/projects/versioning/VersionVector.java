@@ -0,0 +1,245 @@
+/**
+ * Copyright (c) 2019 Intel Corporation
+ * Copyright (c) 2015-2017 Intel Deutschland GmbH
+ * Copyright (c) 2011-2015 Intel Mobile Communications GmbH
+ *
+ * This file is part of the Inheritance plug-in for Jenkins.
+ *
+ * The Inheritance plug-in is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation in version 3
+ * of the License
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.project_inheritance.projects.versioning;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Items;
+import hudson.model.Run;
+import hudson.util.XStream2;
+import jenkins.model.Jenkins;
+
+/**
+ * An immutable, compact map of project names to versions.
+ * <p>
+ * The names are interned and kept sorted in an array, while the versions
+ * are stored as primitives in a parallel array. This avoids one entry, one
+ * string and one boxed value per project, which adds up quickly when every
+ * retained build carries the versions of all its ancestors.
+ * <p>
+ * The vector has a stable encoding via {@link #encode()}, in the same
+ * <code>proj=ver;proj=ver</code> format that
+ * {@link VersionHandler#decodeUrlParameter(String)} understands; except
+ * that the entries are always sorted by name. The same encoding is used as
+ * the sole content of the XML element, when a vector is serialised via
+ * XStream, by the {@link VersionVectorConverter}.
+ */
+public final class VersionVector extends AbstractMap<String, Long>
+		implements Serializable {
+	private static final long serialVersionUID = -2316440474431012517L;
+
+	public static final VersionVector EMPTY =
+			new VersionVector(new String[0], new long[0]);
+
+	private final String[] names;
+	private final long[] versions;
+
+	private transient Set<Entry<String, Long>> entrySet;
+
+
+	private VersionVector(String[] names, long[] versions) {
+		this.names = names;
+		this.versions = versions;
+	}
+
+	/**
+	 * Creates a vector with the same content as the given map.
+	 * <p>
+	 * Entries with an empty name or no version are skipped, as they could
+	 * not be encoded.
+	 *
+	 * @param map the map to copy. May be null.
+	 * @return the vector. If the map already is one, it is returned as-is.
+	 */
+	public static VersionVector of(Map<String, Long> map) {
+		if (map instanceof VersionVector) {
+			return (VersionVector) map;
+		}
+		if (map == null || map.isEmpty()) {
+			return EMPTY;
+		}
+		TreeMap<String, Long> sorted = new TreeMap<String, Long>();
+		for (Entry<String, Long> e : map.entrySet()) {
+			String name = e.getKey();
+			if (name == null || name.isEmpty() || e.getValue() == null) {
+				continue;
+			}
+			sorted.put(name, e.getValue());
+		}
+		return fromSorted(sorted);
+	}
+
+	/**
+	 * Decodes the result of {@link #encode()}.
+	 * <p>
+	 * Malformed entries are skipped. Since versions are plain numbers, the
+	 * last '=' of each entry separates the name from the version; thus
+	 * names can contain '=' themselves.
+	 *
+	 * @param encoded the encoded vector. May be null.
+	 * @return the decoded vector, never null.
+	 */
+	public static VersionVector decode(String encoded) {
+		if (encoded == null || encoded.isEmpty()) {
+			return EMPTY;
+		}
+		TreeMap<String, Long> sorted = new TreeMap<String, Long>();
+		for (String entry : encoded.split(";")) {
+			int idx = entry.lastIndexOf('=');
+			if (idx <= 0 || idx == entry.length()-1) { continue; }
+			try {
+				sorted.put(
+						entry.substring(0, idx).trim(),
+						Long.valueOf(entry.substring(idx+1).trim())
+				);
+			} catch (NumberFormatException ex) {
+				continue;
+			}
+		}
+		return fromSorted(sorted);
+	}
+
+	private static VersionVector fromSorted(TreeMap<String, Long> sorted) {
+		if (sorted.isEmpty()) { return EMPTY; }
+		String[] names = new String[sorted.size()];
+		long[] versions = new long[sorted.size()];
+		int i = 0;
+		for (Entry<String, Long> e : sorted.entrySet()) {
+			//The same project names recur in countless builds
+			names[i] = e.getKey().intern();
+			versions[i] = e.getValue();
+			i++;
+		}
+		return new VersionVector(names, versions);
+	}
+
+	/**
+	 * @return the stable encoding of this vector, in the form
+	 * <code>proj=ver;proj=ver</code>, sorted by project name.
+	 */
+	public String encode() {
+		StringBuilder out = new StringBuilder();
+		for (int i = 0; i < names.length; i++) {
+			if (i > 0) { out.append(';'); }
+			out.append(names[i]).append('=').append(versions[i]);
+		}
+		return out.toString();
+	}
+
+	private Object readResolve() {
+		//Keeping the interning intact after Java deserialisation
+		for (int i = 0; i < names.length; i++) {
+			names[i] = names[i].intern();
+		}
+		return (names.length == 0) ? EMPTY : this;
+	}
+
+
+	// === MAP METHODS ===
+
+	private int indexOf(Object key) {
+		if (!(key instanceof String)) { return -1; }
+		int idx = Arrays.binarySearch(names, (String) key);
+		return (idx >= 0) ? idx : -1;
+	}
+
+	@Override
+	public int size() {
+		return names.length;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return indexOf(key) >= 0;
+	}
+
+	@Override
+	public Long get(Object key) {
+		int idx = indexOf(key);
+		return (idx >= 0) ? versions[idx] : null;
+	}
+
+	@Override
+	public Set<Entry<String, Long>> entrySet() {
+		if (entrySet == null) {
+			entrySet = new AbstractSet<Entry<String, Long>>() {
+				@Override
+				public Iterator<Entry<String, Long>> iterator() {
+					return new Iterator<Entry<String, Long>>() {
+						private int i = 0;
+
+						public boolean hasNext() {
+							return i < names.length;
+						}
+
+						public Entry<String, Long> next() {
+							if (i >= names.length) {
+								throw new NoSuchElementException();
+							}
+							Entry<String, Long> e = new SimpleImmutableEntry<String, Long>(
+									names[i], versions[i]
+							);
+							i++;
+							return e;
+						}
+
+						public void remove() {
+							throw new UnsupportedOperationException();
+						}
+					};
+				}
+
+				@Override
+				public int size() {
+					return names.length;
+				}
+			};
+		}
+		return entrySet;
+	}
+
+
+	// === SERIALISATION ===
+
+	@Initializer(before=InitMilestone.PLUGINS_STARTED)
+	public static void initializeXStream() {
+		VersionVectorConverter conv = new VersionVectorConverter();
+
+		final XStream2[] xs = {
+				Jenkins.XSTREAM2, Run.XSTREAM2, Items.XSTREAM2
+		};
+		for (XStream2 x : xs) {
+			//Short alias, since the class name appears in every build record
+			x.alias("versionVector", VersionVector.class);
+			x.registerConverter(conv);
+		}
+	}
+}
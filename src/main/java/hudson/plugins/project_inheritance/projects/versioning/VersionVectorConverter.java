@@ -0,0 +1,61 @@
+/**
+ * Copyright (c) 2019 Intel Corporation
+ * Copyright (c) 2015-2017 Intel Deutschland GmbH
+ * Copyright (c) 2011-2015 Intel Mobile Communications GmbH
+ *
+ * This file is part of the Inheritance plug-in for Jenkins.
+ *
+ * The Inheritance plug-in is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation in version 3
+ * of the License
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.project_inheritance.projects.versioning;
+
+import com.thoughtworks.xstream.converters.Converter;
+import com.thoughtworks.xstream.converters.MarshallingContext;
+import com.thoughtworks.xstream.converters.UnmarshallingContext;
+import com.thoughtworks.xstream.io.HierarchicalStreamReader;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+
+/**
+ * Serialises a {@link VersionVector} as a single text node holding its
+ * {@link VersionVector#encode()}d form; instead of one XML element per
+ * entry, name and version.
+ * <p>
+ * Do note that this converter is registered by the {@link VersionVector}
+ * class itself.
+ */
+/*package*/ class VersionVectorConverter implements Converter {
+
+	@SuppressWarnings("rawtypes")
+	@Override
+	public boolean canConvert(Class type) {
+		if (type == null) { return false; }
+		return type.equals(VersionVector.class);
+	}
+
+	@Override
+	public void marshal(
+			Object source,
+			HierarchicalStreamWriter writer,
+			MarshallingContext context) {
+		if (!(source instanceof VersionVector)) {
+			return;
+		}
+		writer.setValue(((VersionVector) source).encode());
+	}
+
+	@Override
+	public Object unmarshal(HierarchicalStreamReader reader, UnmarshallingContext context) {
+		return VersionVector.decode(reader.getValue());
+	}
+}
@@ -21,13 +21,12 @@
 package hudson.plugins.project_inheritance.projects.view;
 
 import java.io.File;
+import java.io.ByteArrayOutputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.charset.Charset;
 import java.util.Collections;
-import java.util.Deque;
-import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -37,17 +36,20 @@ import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 import java.util.zip.GZIPOutputStream;
 
+import javax.servlet.ServletException;
+
 import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.output.CloseShieldOutputStream;
 import org.apache.commons.lang.StringUtils;
 import org.apache.tools.tar.TarEntry;
 import org.apache.tools.tar.TarOutputStream;
 import org.kohsuke.stapler.HttpResponse;
 import org.kohsuke.stapler.Stapler;
 import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
 
 import hudson.EnvVars;
 import hudson.Extension;
-import hudson.Util;
 import hudson.init.InitMilestone;
 import hudson.init.Initializer;
 import hudson.model.AbstractBuild;
@@ -66,8 +68,11 @@ import hudson.plugins.project_inheritance.projects.InheritanceBuild;
 import hudson.plugins.project_inheritance.projects.InheritanceProject;
 import hudson.plugins.project_inheritance.projects.InheritanceProject.IMode;
 import hudson.plugins.project_inheritance.projects.versioning.VersionHandler;
+import hudson.plugins.project_inheritance.projects.versioning.VersionVector;
 import hudson.plugins.project_inheritance.projects.view.scripts.MetaScript;
+import hudson.plugins.project_inheritance.util.OrderedResolver;
 import hudson.plugins.project_inheritance.util.PathMapping;
+import hudson.plugins.project_inheritance.util.TimedBuffer;
 import hudson.tasks.Builder;
 import hudson.util.ListBoxModel;
 import hudson.util.XStream2;
@@ -88,6 +93,19 @@ public class BuildFlowScriptAction
 	
 	private static final String LABEL_DISPLAY_NAME = "Full Build Flow";
 	
+	/**
+	 * If true, the generated archives are kept for a few minutes; keyed by
+	 * the build and the versions it used. This speeds up repeated downloads
+	 * of the same build, at the cost of keeping the compressed archives on
+	 * the heap.
+	 */
+	public static boolean CACHE_ARCHIVES = Boolean.getBoolean(
+			BuildFlowScriptAction.class.getName() + ".cacheArchives"
+	);
+	
+	private static final TimedBuffer<String, String> archiveCache =
+			new TimedBuffer<String, String>(10 * 60 * 1000, 20);
+	
 	
 	private transient AbstractBuild<?,?> build;
 	
@@ -207,10 +225,15 @@ public class BuildFlowScriptAction
 	/**
 	 * Creates an {@link HttpResponse} that will send a TGZ containing build
 	 * scripts.
+	 * <p>
+	 * The archive is streamed directly into the response, one script after
+	 * the other; it is neither written to a temporary file nor assembled on
+	 * the heap. See {@link #CACHE_ARCHIVES} for keeping archives around for
+	 * repeated downloads.
 	 * 
-	 * @return null, if the file could not be generated, otherwise a valid {@link HttpResponse}.
+	 * @return null, if the scripts could not be generated, otherwise a valid {@link HttpResponse}.
 	 */
-	public ReadOnlyConfigurationArchive doDownload() {
+	public HttpResponse doDownload() {
 		AbstractProject<?,?> proj = this.getProject();
 		AbstractBuild<?,?> build = this.getBuild();
 		
@@ -221,28 +244,34 @@ public class BuildFlowScriptAction
 					? ((InheritanceBuild)build).getProjectVersions()
 					: null;
 		}
-		if (versions != null) {
-			VersionHandler.initVersions(versions);
-		}
 		
 		String name = (build != null)
 				? String.format("%s_%d", proj.getFullName(), build.getNumber())
 				: proj.getFullName();
 		name = PathMapping.getSafePath(name);
+		final String fileName = name + ".tgz";
+		
+		//Check if the same archive was generated recently
+		final String cacheId = (build != null) ? build.getExternalizableId() : null;
+		final String cacheKey = VersionVector.of(versions).encode();
+		if (CACHE_ARCHIVES && cacheId != null) {
+			Object cached = archiveCache.get(cacheId, cacheKey);
+			if (cached instanceof byte[]) {
+				return new ArchiveResponse(fileName, null, (byte[]) cached);
+			}
+		}
 		
+		final List<MetaScript> scripts;
+		if (versions != null) {
+			VersionHandler.initVersions(versions);
+		}
 		try {
-			File archive = this.generateExecutableCompoundScript(
+			scripts = this.generateScripts(
 					build,
 					this.getBuildersFor(proj),
-					name,
 					getResolvedBuildParameters(this.getBuild())
 			);
-			String ext = FilenameUtils.getExtension(archive.getName());
-			return new ReadOnlyConfigurationArchive(
-					String.format("%s.%s", name, ext),
-					archive
-			);
-		} catch (IOException ex) {
+		} catch (RuntimeException ex) {
 			log.warning(String.format(
 					"Failed to generate script download for %s. Reason: %s",
 					build,
@@ -252,6 +281,54 @@ public class BuildFlowScriptAction
 		} finally {
 			VersionHandler.clearVersions();
 		}
+		
+		if (CACHE_ARCHIVES && cacheId != null) {
+			try {
+				ByteArrayOutputStream baos = new ByteArrayOutputStream();
+				writeTgzArchive(baos, scripts);
+				byte[] archive = baos.toByteArray();
+				archiveCache.set(cacheId, cacheKey, archive);
+				return new ArchiveResponse(fileName, null, archive);
+			} catch (IOException ex) {
+				log.warning(String.format(
+						"Failed to generate script download for %s. Reason: %s",
+						build,
+						ex.getMessage()
+				));
+				return null;
+			}
+		}
+		return new ArchiveResponse(fileName, scripts, null);
+	}
+	
+	/**
+	 * Sends a TGZ of build scripts; either by streaming the scripts into it
+	 * or by sending an already generated archive.
+	 */
+	private static class ArchiveResponse implements HttpResponse {
+		private final String fileName;
+		private final List<MetaScript> scripts;
+		private final byte[] archive;
+		
+		public ArchiveResponse(String fileName, List<MetaScript> scripts, byte[] archive) {
+			this.fileName = fileName;
+			this.scripts = scripts;
+			this.archive = archive;
+		}
+		
+		public void generateResponse(StaplerRequest req, StaplerResponse rsp, Object node)
+				throws IOException, ServletException {
+			rsp.setContentType("application/x-gzip");
+			rsp.setHeader("Content-Disposition", "attachment; filename=" + fileName);
+			OutputStream os = rsp.getOutputStream();
+			if (archive != null) {
+				rsp.setContentLength(archive.length);
+				os.write(archive);
+			} else {
+				writeTgzArchive(os, scripts);
+			}
+			os.flush();
+		}
 	}
 	
 	
@@ -281,6 +358,43 @@ public class BuildFlowScriptAction
 			String archiveName,
 			Map<String, String> params
 	) throws IOException {
+		List<MetaScript> scripts = this.generateScripts(build, builders, params);
+		
+		//Create a TGZ file for the user to download
+		File dstFile = File.createTempFile(archiveName + "_", ".tgz");
+		if (dstFile.getParentFile() != null) {
+			dstFile.getParentFile().mkdirs();
+		}
+		
+		//Dump all scripts into a TGZ for the user to download
+		try {
+			this.createTgzArchive(dstFile, scripts);
+		} catch (IOException ex) {
+			// The file could not be generated
+			log.warning(String.format(
+					"Failed to generate script files for %s. Reason: %s",
+					build,
+					ex.getMessage()
+			));
+			return null;
+		}
+		return dstFile;
+	}
+	
+	/**
+	 * Converts the given builders into scripts and adds the Bash and Windows
+	 * control files that call them.
+	 * 
+	 * @param build the build whose scripts to generate
+	 * @param builders the builders to convert
+	 * @param params the parameters of the build
+	 * @return the scripts, ending with the two control files.
+	 */
+	public List<MetaScript> generateScripts(
+			AbstractBuild<?,?> build,
+			List<Builder> builders,
+			Map<String, String> params
+	) {
 		//Allow extensions to filter the environment variables
 		params = BuildFlowScriptExtension.filterEnv(params);
 		
@@ -313,26 +427,7 @@ public class BuildFlowScriptAction
 		//Add the two control scripts (which stay callable)
 		scripts.add(bashCtrl);
 		scripts.add(cmdCtrl);
-		
-		//Create a TGZ file for the user to download
-		File dstFile = File.createTempFile(archiveName + "_", ".tgz");
-		if (dstFile.getParentFile() != null) {
-			dstFile.getParentFile().mkdirs();
-		}
-		
-		//Dump all scripts into a TGZ for the user to download
-		try {
-			this.createTgzArchive(dstFile, scripts);
-		} catch (IOException ex) {
-			// The file could not be generated
-			log.warning(String.format(
-					"Failed to generate script files for %s. Reason: %s",
-					build,
-					ex.getMessage()
-			));
-			return null;
-		}
-		return dstFile;
+		return scripts;
 	}
 	
 	/**
@@ -494,9 +589,25 @@ public class BuildFlowScriptAction
 	
 	public void createTgzArchive(File dstFile, List<MetaScript> scripts)
 			throws IOException {
-		//Creating the output ZipFile
 		FileOutputStream fos = new FileOutputStream(dstFile);
-		GZIPOutputStream gzos = new GZIPOutputStream(fos);
+		try {
+			writeTgzArchive(fos, scripts);
+		} finally {
+			fos.close();
+		}
+	}
+	
+	/**
+	 * Writes the given scripts as a TGZ into the given stream; one entry at
+	 * a time. The stream itself is not closed.
+	 * 
+	 * @param os the stream to write to
+	 * @param scripts the scripts to archive
+	 * @throws IOException in case writing to the stream failed
+	 */
+	public static void writeTgzArchive(OutputStream os, List<MetaScript> scripts)
+			throws IOException {
+		GZIPOutputStream gzos = new GZIPOutputStream(new CloseShieldOutputStream(os));
 		TarOutputStream tos = new TarOutputStream(gzos);
 		tos.setLongFileMode(TarOutputStream.LONGFILE_GNU);
 		
@@ -519,9 +630,8 @@ public class BuildFlowScriptAction
 				tos.closeEntry();
 			}
 		} finally {
-			if (tos != null) {
-				tos.close();
-			}
+			//Finishes the TAR and GZIP trailers, but leaves the stream open
+			tos.close();
 		}
 	}
 	
@@ -563,30 +673,15 @@ public class BuildFlowScriptAction
 		//And some that Jenkins adds only for build hosts
 		result.put("JENKINS_HOME", Jenkins.get().getRootDir().getAbsolutePath());
 		
-		//Repeatedly resolve values, until all values are stable
-		//or the same key has been resolved >10 times
-		Map<String, Integer> seen = new HashMap<>();
-		Deque<String> open = new LinkedList<>(result.keySet());
-		while (!open.isEmpty()) {
-			String key = open.pop();
-			String value = result.get(key);
-			//Trying to substitute variables
-			String resolved = Util.replaceMacro(value, result);
-			if (!resolved.equals(value)) {
-				//A value has been substituted, replace value
-				result.put(key, resolved);
-				
-				//Check if recursion depth for that key was reached
-				//If not, schedule it for another round
-				Integer depth = seen.get(key);
-				if (depth == null) { depth = 0; }
-				if (depth < 10) {
-					seen.put(key, depth+1);
-					open.addLast(key);
-				}
-			}
+		//Resolve the values in the order they reference each other
+		OrderedResolver resolver = new OrderedResolver(result);
+		result = resolver.resolveAll();
+		if (!resolver.getCyclicVariables().isEmpty()) {
+			log.fine(String.format(
+					"Variables of %s reference themselves: %s",
+					build, resolver.getCyclicVariables()
+			));
 		}
-		
 		return result;
 	}
 	
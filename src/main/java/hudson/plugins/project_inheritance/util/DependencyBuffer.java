@@ -0,0 +1,280 @@
+/**
+ * Copyright (c) 2019 Intel Corporation
+ * Copyright (c) 2015-2017 Intel Deutschland GmbH
+ * Copyright (c) 2011-2015 Intel Mobile Communications GmbH
+ *
+ * This file is part of the Inheritance plug-in for Jenkins.
+ *
+ * The Inheritance plug-in is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation in version 3
+ * of the License
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.project_inheritance.util;
+
+import java.util.AbstractMap;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+
+/**
+ * A {@link TimedBuffer} in which each value can record the names of the
+ * dependencies (usually projects) it was derived from.
+ * <p>
+ * A change to one dependency can then be handled via {@link #invalidate(String)},
+ * which evicts exactly those values that were derived from it; instead of
+ * having to clear the whole buffer.
+ * <p>
+ * Values stored without dependencies behave exactly as in a plain
+ * {@link TimedBuffer}; they are only removed explicitly or by clearing.
+ * <p>
+ * Storing a value and recording its dependencies happens atomically with
+ * respect to invalidation and clearing; so that a concurrent invalidation
+ * can never miss a value that is being stored.
+ * <p>
+ * This class also counts hits, misses and evictions; so that the
+ * effectiveness of the buffer can be observed at runtime.
+ *
+ * @param <O> the type of the objects that values are associated with
+ * @param <K> the type of the keys of the values
+ */
+public class DependencyBuffer<O, K> extends TimedBuffer<O, K> {
+
+	/**
+	 * Maps the name of each dependency to the slots of all values that
+	 * were derived from it. May contain slots that were since removed or
+	 * overwritten; these are ignored on invalidation.
+	 */
+	private final ConcurrentHashMap<String, Set<Entry<O, K>>> dependents =
+			new ConcurrentHashMap<String, Set<Entry<O, K>>>();
+
+	/**
+	 * Maps each slot to the dependencies of the value currently stored there.
+	 */
+	private final ConcurrentHashMap<Entry<O, K>, Set<String>> dependencies =
+			new ConcurrentHashMap<Entry<O, K>, Set<String>>();
+
+	/**
+	 * Held shared while storing a value along with its dependencies, and
+	 * exclusively while evicting values by their dependencies or objects.
+	 */
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+
+	/**
+	 * Creates a dependency buffer that does not make use of a timeout
+	 */
+	public DependencyBuffer() {
+		super();
+	}
+
+	/**
+	 * Creates a dependency buffer with the given timeout in milliseconds.
+	 * If this value is zero or negative, no timeout will be used.
+	 *
+	 * @param timeoutMillis timeout in milliseconds.
+	 */
+	public DependencyBuffer(long timeoutMillis) {
+		super(timeoutMillis);
+	}
+
+	/**
+	 * Creates a dependency buffer with the given timeout in milliseconds and
+	 * the given maximum number of entries.
+	 *
+	 * @param timeoutMillis timeout in milliseconds. If this value is zero or
+	 * negative, no timeout will be used.
+	 * @param maxEntries the number of entries above which the least recently
+	 * used ones are evicted. If zero or negative, the size is unbounded.
+	 */
+	public DependencyBuffer(long timeoutMillis, int maxEntries) {
+		super(timeoutMillis, maxEntries);
+	}
+
+
+	@Override
+	public Entry<Object, Long> getWithTimestamp(O obj, K key) {
+		Entry<Object, Long> entry = super.getWithTimestamp(obj, key);
+		if (entry != null) {
+			hits.incrementAndGet();
+		} else {
+			misses.incrementAndGet();
+		}
+		return entry;
+	}
+
+	@Override
+	public void set(O obj, K key, Object value) {
+		this.set(obj, key, value, null);
+	}
+
+	/**
+	 * Stores the given value and records the dependencies it was derived from.
+	 *
+	 * @param obj the object the value is associated with. May be null.
+	 * @param key the key of the value
+	 * @param value the value to store
+	 * @param deps the names of all dependencies the value was derived from.
+	 * May be null or empty, in which case no dependency is recorded.
+	 */
+	public void set(O obj, K key, Object value, Collection<String> deps) {
+		Entry<O, K> slot = new AbstractMap.SimpleImmutableEntry<O, K>(obj, key);
+		lock.readLock().lock();
+		try {
+			if (deps == null || deps.isEmpty()) {
+				dependencies.remove(slot);
+			} else {
+				Set<String> depSet = Collections.unmodifiableSet(new HashSet<String>(deps));
+				dependencies.put(slot, depSet);
+				for (String dep : depSet) {
+					Set<Entry<O, K>> slots = dependents.get(dep);
+					if (slots == null) {
+						Set<Entry<O, K>> nSlots = ConcurrentHashMap.newKeySet();
+						slots = dependents.putIfAbsent(dep, nSlots);
+						if (slots == null) { slots = nSlots; }
+					}
+					slots.add(slot);
+				}
+			}
+			super.set(obj, key, value);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Removes all values that were recorded as having been derived from the
+	 * given dependency.
+	 *
+	 * @param dep the name of the dependency that changed
+	 * @return the number of values that were evicted
+	 */
+	public int invalidate(String dep) {
+		if (dep == null) { return 0; }
+		int cnt = 0;
+		lock.writeLock().lock();
+		try {
+			Set<Entry<O, K>> slots = dependents.remove(dep);
+			if (slots == null) { return 0; }
+
+			for (Entry<O, K> slot : slots) {
+				Set<String> deps = dependencies.get(slot);
+				//The slot might have been overwritten with unrelated dependencies
+				if (deps == null || !deps.contains(dep)) { continue; }
+				dependencies.remove(slot, deps);
+				if (super.remove(slot.getKey(), slot.getValue())) {
+					cnt++;
+				}
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+		evictions.addAndGet(cnt);
+		return cnt;
+	}
+
+	@Override
+	public boolean remove(O obj, K key) {
+		this.forget(obj, key);
+		return super.remove(obj, key);
+	}
+
+	@Override
+	protected void onEvicted(O obj, K key) {
+		this.forget(obj, key);
+	}
+
+	/**
+	 * Drops the recorded dependencies of the given slot.
+	 */
+	private void forget(O obj, K key) {
+		Entry<O, K> slot = new AbstractMap.SimpleImmutableEntry<O, K>(obj, key);
+		Set<String> deps = dependencies.remove(slot);
+		if (deps == null) { return; }
+		for (String dep : deps) {
+			Set<Entry<O, K>> slots = dependents.get(dep);
+			if (slots != null) { slots.remove(slot); }
+		}
+	}
+
+	@Override
+	public void clear(O obj) {
+		lock.writeLock().lock();
+		try {
+			//Only the slots of that object can have recorded dependencies
+			Set<K> keys = super.getKeys(obj);
+			super.clear(obj);
+			for (K key : keys) {
+				this.forget(obj, key);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	@Override
+	public void clearAll() {
+		lock.writeLock().lock();
+		try {
+			super.clearAll();
+			dependencies.clear();
+			dependents.clear();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+
+	// === STATISTICS ===
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return the fraction of lookups that found a value; or 0 if there
+	 * were no lookups yet.
+	 */
+	public double getHitRate() {
+		long h = hits.get();
+		long total = h + misses.get();
+		return (total > 0) ? ((double) h / total) : 0;
+	}
+
+	/**
+	 * @return the number of values evicted through {@link #invalidate(String)}.
+	 */
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"hits=%d, misses=%d, hitRate=%.3f, evictions=%d",
+				hits.get(), misses.get(), this.getHitRate(), evictions.get()
+		);
+	}
+}
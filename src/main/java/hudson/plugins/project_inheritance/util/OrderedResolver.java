@@ -0,0 +1,167 @@
+/**
+ * Copyright (c) 2019 Intel Corporation
+ * Copyright (c) 2015-2017 Intel Deutschland GmbH
+ * Copyright (c) 2011-2015 Intel Mobile Communications GmbH
+ *
+ * This file is part of the Inheritance plug-in for Jenkins.
+ *
+ * The Inheritance plug-in is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation in version 3
+ * of the License
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.project_inheritance.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import hudson.EnvVars;
+import hudson.Util;
+import hudson.util.VariableResolver;
+
+/**
+ * Resolves variables that reference each other, by substituting each value
+ * exactly once.
+ * <p>
+ * Unlike {@link Resolver}, which applies {@link Util#replaceMacro(String, Map)}
+ * repeatedly until nothing changes, this class first resolves all variables
+ * referenced by a value and only then substitutes them into it. This walks
+ * the graph of references depth-first; so the variables are resolved in
+ * topological order and, as the substituted values are already final, every
+ * value is rewritten exactly once. Variables are resolved on demand and
+ * buffered, so asking for a single one only resolves what it depends on.
+ * <p>
+ * References that form a cycle are detected and left in place at the point
+ * where the cycle closes; see {@link #getCyclicVariables()}. References to
+ * unknown variables are left in place, too.
+ * <p>
+ * If the variables are given as a {@link SortedMap}, names are looked up
+ * with its comparator. Thus, the case-insensitive names of {@link EnvVars}
+ * stay case-insensitive.
+ * <p>
+ * Instances are not thread-safe.
+ */
+public class OrderedResolver implements VariableResolver<String> {
+	/**
+	 * The comparator of the names; null for their natural order.
+	 */
+	private final Comparator<? super String> cmp;
+	private final TreeMap<String, String> raw;
+	private final Map<String, String> resolved = new HashMap<String, String>();
+
+	/**
+	 * The variables currently being resolved, from the outermost to the
+	 * innermost one.
+	 */
+	private final List<String> stack = new ArrayList<String>();
+	private final Set<String> cyclic = new TreeSet<String>();
+
+
+	/**
+	 * @param vars the variables to resolve. They are copied, so later
+	 * changes to the map have no effect. If it is a {@link SortedMap}, its
+	 * comparator is used to look up names.
+	 */
+	public OrderedResolver(Map<String, String> vars) {
+		this.cmp = (vars instanceof SortedMap)
+				? ((SortedMap<String, String>) vars).comparator()
+				: null;
+		this.raw = new TreeMap<String, String>(this.cmp);
+		this.raw.putAll(vars);
+	}
+
+	/**
+	 * @return the name under which the given variable is stored; which
+	 * differs from the name itself, if the comparator ignores case.
+	 */
+	private String canonical(String name) {
+		if (this.cmp == null) { return name; }
+		String key = this.raw.floorKey(name);
+		return (key != null && this.cmp.compare(key, name) == 0) ? key : name;
+	}
+
+	/**
+	 * Returns the fully resolved value of the given variable.
+	 *
+	 * @param name the name of the variable
+	 * @return the resolved value, or null if the variable is unknown or is
+	 * still being resolved; which means that it was reached via a cycle.
+	 */
+	public String resolve(String name) {
+		if (name == null) { return null; }
+		name = this.canonical(name);
+		String out = this.resolved.get(name);
+		if (out != null || !this.raw.containsKey(name)) {
+			return out;
+		}
+		int idx = this.stack.indexOf(name);
+		if (idx >= 0) {
+			//All variables from there on reference each other
+			this.cyclic.addAll(this.stack.subList(idx, this.stack.size()));
+			return null;
+		}
+
+		String value = this.raw.get(name);
+		if (value == null) { return null; }
+
+		this.stack.add(name);
+		try {
+			//The referenced variables are resolved in the course of this
+			out = Util.replaceMacro(value, this);
+		} finally {
+			this.stack.remove(this.stack.size() - 1);
+		}
+		this.resolved.put(name, out);
+		return out;
+	}
+
+	/**
+	 * Substitutes the resolved variables into the given string.
+	 *
+	 * @param in the string to resolve. May be null.
+	 * @return the resolved string. Null, if the input was null.
+	 */
+	public String resolveString(String in) {
+		if (in == null) { return null; }
+		return Util.replaceMacro(in, this);
+	}
+
+	/**
+	 * Resolves all variables.
+	 *
+	 * @return a new map of all variables to their resolved values, sorted by
+	 * name with the comparator of the given variables.
+	 */
+	public Map<String, String> resolveAll() {
+		Map<String, String> out = new TreeMap<String, String>(this.cmp);
+		for (Map.Entry<String, String> e : this.raw.entrySet()) {
+			String value = this.resolve(e.getKey());
+			out.put(e.getKey(), (value != null) ? value : e.getValue());
+		}
+		return out;
+	}
+
+	/**
+	 * @return the names of all variables resolved so far that were found to
+	 * reference themselves; directly or through other variables.
+	 */
+	public Set<String> getCyclicVariables() {
+		return Collections.unmodifiableSet(this.cyclic);
+	}
+}
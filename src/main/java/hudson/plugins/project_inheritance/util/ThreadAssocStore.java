@@ -20,10 +20,12 @@
  */
 package hudson.plugins.project_inheritance.util;
 
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Set;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 
@@ -39,9 +41,16 @@ import java.util.logging.Logger;
  * content will be removed after the thread ends. If you need earlier release,
  * just overwrite the values with a null.
  * <p>
- * Do note that this class will purge the map from dead threads every
- * minutes as long as threads are being added. This is done to prevent the held
- * Threads from not being garbage-collected.
+ * The values of each thread are held in a {@link ThreadLocal}, so that
+ * access from the thread itself takes no lock at all. To still permit
+ * access to the values of other threads, each thread's map is registered
+ * once in a map with weak keys; so that dead threads are never held.
+ * <p>
+ * Values do not propagate to other threads on their own. Code that hands
+ * work to another thread (e.g. the queue or an executor) must pass along
+ * what it needs explicitly -- as builds do via their versioning action.
+ * Use {@link #snapshot()} to restore the values of the current thread after
+ * such a hand-over changed them.
  * 
  * @author Martin Schroeder
  *
@@ -55,13 +64,25 @@ public class ThreadAssocStore {
 	);
 	
 	
-	private final HashMap<Thread, HashMap<String, Object>> map =
-			new HashMap<Thread, HashMap<String,Object>>();
-	
-	private ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private final ThreadLocal<ConcurrentHashMap<String, Object>> local =
+			new ThreadLocal<ConcurrentHashMap<String, Object>>() {
+		@Override
+		protected ConcurrentHashMap<String, Object> initialValue() {
+			ConcurrentHashMap<String, Object> subMap =
+					new ConcurrentHashMap<String, Object>();
+			synchronized (registry) {
+				registry.put(Thread.currentThread(), subMap);
+			}
+			return subMap;
+		}
+	};
 	
-	private transient Long lastCleanupTime;
-	private final static Long cleanupTimeout = 1L * 60 * 1000; // 1 minute
+	/**
+	 * The maps of all threads that used this store. Only used for access
+	 * to the values of other threads.
+	 */
+	private final WeakHashMap<Thread, ConcurrentHashMap<String, Object>> registry =
+			new WeakHashMap<Thread, ConcurrentHashMap<String,Object>>();
 	
 	/**
 	 * Constructor used by the Extension annotation.
@@ -81,27 +102,35 @@ public class ThreadAssocStore {
 		return instance;
 	}
 	
+	/**
+	 * @param t the thread
+	 * @return the map of values of the given thread. Created on demand for
+	 * the current thread; null for other threads that never used this store.
+	 */
+	private ConcurrentHashMap<String, Object> getMap(Thread t) {
+		if (t == Thread.currentThread()) {
+			//The hot path; does not need any lock
+			return local.get();
+		}
+		synchronized (registry) {
+			return registry.get(t);
+		}
+	}
+	
 	public void setValue(Thread t, String key, Object value) {
-		//Execute cleanup; will only do something every once in a while
-		this.cleanup();
-		// Fetching a write lock
-		lock.writeLock().lock();
-		try {
+		if (log.isLoggable(Level.FINEST)) {
 			log.finest("SET value for: " + key + " on " + t.toString());
-			HashMap<String, Object> subMap = map.get(t);
-			if (subMap == null) {
-				subMap = new HashMap<String, Object>();
-				map.put(t, subMap);
-			}
-			if (value == null) {
-				subMap.remove(key);
-			} else {
-				subMap.put(key, value);
-			}
-		} finally {
-			// Releasing the write lock
-			lock.writeLock().unlock();
 		}
+		if (value == null) {
+			this.clear(t, key);
+			return;
+		}
+		ConcurrentHashMap<String, Object> subMap = this.getMap(t);
+		if (subMap == null) {
+			//Values can't be planted into foreign threads that never used the store
+			return;
+		}
+		subMap.put(key, value);
 	}
 	
 	public void setValue(String key, Object value) {
@@ -109,54 +138,35 @@ public class ThreadAssocStore {
 	}
 	
 	public Object getValue(Thread t, String key) {
-		lock.readLock().lock();
-		try {
+		if (log.isLoggable(Level.FINEST)) {
 			log.finest("GET value for: " + key + " on " + t.toString());
-			HashMap<String, Object> subMap = map.get(t);
-			if (subMap == null) { return null; }
-			return subMap.get(key);
-		} finally {
-			lock.readLock().unlock();
 		}
+		ConcurrentHashMap<String, Object> subMap = this.getMap(t);
+		if (subMap == null) { return null; }
+		return subMap.get(key);
 	}
 	
 	public Object getValue(String key) {
 		return this.getValue(Thread.currentThread(), key);
 	}
 	
+	/**
+	 * Removes the entries of dead threads.
+	 * <p>
+	 * Calling this is not necessary, as entries are held weakly and thus
+	 * disappear together with their threads.
+	 */
 	public void cleanup() {
-		lock.writeLock().lock();
-		try {
-			//Check if cleaning timeout has been reached
-			if (this.lastCleanupTime == null) {
-				this.lastCleanupTime = System.currentTimeMillis();
-				return;
-			}
-			long delta = System.currentTimeMillis() - this.lastCleanupTime;
-			if (delta < cleanupTimeout) { return; }
-			this.lastCleanupTime = System.currentTimeMillis();
-			
-			//Executing the clean-up
-			Set<Thread> keys = map.keySet();
-			Iterator<Thread> iter = keys.iterator();
-			while (iter.hasNext()) {
-				Thread t = iter.next();
-				if (!t.isAlive()) {
-					iter.remove();
-				}
-			}
-		} finally {
-			lock.writeLock().unlock();
+		synchronized (registry) {
+			//Accessing the weak map expunges all stale entries
+			registry.size();
 		}
 	}
 	
 	public void clear(Thread t) {
-		lock.writeLock().lock();
-		try {
-			map.remove(t);
-		} finally {
-			lock.writeLock().unlock();
-		}
+		ConcurrentHashMap<String, Object> subMap = this.getMap(t);
+		if (subMap == null) { return; }
+		subMap.clear();
 	}
 	
 	public void clear(String key) {
@@ -164,13 +174,43 @@ public class ThreadAssocStore {
 	}
 	
 	public void clear(Thread t, String key) {
-		lock.writeLock().lock();
-		try {
-			HashMap<String, Object> subMap = map.get(t);
-			if (subMap == null) { return; }
-			subMap.remove(key);
-		} finally {
-			lock.writeLock().unlock();
+		ConcurrentHashMap<String, Object> subMap = this.getMap(t);
+		if (subMap == null) { return; }
+		subMap.remove(key);
+	}
+	
+	/**
+	 * Captures the values of the current thread, so that they can be
+	 * restored later on.
+	 * 
+	 * @return the snapshot. Its {@link Snapshot#close()} restores the values.
+	 */
+	public Snapshot snapshot() {
+		return new Snapshot(this, this.getMap(Thread.currentThread()));
+	}
+	
+	/**
+	 * The captured values of a thread. Closing the snapshot restores the
+	 * values of the current thread to the captured state; so it should be
+	 * used in a try-with-resources block in the same thread.
+	 */
+	public static final class Snapshot implements AutoCloseable {
+		private final ThreadAssocStore store;
+		private final Map<String, Object> values;
+		
+		private Snapshot(ThreadAssocStore store, Map<String, Object> values) {
+			this.store = store;
+			this.values = (values == null || values.isEmpty())
+					? Collections.<String, Object>emptyMap()
+					: new HashMap<String, Object>(values);
+		}
+		
+		@Override
+		public void close() {
+			ConcurrentHashMap<String, Object> subMap =
+					store.getMap(Thread.currentThread());
+			subMap.clear();
+			subMap.putAll(values);
 		}
 	}
 }
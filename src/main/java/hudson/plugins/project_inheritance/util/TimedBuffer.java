@@ -20,33 +20,103 @@
  */
 package hudson.plugins.project_inheritance.util;
 
-import java.util.AbstractMap;
-import java.util.HashMap;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map.Entry;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 
+/**
+ * A buffer that associates values with a tuple of an object and a key;
+ * optionally with a timeout after which the values expire.
+ * <p>
+ * The buffer is backed by concurrent hash maps, so that reads never take a
+ * lock and writes only contend on the bins of the maps they touch. Reads do
+ * not allocate, as the stored capsules are themselves returned as entries.
+ * <p>
+ * If a maximum number of entries is given, the buffer evicts the least
+ * recently accessed entries once that number is exceeded. If a timeout is
+ * given, expired entries are removed periodically in the background; in
+ * addition to being ignored on access.
+ */
 public class TimedBuffer<O, K> {
 	
-	private class TimeCapsule {
+	/**
+	 * Fraction of the maximum number of entries that is evicted at once,
+	 * when the buffer overflows; to not run an eviction on every insert.
+	 */
+	private static final double EVICTION_FRACTION = 0.1;
+	
+	/**
+	 * Stand-in for a null object, as the concurrent maps do not permit nulls.
+	 */
+	private static final Object NULL_OBJ = new Object();
+	
+	/**
+	 * The executor that runs the periodic expiry for all buffers with a timeout.
+	 */
+	private static final ScheduledExecutorService expiryExecutor =
+			Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "TimedBuffer expiry");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+	
+	private static class TimeCapsule implements Entry<Object, Long> {
 		public final Object obj;
 		public final long cTime;
+		private final Long cTimeBoxed;
+		public volatile long aTime;
 		
 		public TimeCapsule(Object obj) {
 			this.obj = obj;
 			this.cTime = System.currentTimeMillis();
+			this.cTimeBoxed = this.cTime;
+			this.aTime = this.cTime;
+		}
+		
+		public boolean agedPast(long timeout, long now) {
+			return ((now - cTime) > timeout);
 		}
 		
-		public boolean agedPast(long timeout) {
-			return ((System.currentTimeMillis() - cTime) > timeout);
+		public Object getKey() {
+			return obj;
+		}
+		
+		public Long getValue() {
+			return cTimeBoxed;
+		}
+		
+		public Long setValue(Long value) {
+			throw new UnsupportedOperationException();
 		}
 	}
 	
-	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
 	private final long timeout;
-	private final HashMap<O, HashMap<K,TimeCapsule>> map =
-			new HashMap<O, HashMap<K,TimeCapsule>>();
+	private final int maxEntries;
+	private final ConcurrentHashMap<Object, ConcurrentHashMap<K,TimeCapsule>> map =
+			new ConcurrentHashMap<Object, ConcurrentHashMap<K,TimeCapsule>>();
+	
+	/**
+	 * The approximate number of entries; only used to decide on evictions.
+	 */
+	private final AtomicInteger size = new AtomicInteger();
+	private final ReentrantLock evictionLock = new ReentrantLock();
 	
 	/**
 	 * Creates a timed buffer that does not make use of a timeout
@@ -62,7 +132,24 @@ public class TimedBuffer<O, K> {
 	 * @param timeoutMillis timeout in milliseconds.
 	 */
 	public TimedBuffer(long timeoutMillis) {
+		this(timeoutMillis, -1);
+	}
+	
+	/**
+	 * Creates a timed buffer with the given timeout in milliseconds and
+	 * the given maximum number of entries.
+	 * 
+	 * @param timeoutMillis timeout in milliseconds. If this value is zero or
+	 * negative, no timeout will be used.
+	 * @param maxEntries the number of entries above which the least recently
+	 * used ones are evicted. If zero or negative, the size is unbounded.
+	 */
+	public TimedBuffer(long timeoutMillis, int maxEntries) {
 		this.timeout = timeoutMillis;
+		this.maxEntries = maxEntries;
+		if (timeoutMillis > 0) {
+			CullTask.schedule(this, timeoutMillis);
+		}
 	}
 	
 	public Object get(O obj, K key) {
@@ -71,58 +158,73 @@ public class TimedBuffer<O, K> {
 	}
 	
 	public Entry<Object, Long> getWithTimestamp(O obj, K key) {
-		lock.readLock().lock();
-		try {
-			//Checking if we have this object hashed
-			HashMap<K,TimeCapsule> tMap = map.get(obj);
-			if (tMap == null) {
-				return null;
-			}
-			//Checking if that object has the given key
-			TimeCapsule tc = tMap.get(key);
-			if (tc == null) {
-				return null;
-			}
-			//Checking if the entry has aged beyond its time
-			if (timeout > 0 && tc.agedPast(timeout)) {
-				return null;
-			}
-			return new AbstractMap.SimpleEntry<Object, Long>(tc.obj, tc.cTime);
-		} finally {
-			lock.readLock().unlock();
+		//Checking if we have this object hashed
+		ConcurrentHashMap<K,TimeCapsule> tMap = map.get(wrap(obj));
+		if (tMap == null) {
+			return null;
+		}
+		//Checking if that object has the given key
+		TimeCapsule tc = tMap.get(key);
+		if (tc == null) {
+			return null;
 		}
+		//Checking if the entry has aged beyond its time
+		long now = System.currentTimeMillis();
+		if (timeout > 0 && tc.agedPast(timeout, now)) {
+			return null;
+		}
+		tc.aTime = now;
+		return tc;
 	}
 	
 	public void set(O obj, K key, Object value) {
-		lock.writeLock().lock();
-		try {
-			HashMap<K,TimeCapsule> tMap = map.get(obj);
-			if (tMap == null) {
-				//Creating a new mapping for that object
-				tMap = new HashMap<K,TimeCapsule>();
-				tMap.put(key, new TimeCapsule(value));
-				map.put(obj, tMap);
-				return;
+		Object wObj = wrap(obj);
+		ConcurrentHashMap<K,TimeCapsule> tMap = map.get(wObj);
+		if (tMap == null) {
+			//Creating a new mapping for that object
+			ConcurrentHashMap<K,TimeCapsule> nMap = new ConcurrentHashMap<K,TimeCapsule>();
+			tMap = map.putIfAbsent(wObj, nMap);
+			if (tMap == null) { tMap = nMap; }
+		}
+		//Adding the key/value pair as a timed capsule
+		if (tMap.put(key, new TimeCapsule(value)) == null) {
+			if (maxEntries > 0 && size.incrementAndGet() > maxEntries) {
+				this.evict();
 			}
-			//Adding the key/value pair as a timed capsule
-			tMap.put(key, new TimeCapsule(value));
-		} finally {
-			lock.writeLock().unlock();
 		}
 	}
 
-	public void remove(O obj, K key) {
-		lock.writeLock().lock();
-		try {
-			//Checking if we have this object hashed
-			HashMap<K,TimeCapsule> tMap = map.get(obj);
-			if (tMap == null) {
-				return;
-			}
-			tMap.remove(key);
-		} finally {
-			lock.writeLock().unlock();
+	/**
+	 * Removes the value associated with the given object and key.
+	 * 
+	 * @param obj the object the value is associated with
+	 * @param key the key of the value
+	 * @return true, if a value was present and removed.
+	 */
+	public boolean remove(O obj, K key) {
+		//Checking if we have this object hashed
+		ConcurrentHashMap<K,TimeCapsule> tMap = map.get(wrap(obj));
+		if (tMap == null) {
+			return false;
+		}
+		if (tMap.remove(key) != null) {
+			size.decrementAndGet();
+			return true;
 		}
+		return false;
+	}
+	
+	/**
+	 * @param obj the object whose keys to return. May be null.
+	 * @return a copy of the keys of all values currently associated with the
+	 * given object. Never null.
+	 */
+	protected Set<K> getKeys(O obj) {
+		ConcurrentHashMap<K,TimeCapsule> tMap = this.map.get(wrap(obj));
+		if (tMap == null) {
+			return Collections.emptySet();
+		}
+		return new HashSet<K>(tMap.keySet());
 	}
 	
 	/**
@@ -132,9 +234,10 @@ public class TimedBuffer<O, K> {
 	 * @param obj the key to clear
 	 */
 	public void clear(O obj) {
-		lock.writeLock().lock();
-		this.map.remove(obj);
-		lock.writeLock().unlock();
+		ConcurrentHashMap<K,TimeCapsule> tMap = this.map.remove(wrap(obj));
+		if (tMap != null) {
+			size.addAndGet(-tMap.size());
+		}
 	}
 	
 	
@@ -142,9 +245,8 @@ public class TimedBuffer<O, K> {
 	 * This method clears everything in this buffer.
 	 */
 	public void clearAll() {
-		lock.writeLock().lock();
 		this.map.clear();
-		lock.writeLock().unlock();
+		size.set(0);
 	}
 	
 	/**
@@ -154,37 +256,135 @@ public class TimedBuffer<O, K> {
 	 * @param key the value to clear
 	 */
 	public void clearAll(K key) {
-		lock.writeLock().lock();
-		for (HashMap<K,TimeCapsule> tMap : map.values()) {
-			if (tMap != null) {
-				tMap.remove(key);
+		for (ConcurrentHashMap<K,TimeCapsule> tMap : map.values()) {
+			if (tMap.remove(key) != null) {
+				size.decrementAndGet();
 			}
 		}
-		lock.writeLock().unlock();
 	}
 
 
 	/**
 	 * This method will remove all entries that aged beyond the assigned timeout.
 	 * As this method has a linear complexity, don't call it <i>too</i> often.
+	 * <p>
+	 * Buffers with a timeout already run this periodically in the background.
 	 * 
 	 * This method is a O(1) no-op if no timeout is defined for this method.
 	 */
 	public void cull() {
 		//Only do something if we actually have a timeout
 		if (timeout <= 0) { return; }
-		lock.writeLock().lock();
-		for (HashMap<K,TimeCapsule> tMap : map.values()) {
-			if (tMap == null) { continue; }
-			Iterator<TimeCapsule> iter = tMap.values().iterator();
+		long now = System.currentTimeMillis();
+		for (Entry<Object, ConcurrentHashMap<K,TimeCapsule>> mEntry : map.entrySet()) {
+			Iterator<Entry<K,TimeCapsule>> iter = mEntry.getValue().entrySet().iterator();
 			while (iter.hasNext()) {
-				TimeCapsule tc = iter.next();
-				if (tc == null) { continue; }
-				if (tc.agedPast(timeout)) {
+				Entry<K,TimeCapsule> e = iter.next();
+				if (e.getValue().agedPast(timeout, now)) {
 					iter.remove();
+					size.decrementAndGet();
+					this.onEvicted(unwrap(mEntry.getKey()), e.getKey());
 				}
 			}
 		}
-		lock.writeLock().unlock();
+	}
+	
+	/**
+	 * Evicts the least recently accessed entries, until the buffer is a
+	 * fraction below its maximum size again.
+	 * <p>
+	 * Only one thread evicts at a time; others skip the eviction, as the
+	 * running one will make room for them too.
+	 */
+	private void evict() {
+		if (!evictionLock.tryLock()) { return; }
+		try {
+			//Collecting the access times, to determine the cut-off time
+			List<TimeCapsule> all = new ArrayList<TimeCapsule>(size.get());
+			for (ConcurrentHashMap<K,TimeCapsule> tMap : map.values()) {
+				all.addAll(tMap.values());
+			}
+			//Fixing the drift of the approximated size
+			size.set(all.size());
+			int target = (int) (maxEntries * (1.0 - EVICTION_FRACTION));
+			int toEvict = all.size() - target;
+			if (toEvict <= 0) { return; }
+			
+			long[] times = new long[all.size()];
+			for (int i = 0; i < times.length; i++) {
+				times[i] = all.get(i).aTime;
+			}
+			Arrays.sort(times);
+			long cutOff = times[toEvict - 1];
+			
+			Iterator<Entry<Object, ConcurrentHashMap<K,TimeCapsule>>> mIter =
+					map.entrySet().iterator();
+			while (mIter.hasNext() && toEvict > 0) {
+				Entry<Object, ConcurrentHashMap<K,TimeCapsule>> mEntry = mIter.next();
+				Iterator<Entry<K,TimeCapsule>> iter = mEntry.getValue().entrySet().iterator();
+				while (iter.hasNext() && toEvict > 0) {
+					Entry<K,TimeCapsule> e = iter.next();
+					if (e.getValue().aTime <= cutOff) {
+						iter.remove();
+						size.decrementAndGet();
+						toEvict--;
+						this.onEvicted(unwrap(mEntry.getKey()), e.getKey());
+					}
+				}
+			}
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+	
+	/**
+	 * Called after an entry was removed, because it expired or the buffer
+	 * overflowed. Subclasses may use this to clean up associated state.
+	 * 
+	 * @param obj the object the evicted value was associated with. May be null.
+	 * @param key the key of the evicted value
+	 */
+	protected void onEvicted(O obj, K key) {
+		//Nothing to do by default
+	}
+	
+	private static Object wrap(Object obj) {
+		return (obj == null) ? NULL_OBJ : obj;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private O unwrap(Object obj) {
+		return (obj == NULL_OBJ) ? null : (O) obj;
+	}
+	
+	
+	/**
+	 * Periodically culls a buffer, without keeping it from being garbage
+	 * collected. Once the buffer is gone, the task cancels itself.
+	 */
+	private static class CullTask implements Runnable {
+		private final WeakReference<TimedBuffer<?, ?>> ref;
+		private volatile ScheduledFuture<?> future;
+		
+		private CullTask(TimedBuffer<?, ?> buffer) {
+			this.ref = new WeakReference<TimedBuffer<?, ?>>(buffer);
+		}
+		
+		public static void schedule(TimedBuffer<?, ?> buffer, long period) {
+			CullTask task = new CullTask(buffer);
+			task.future = expiryExecutor.scheduleWithFixedDelay(
+					task, period, period, TimeUnit.MILLISECONDS
+			);
+		}
+		
+		public void run() {
+			TimedBuffer<?, ?> buffer = ref.get();
+			if (buffer == null) {
+				ScheduledFuture<?> f = this.future;
+				if (f != null) { f.cancel(false); }
+				return;
+			}
+			buffer.cull();
+		}
 	}
 }
@@ -0,0 +1,274 @@
+/**
+ * Copyright (c) 2019 Intel Corporation
+ * Copyright (c) 2015-2017 Intel Deutschland GmbH
+ * Copyright (c) 2011-2015 Intel Mobile Communications GmbH
+ *
+ * This file is part of the Inheritance plug-in for Jenkins.
+ *
+ * The Inheritance plug-in is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation in version 3
+ * of the License
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.project_inheritance.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.apache.commons.lang.StringEscapeUtils;
+
+import difflib.Delta;
+import difflib.DiffUtils;
+import difflib.Patch;
+import jenkins.model.Jenkins;
+
+/**
+ * A field-level diff between the value maps of two versions of a
+ * {@link VersionedObjectStore}.
+ * <p>
+ * Fields whose values are identical or equal in both versions are skipped
+ * right away. Only the remaining fields are serialised to XML, and only
+ * those whose XML differs are diffed line by line. This avoids serialising
+ * and diffing the whole configuration, of which usually only a few fields
+ * change between two versions.
+ */
+public class VersionDiff {
+
+	/**
+	 * The line-based diff of a single field.
+	 */
+	public static class FieldDiff {
+		public final String field;
+		public final List<String> left;
+		public final List<String> right;
+		public final Patch patch;
+
+		public FieldDiff(String field, List<String> left, List<String> right) {
+			this.field = field;
+			this.left = left;
+			this.right = right;
+			this.patch = DiffUtils.diff(left, right);
+		}
+	}
+
+	private final long lVer;
+	private final long rVer;
+	private final List<FieldDiff> fields;
+
+
+	private VersionDiff(long lVer, long rVer, List<FieldDiff> fields) {
+		this.lVer = lVer;
+		this.rVer = rVer;
+		this.fields = Collections.unmodifiableList(fields);
+	}
+
+	/**
+	 * Computes the diff between the two given value maps.
+	 *
+	 * @param lVer the id of the left version
+	 * @param lMap the value map of the left version
+	 * @param rVer the id of the right version
+	 * @param rMap the value map of the right version
+	 * @return the diff, with the changed fields sorted by name
+	 */
+	public static VersionDiff compute(
+			long lVer, Map<String, Object> lMap,
+			long rVer, Map<String, Object> rMap) {
+		TreeSet<String> keys = new TreeSet<String>(lMap.keySet());
+		keys.addAll(rMap.keySet());
+
+		List<FieldDiff> fields = new ArrayList<FieldDiff>();
+		for (String key : keys) {
+			Object lo = lMap.get(key);
+			Object ro = rMap.get(key);
+			//Cheap checks first; most fields are untouched between versions
+			if (lo == ro || (lo != null && lo.equals(ro))) { continue; }
+
+			String lXml = (lo != null) ? Jenkins.XSTREAM2.toXML(lo) : "";
+			String rXml = (ro != null) ? Jenkins.XSTREAM2.toXML(ro) : "";
+			if (lXml.equals(rXml)) { continue; }
+
+			fields.add(new FieldDiff(key, toLines(lXml), toLines(rXml)));
+		}
+		return new VersionDiff(lVer, rVer, fields);
+	}
+
+	private static List<String> toLines(String xml) {
+		if (xml.isEmpty()) { return Collections.emptyList(); }
+		return Arrays.asList(xml.split("\n"));
+	}
+
+	private static String escape(Object str) {
+		return StringEscapeUtils.escapeHtml(String.valueOf(str));
+	}
+
+	/**
+	 * @return the diffs of all changed fields, sorted by field name.
+	 */
+	public List<FieldDiff> getFields() {
+		return fields;
+	}
+
+	public boolean isEmpty() {
+		return fields.isEmpty();
+	}
+
+
+	// === RENDERING ===
+
+	/**
+	 * Renders the diff in unified format as HTML; one section per field.
+	 *
+	 * @param context the number of unchanged lines to show around changes
+	 * @return the HTML code
+	 */
+	public String toUnifiedHtml(int context) {
+		if (context < 0) { context = 0; }
+		if (this.isEmpty()) {
+			return "<i>Both versions are identical.</i>";
+		}
+		StringBuilder b = new StringBuilder();
+		for (FieldDiff fd : fields) {
+			b.append("<b>").append(escape(fd.field)).append("</b><br>");
+
+			List<String> outLst = DiffUtils.generateUnifiedDiff(
+					"Version " + lVer, "Version " + rVer,
+					fd.left, fd.patch, context
+			);
+			for (String line : outLst) {
+				String colour = null;
+				if (line.startsWith("++")) {
+					colour = "orange";
+				} else if (line.startsWith("+")) {
+					colour = "green";
+				} else if (line.startsWith("--")) {
+					colour = "blue";
+				} else if (line.startsWith("-")) {
+					colour = "red";
+				}
+				if (colour != null) {
+					b.append("<span style=\"color:").append(colour).append("\">");
+				}
+				b.append(escape(line));
+				if (colour != null) {
+					b.append("</span>");
+				}
+				b.append("<br>");
+			}
+			b.append("<br>");
+		}
+		return b.toString();
+	}
+
+	/**
+	 * Renders the diff as an HTML table with both versions next to each
+	 * other; one section per field.
+	 *
+	 * @param context the number of unchanged lines to show around changes
+	 * @return the HTML code
+	 */
+	public String toSideBySideHtml(int context) {
+		if (context < 0) { context = 0; }
+		if (this.isEmpty()) {
+			return "<i>Both versions are identical.</i>";
+		}
+		StringBuilder b = new StringBuilder();
+		b.append("<table frame=\"void\" rules=\"cols\" width=\"100%\" class=\"mono\">");
+		b.append("<tr><th class=\"mono\" style=\"width:3em\">#</th>");
+		b.append("<th class=\"mono\">Version ").append(lVer).append("</th>");
+		b.append("<th class=\"mono\" style=\"width:3em\">#</th>");
+		b.append("<th class=\"mono\">Version ").append(rVer).append("</th></tr>");
+
+		for (FieldDiff fd : fields) {
+			b.append("<tr><th class=\"mono\" colspan=\"4\">");
+			b.append(escape(fd.field));
+			b.append("</th></tr>");
+
+			//Position after the last emitted line on each side
+			int lPos = 0;
+			int rPos = 0;
+			for (Object o : fd.patch.getDeltas()) {
+				Delta d = (Delta) o;
+				int lStart = d.getOriginal().getPosition();
+				int rStart = d.getRevised().getPosition();
+				List<?> lLines = d.getOriginal().getLines();
+				List<?> rLines = d.getRevised().getLines();
+
+				//Trailing context of the previous change
+				int end = Math.min(lPos + context, lStart);
+				if (lPos > 0) {
+					appendSame(b, fd, lPos, end, rPos - lPos);
+					lPos = end;
+				}
+				//Leading context of this change; skipping the unchanged lines in-between
+				int begin = Math.max(lPos, lStart - context);
+				if (begin > lPos) {
+					b.append("<tr><td class=\"mono\" colspan=\"4\">...</td></tr>");
+				}
+				appendSame(b, fd, begin, lStart, rStart - lStart);
+
+				//The change itself
+				String style = (lLines.isEmpty())
+						? "background-color:#dfd"
+						: (rLines.isEmpty()) ? "background-color:#fdd" : "background-color:#ffd";
+				int max = Math.max(lLines.size(), rLines.size());
+				for (int i = 0; i < max; i++) {
+					appendRow(b, style,
+							(i < lLines.size()) ? lStart + i + 1 : -1,
+							(i < lLines.size()) ? lLines.get(i) : "",
+							(i < rLines.size()) ? rStart + i + 1 : -1,
+							(i < rLines.size()) ? rLines.get(i) : ""
+					);
+				}
+				lPos = lStart + lLines.size();
+				rPos = rStart + rLines.size();
+			}
+			//Trailing context of the last change
+			int end = Math.min(lPos + context, fd.left.size());
+			appendSame(b, fd, lPos, end, rPos - lPos);
+			if (end < fd.left.size()) {
+				b.append("<tr><td class=\"mono\" colspan=\"4\">...</td></tr>");
+			}
+		}
+		b.append("</table>");
+		return b.toString();
+	}
+
+	/**
+	 * Appends the unchanged lines in the given range of the left side.
+	 *
+	 * @param offset the offset of the same lines on the right side
+	 */
+	private static void appendSame(
+			StringBuilder b, FieldDiff fd, int from, int to, int offset) {
+		for (int i = from; i < to; i++) {
+			appendRow(b, null, i + 1, fd.left.get(i), i + offset + 1, fd.left.get(i));
+		}
+	}
+
+	private static void appendRow(
+			StringBuilder b, String style,
+			int lNum, Object lLine, int rNum, Object rLine) {
+		String td = (style != null)
+				? "<td class=\"mono\" style=\"" + style + "\">"
+				: "<td class=\"mono\">";
+		b.append("<tr><td class=\"mono\">");
+		if (lNum > 0) { b.append(lNum); }
+		b.append("</td>").append(td).append(escape(lLine)).append("</td>");
+		b.append("<td class=\"mono\">");
+		if (rNum > 0) { b.append(rNum); }
+		b.append("</td>").append(td).append(escape(rLine)).append("</td></tr>");
+	}
+}
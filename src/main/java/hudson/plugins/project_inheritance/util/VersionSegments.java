@@ -0,0 +1,437 @@
+/**
+ * Copyright (c) 2019 Intel Corporation
+ * Copyright (c) 2015-2017 Intel Deutschland GmbH
+ * Copyright (c) 2011-2015 Intel Mobile Communications GmbH
+ *
+ * This file is part of the Inheritance plug-in for Jenkins.
+ *
+ * The Inheritance plug-in is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation in version 3
+ * of the License
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.project_inheritance.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.thoughtworks.xstream.XStreamException;
+
+import hudson.plugins.project_inheritance.util.VersionedObjectStore.Version;
+import jenkins.model.Jenkins;
+
+/**
+ * This class manages the on-disk representation of a {@link VersionedObjectStore}.
+ * <p>
+ * The key/value maps of versions are stored as records that are only ever
+ * appended to segment files. Each record is the GZIP compressed XML of one
+ * map. A small index file lists all versions, their metadata and the
+ * location of the record holding their map. Saving a new version thus only
+ * appends one record and rewrites the index. The records are opaque to this
+ * class; whether a map is complete or only holds the differences to the
+ * previous version is up to the {@link VersionedObjectStore}.
+ * <p>
+ * Records that are no longer referenced by the index -- because a version
+ * was changed or removed -- are garbage. Once the garbage outweighs the live
+ * records, all live records are copied into fresh segments and the old ones
+ * are deleted.
+ */
+class VersionSegments {
+	private static final Logger log = Logger.getLogger(
+			VersionSegments.class.toString()
+	);
+	
+	private static final String INDEX_FILE = "index.xml";
+	
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".dat";
+	private static final Pattern SEGMENT_PATTERN = Pattern.compile(
+			Pattern.quote(SEGMENT_PREFIX) + "([0-9]+)" + Pattern.quote(SEGMENT_SUFFIX)
+	);
+	
+	/**
+	 * The size above which a new segment is started.
+	 */
+	private static final long MAX_SEGMENT_SIZE = 16 * 1024 * 1024;
+	
+	/**
+	 * The amount of garbage below which no compaction is done; regardless of
+	 * the amount of live data.
+	 */
+	private static final long MIN_GARBAGE_FOR_COMPACTION = 1024 * 1024;
+	
+	
+	/**
+	 * An entry of the index file.
+	 */
+	public static class Record {
+		public final Version version;
+		/**
+		 * The name of the segment file holding the map.
+		 */
+		public final String segment;
+		public final long offset;
+		public final int length;
+		
+		public Record(Version version, String segment, long offset, int length) {
+			this.version = version;
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+	
+	
+	private File dir;
+	
+	/**
+	 * The location of the map of each version currently in the index.
+	 */
+	private final Map<Version, Record> records = new HashMap<Version, Record>();
+	
+	/**
+	 * The numbers of the oldest segment and of the one that records are
+	 * appended to.
+	 */
+	private int firstSegment = 0;
+	private int activeSegment = 0;
+	
+	
+	public VersionSegments(File dir) {
+		this.dir = dir;
+		String[] names = dir.list();
+		if (names == null) { return; }
+		boolean found = false;
+		for (String name : names) {
+			Matcher m = SEGMENT_PATTERN.matcher(name);
+			if (!m.matches()) { continue; }
+			int num = Integer.parseInt(m.group(1));
+			this.firstSegment = (found) ? Math.min(this.firstSegment, num) : num;
+			this.activeSegment = (found) ? Math.max(this.activeSegment, num) : num;
+			found = true;
+		}
+	}
+	
+	/**
+	 * @param dir the directory to check
+	 * @return true, if the given directory contains an index
+	 */
+	public static boolean exists(File dir) {
+		return new File(dir, INDEX_FILE).isFile();
+	}
+	
+	public synchronized File getDir() {
+		return this.dir;
+	}
+	
+	/**
+	 * @param v the version to check
+	 * @return true, if the index lists a record for the map of that version.
+	 */
+	public synchronized boolean hasRecord(Version v) {
+		return this.records.containsKey(v);
+	}
+	
+	/**
+	 * Informs this instance that its directory has been moved.
+	 *
+	 * @param dir the new location of the directory
+	 */
+	public synchronized void relocate(File dir) {
+		this.dir = dir;
+	}
+	
+	
+	// === READING ===
+	
+	/**
+	 * Reads the index and returns the versions listed in it.
+	 *
+	 * @return the versions in the index, in the order saved.
+	 * @throws IOException in case the index can't be read.
+	 * @throws IllegalArgumentException in case the index contains invalid data.
+	 * @throws XStreamException in case of XML serialisation error
+	 */
+	public synchronized List<Version> readIndex()
+			throws IOException, IllegalArgumentException, XStreamException {
+		File index = new File(this.dir, INDEX_FILE);
+		Object obj;
+		InputStream is = Files.newInputStream(index.toPath());
+		try {
+			obj = Jenkins.XSTREAM2.fromXML(is);
+		} finally {
+			is.close();
+		}
+		if (!(obj instanceof List)) {
+			throw new IllegalArgumentException(
+					"File does not describe a version index: " + index
+			);
+		}
+		
+		this.records.clear();
+		List<Version> versions = new ArrayList<Version>();
+		for (Object o : (List<?>) obj) {
+			if (!(o instanceof Record)) { continue; }
+			Record r = (Record) o;
+			if (r.version == null) { continue; }
+			if (r.segment == null) {
+				throw new IllegalArgumentException(
+						"Index lists version " + r.version.id + " without a segment: " + index
+				);
+			}
+			this.records.put(r.version, r);
+			versions.add(r.version);
+		}
+		return versions;
+	}
+	
+	/**
+	 * Reads the map of the given version.
+	 *
+	 * @param v the version to read the map of
+	 * @return the map, or null if there is no map stored for that version
+	 * @throws IOException in case the map can't be read.
+	 * @throws XStreamException in case of XML serialisation error
+	 */
+	@SuppressWarnings("unchecked")
+	public HashMap<String, Object> read(Version v) throws IOException, XStreamException {
+		byte[] raw = this.readRaw(v);
+		if (raw == null) { return null; }
+		InputStream is = new GZIPInputStream(new ByteArrayInputStream(raw));
+		try {
+			Object obj = Jenkins.XSTREAM2.fromXML(is);
+			if (!(obj instanceof HashMap)) {
+				throw new IOException("Record does not describe a version map: " + v.id);
+			}
+			return (HashMap<String, Object>) obj;
+		} finally {
+			is.close();
+		}
+	}
+	
+	private synchronized byte[] readRaw(Version v) throws IOException {
+		Record r = this.records.get(v);
+		if (r == null) { return null; }
+		RandomAccessFile raf = new RandomAccessFile(new File(this.dir, r.segment), "r");
+		try {
+			byte[] raw = new byte[r.length];
+			raf.seek(r.offset);
+			raf.readFully(raw);
+			return raw;
+		} finally {
+			raf.close();
+		}
+	}
+	
+	
+	// === WRITING ===
+	
+	/**
+	 * Appends the given maps as new records and then rewrites the index to
+	 * list exactly the given versions. If afterwards there's more garbage than
+	 * live data in the segments, they are compacted.
+	 *
+	 * @param changed the maps to append, keyed by their version
+	 * @param all all versions of the store, in the order they should be listed
+	 * @throws IOException in case of any write error. If so, the index on disk
+	 * is still consistent.
+	 */
+	public synchronized void write(
+			Map<Version, HashMap<String, Object>> changed, Collection<Version> all
+	) throws IOException {
+		if (!this.dir.isDirectory() && !this.dir.mkdirs()) {
+			throw new IOException("Could not create directory " + this.dir);
+		}
+		
+		//First, append the records; the index refers to them
+		if (!changed.isEmpty()) {
+			File seg = this.getSegmentForAppend();
+			OutputStream os = new FileOutputStream(seg, true);
+			try {
+				long offset = seg.length();
+				for (Map.Entry<Version, HashMap<String, Object>> e : changed.entrySet()) {
+					byte[] raw = encode(e.getValue());
+					os.write(raw);
+					this.records.put(e.getKey(), new Record(
+							e.getKey(), seg.getName(), offset, raw.length
+					));
+					offset += raw.length;
+				}
+			} finally {
+				os.close();
+			}
+		}
+		
+		//Then, the index; which drops all versions no longer present
+		this.records.keySet().retainAll(all);
+		this.writeIndex(all);
+		
+		if (this.needsCompaction()) {
+			try {
+				this.compact(all);
+			} catch (IOException ex) {
+				//The old segments and index are still intact
+				log.warning("Compacting versions in " + this.dir + " failed: " + ex);
+			}
+		}
+	}
+	
+	private static byte[] encode(HashMap<String, Object> map) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(4096);
+		GZIPOutputStream gzos = new GZIPOutputStream(baos);
+		try {
+			Jenkins.XSTREAM2.toXMLUTF8(map, gzos);
+		} finally {
+			gzos.close();
+		}
+		return baos.toByteArray();
+	}
+	
+	private void writeIndex(Collection<Version> all) throws IOException {
+		ArrayList<Record> lst = new ArrayList<Record>(all.size());
+		for (Version v : all) {
+			Record r = this.records.get(v);
+			if (r == null) {
+				//The index must not list a version without its map
+				throw new IOException("No record for the map of version " + v.id);
+			} else if (r.version != v) {
+				//The metadata of versions is kept in the given objects
+				r = new Record(v, r.segment, r.offset, r.length);
+			}
+			lst.add(r);
+		}
+		
+		File index = new File(this.dir, INDEX_FILE);
+		File tmpFile = File.createTempFile("atomic", null, this.dir);
+		try {
+			FileOutputStream os = new FileOutputStream(tmpFile);
+			try {
+				Jenkins.XSTREAM2.toXMLUTF8(lst, os);
+				os.getFD().sync();
+			} finally {
+				os.close();
+			}
+			//The old index stays in place until it is replaced as a whole;
+			//if that isn't possible, the save fails
+			Files.move(
+					tmpFile.toPath(), index.toPath(),
+					StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING
+			);
+		} finally {
+			Files.deleteIfExists(tmpFile.toPath());
+		}
+	}
+	
+	
+	// === SEGMENTS & COMPACTION ===
+	
+	private File getSegmentFile(int num) {
+		return new File(this.dir, SEGMENT_PREFIX + num + SEGMENT_SUFFIX);
+	}
+	
+	private File getSegmentForAppend() {
+		File seg = this.getSegmentFile(this.activeSegment);
+		if (seg.length() >= MAX_SEGMENT_SIZE) {
+			this.activeSegment++;
+			seg = this.getSegmentFile(this.activeSegment);
+		}
+		return seg;
+	}
+	
+	private boolean needsCompaction() {
+		long total = 0;
+		for (int i = this.firstSegment; i <= this.activeSegment; i++) {
+			total += this.getSegmentFile(i).length();
+		}
+		long live = 0;
+		for (Record r : this.records.values()) {
+			live += r.length;
+		}
+		long garbage = total - live;
+		return garbage > MIN_GARBAGE_FOR_COMPACTION && garbage > live;
+	}
+	
+	/**
+	 * Copies all live records into new segments, writes the index and then
+	 * deletes the previous segments.
+	 */
+	private void compact(Collection<Version> all) throws IOException {
+		int firstOld = this.firstSegment;
+		int lastOld = this.activeSegment;
+		
+		//Start new segments after the current ones
+		this.activeSegment = lastOld + 1;
+		Map<Version, Record> moved = new HashMap<Version, Record>();
+		File seg = null;
+		OutputStream os = null;
+		long offset = 0;
+		try {
+			for (Version v : all) {
+				byte[] raw = this.readRaw(v);
+				if (raw == null) { continue; }
+				if (seg == null || offset >= MAX_SEGMENT_SIZE) {
+					if (os != null) {
+						os.close();
+						this.activeSegment++;
+					}
+					seg = this.getSegmentFile(this.activeSegment);
+					os = new FileOutputStream(seg, false);
+					offset = 0;
+				}
+				os.write(raw);
+				moved.put(v, new Record(v, seg.getName(), offset, raw.length));
+				offset += raw.length;
+			}
+		} finally {
+			if (os != null) { os.close(); }
+		}
+		
+		//Switch over to the new records, by writing the index
+		Map<Version, Record> old = new HashMap<Version, Record>(this.records);
+		this.records.clear();
+		this.records.putAll(moved);
+		try {
+			this.writeIndex(all);
+		} catch (IOException ex) {
+			this.records.clear();
+			this.records.putAll(old);
+			throw ex;
+		}
+		
+		//The old data is no longer referenced
+		this.firstSegment = lastOld + 1;
+		for (int i = firstOld; i <= lastOld; i++) {
+			File f = this.getSegmentFile(i);
+			if (f.exists() && !f.delete()) {
+				log.warning("Unable to delete outdated segment " + f);
+			}
+		}
+	}
+}
@@ -20,21 +20,28 @@
  */
 package hudson.plugins.project_inheritance.util;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.DateFormat;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.NavigableSet;
 import java.util.Set;
@@ -43,15 +50,35 @@ import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.logging.Logger;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
-import com.google.common.collect.Sets;
+import org.apache.commons.io.output.NullOutputStream;
+
 import com.thoughtworks.xstream.XStreamException;
 
+import hudson.Util;
+
 import jenkins.model.Jenkins;
 
 /**
  * This class allows you to version-control almost arbitrary objects.
+ * <p>
+ * On disk, the store is kept as a directory holding a small index of all
+ * {@link Version}s and the key/value maps of the versions, appended as
+ * records to segment files; see {@link VersionSegments}. When loaded from
+ * there, only the index is read; the maps of individual versions are read on
+ * demand and only the most recently used ones are kept on the heap. Stores in
+ * the older single-file format are read completely and converted on their
+ * next {@link #save(File)}, which keeps the old file as a backup.
+ * <p>
+ * Consecutive versions usually differ in only a few of their values. Thus,
+ * the maps of versions share the instances of all values that did not
+ * change; see {@link #setObjectFor(Version, String, Object)}. On disk, a
+ * version only stores the values that differ from its predecessor, except
+ * for every {@link #KEYFRAME_INTERVAL}th version, which stores its full map.
+ * A map read from disk is rebuilt on top of the map of its predecessor and
+ * shares the unchanged values with it. Each map is still a plain
+ * {@link HashMap} of all keys; thus looking up a value never needs to walk
+ * along the chain of versions.
  * 
  * TODO: This class is in heavy need of a read/write lock
  * TODO: Improve the JavaDoc of this class.
@@ -69,10 +96,51 @@ public class VersionedObjectStore implements Serializable {
 	private static final int currentFormatVersion = 1;
 	private static final String formatVersionTag = "INTERNAL_FORMAT_VERSION";
 	
+	/**
+	 * The suffix appended to a file holding a store in the older single-file
+	 * format, once the store was saved in the current format.
+	 */
+	public static final String LEGACY_BACKUP_SUFFIX = ".bak";
+	
+	/**
+	 * The keys under which a map on disk that only holds the differences to
+	 * its predecessor stores the ID of that predecessor and the keys removed
+	 * since then.
+	 */
+	private static final String deltaBaseTag = "INTERNAL_DELTA_BASE";
+	private static final String removedKeysTag = "INTERNAL_REMOVED_KEYS";
+	
 	private static final Logger log = Logger.getLogger(
 			VersionedObjectStore.class.toString()
 	);
 	
+	/**
+	 * The number of value maps of versions that were read on demand, which
+	 * are kept in memory after being used.
+	 */
+	private static final int MAX_LOADED_MAPS = 10;
+	
+	/**
+	 * Each version whose ID is a multiple of this stores its full map on
+	 * disk; which limits the number of maps that need to be read to rebuild
+	 * any single one.
+	 */
+	private static final int KEYFRAME_INTERVAL = 16;
+	
+	
+	/**
+	 * A listener that is informed about each value map that is read from
+	 * disk; for example to patch up the objects in it.
+	 */
+	public interface LoadListener {
+		/**
+		 * @param v the version whose map was read
+		 * @param map the map of that version. May be modified.
+		 * @return true, if the map was modified and needs to be saved again.
+		 */
+		public boolean onLoad(Version v, HashMap<String, Object> map);
+	}
+	
 	
 	public static class Version implements Serializable, Comparable<Object> {
 		private static final long serialVersionUID = -5953602045057843995L;
@@ -237,9 +305,60 @@ public class VersionedObjectStore implements Serializable {
 	 */
 	private final TreeMap<Version, HashMap<String, Object>> store;
 	
+	/**
+	 * The files from which the maps of versions are read on demand. If
+	 * this is set, a version mapped to null in {@link #store} has its map
+	 * only on disk. If it is null, all maps are held in {@link #store}.
+	 */
+	private transient VersionSegments segments;
+	
+	/**
+	 * The most recently used maps that were read from {@link #segments}.
+	 * Those are unmodified and can thus be dropped at any time.
+	 */
+	private transient LinkedHashMap<Version, HashMap<String, Object>> loaded;
+	
+	/**
+	 * The versions whose maps were changed since they were last saved.
+	 */
+	private transient Set<Version> modified;
+	
+	private transient LoadListener listener;
+	
+	/**
+	 * The content hashes of the values in the maps of the most recently used
+	 * versions; see {@link #getHashes(Version)}. These are computed when a
+	 * value is stored or, for maps read from disk, on first use.
+	 */
+	private transient LinkedHashMap<Version, HashMap<String, String>> hashes;
+	
 	
 	public VersionedObjectStore() {
 		this.store = new TreeMap<Version, HashMap<String,Object>>();
+		this.readResolve();
+	}
+	
+	private Object readResolve() {
+		this.loaded = new LinkedHashMap<Version, HashMap<String,Object>>(
+				MAX_LOADED_MAPS * 2, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Version, HashMap<String, Object>> eldest) {
+				return this.size() > MAX_LOADED_MAPS;
+			}
+		};
+		this.modified = new HashSet<Version>();
+		this.hashes = new LinkedHashMap<Version, HashMap<String,String>>(
+				MAX_LOADED_MAPS * 4, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Version, HashMap<String, String>> eldest) {
+				return this.size() > MAX_LOADED_MAPS * 2;
+			}
+		};
+		return this;
 	}
 	
 	public String toString() {
@@ -259,8 +378,26 @@ public class VersionedObjectStore implements Serializable {
 		return b.toString();
 	}
 	
+	/**
+	 * Serialises the whole store, including the maps of all versions, into
+	 * the XML format formerly used for saving it as a single file.
+	 * 
+	 * @return the XML string
+	 */
 	public String toXML() {
-		return Jenkins.XSTREAM2.toXML(this);
+		List<Version> versions;
+		synchronized (this) {
+			if (this.segments == null) {
+				return Jenkins.XSTREAM2.toXML(this);
+			}
+			versions = new ArrayList<Version>(this.store.keySet());
+		}
+		VersionedObjectStore full = new VersionedObjectStore();
+		for (Version v : versions) {
+			HashMap<String, Object> map = this.getMap(v, false);
+			full.store.put(v, (map != null) ? map : new HashMap<String, Object>());
+		}
+		return Jenkins.XSTREAM2.toXML(full);
 	}
 	
 	public int size() {
@@ -273,7 +410,15 @@ public class VersionedObjectStore implements Serializable {
 	 * 
 	 * Not making the save automatic allows you to make bulk-changes and only
 	 * dump them to disk once finished.
-	 * 
+	 * <p>
+	 * The store is saved into the directory returned by
+	 * {@link #getStoreDir(File)}. Only the maps of versions that were changed
+	 * since the last save are appended, after which the small index is
+	 * rewritten. Once that succeeded, the
+	 * given file is renamed by appending {@link #LEGACY_BACKUP_SUFFIX}, in
+	 * case it still contains the store in the older single-file format. It
+	 * is kept as a backup, for example to downgrade the plugin.
+	 * <p>
 	 * Do note that while the function itself is synchronized, at the moment
 	 * nothing prevents others to change the underlying data fields during save.
 	 * 
@@ -282,46 +427,190 @@ public class VersionedObjectStore implements Serializable {
 	 * Do note that this function fails silently in case the output file is not
 	 * writable.  It will log an error, but do nothing beyond that
 	 * 
-	 * @param file the file to save the data to. The data is dumped
-	 * as GZIP-compressed XML.
-	 * @throws IOException in case the save file can't be read.
+	 * @param file the file that was used to load the store; or that should
+	 * be used when loading it in the future.
+	 * @throws IOException in case the save directory can't be created; or in
+	 * case the directory changed since the last save and not all maps could
+	 * be read from the previous one. Nothing is written in the latter case.
 	 */
 	public synchronized void save(File file) throws IOException {
 		if (file == null) {
 			//Return silently, as the user explicitly wanted a null-save
 			return;
 		}
-		//Create a temporary file for the output file
-		File tmpFile = File.createTempFile("atomic", null, file.getParentFile());
-		if (tmpFile == null) {
-			throw new IOException("Could not create atomic file for saving versions");
+		File dir = getStoreDir(file);
+		VersionSegments segs = this.segments;
+		if (segs != null && !segs.getDir().equals(dir)) {
+			if (!VersionSegments.exists(segs.getDir()) && VersionSegments.exists(dir)) {
+				//The directory was moved without informing this store
+				segs.relocate(dir);
+			} else if (this.loadAllMaps()) {
+				//The maps are copied over into the new directory
+				segs = null;
+			} else {
+				throw new IOException(
+						"Refusing to save versions to " + dir + ", as not all " +
+						"of them could be read from " + segs.getDir()
+				);
+			}
+		}
+		if (segs == null) {
+			//All maps are in memory and none were written to the directory
+			segs = new VersionSegments(dir);
+			this.modified.addAll(this.store.keySet());
+		}
+		//No version may end up in the index without its map
+		for (Map.Entry<Version, HashMap<String, Object>> e : this.store.entrySet()) {
+			if (e.getValue() == null && !segs.hasRecord(e.getKey())) {
+				throw new IOException(
+						"Refusing to save versions to " + dir + ", as the map " +
+						"of version " + e.getKey().id + " is missing"
+				);
+			}
 		}
-		GZIPOutputStream gzos = null;
 		try {
-			//Preparing the nested streams
-			gzos = new GZIPOutputStream(new FileOutputStream(tmpFile));
-			//Dumping the XML stream
-			Jenkins.XSTREAM2.toXMLUTF8(this, gzos);
-			//Closing the file stream; no need to flush as that happened above
-			gzos.close();
-			if (file.exists() && !file.delete()) {
-				tmpFile.delete();
-				throw new IOException("Unable to delete " + file);
-			}
-			tmpFile.renameTo(file);
+			//Append the maps that changed; which also rewrites the index
+			Map<Version, HashMap<String, Object>> changed =
+					new LinkedHashMap<Version, HashMap<String, Object>>();
+			Version prev = null;
+			HashMap<String, Object> prevMap = null;
+			for (Map.Entry<Version, HashMap<String, Object>> e : this.store.entrySet()) {
+				Version v = e.getKey();
+				HashMap<String, Object> map = e.getValue();
+				if (map != null && this.modified.contains(v)) {
+					changed.put(v, this.toStoredMap(v, map, prev, prevMap));
+				}
+				//The predecessor as it will be on disk; if it is in memory at all
+				prev = v;
+				prevMap = (map != null) ? map : this.loaded.get(v);
+			}
+			segs.write(changed, this.store.keySet());
 		} catch (Exception ex) {
 			log.warning(
 					"Saving versioned object store failed due to exception: " +
 					ex.toString()
 			);
-		} finally {
-			if (gzos != null) { gzos.close(); }
-			tmpFile.delete();
+			return;
+		}
+		
+		//The maps are now on disk; they need not be kept in memory anymore
+		this.segments = segs;
+		for (Map.Entry<Version, HashMap<String, Object>> e : this.store.entrySet()) {
+			if (e.getValue() == null) { continue; }
+			this.loaded.put(e.getKey(), e.getValue());
+			e.setValue(null);
+		}
+		this.modified.clear();
+		
+		//Keep the old single-file store as a backup, if it still exists
+		if (file.isFile()) {
+			File bak = new File(file.getPath() + LEGACY_BACKUP_SUFFIX);
+			try {
+				Files.move(file.toPath(), bak.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			} catch (IOException ex) {
+				log.warning("Unable to move outdated version file " + file + " to " + bak + ": " + ex);
+			}
+		}
+	}
+	
+	/**
+	 * Reads the maps of all versions that are only held on disk and keeps
+	 * them in memory, marked as modified.
+	 * 
+	 * @return true, if all maps could be read.
+	 */
+	private boolean loadAllMaps() {
+		for (Version v : new ArrayList<Version>(this.store.keySet())) {
+			if (this.store.get(v) != null) { continue; }
+			if (this.loadMap(v, true) == null) { return false; }
 		}
+		return true;
+	}
+	
+	/**
+	 * Returns the map to write to disk for the given version. That is either
+	 * the full map or, if the map of its direct predecessor is at hand, only
+	 * the values that differ from it.
+	 * <p>
+	 * A value is unchanged if it is the same instance as in the predecessor,
+	 * or if both have the same content hash.
+	 * 
+	 * @param v the version to write
+	 * @param map the full map of that version
+	 * @param prev the version preceding it. May be null.
+	 * @param prevMap the map of that version, as it is or will be on disk.
+	 * May be null.
+	 * @return the map to store
+	 */
+	private HashMap<String, Object> toStoredMap(
+			Version v, HashMap<String, Object> map,
+			Version prev, HashMap<String, Object> prevMap) {
+		if (prev == null || prevMap == null || prev.id != v.id - 1) {
+			return map;
+		}
+		if (v.id % KEYFRAME_INTERVAL == 0) {
+			return map;
+		}
+		HashMap<String, String> hashes = this.hashes.get(v);
+		HashMap<String, String> prevHashes = this.hashes.get(prev);
+		
+		HashMap<String, Object> delta = new HashMap<String, Object>();
+		for (Map.Entry<String, Object> e : map.entrySet()) {
+			String key = e.getKey();
+			if (prevMap.containsKey(key)) {
+				if (prevMap.get(key) == e.getValue()) { continue; }
+				if (hashes != null && prevHashes != null) {
+					String hash = hashes.get(key);
+					if (hash != null && hash.equals(prevHashes.get(key))) { continue; }
+				}
+			}
+			delta.put(key, e.getValue());
+		}
+		ArrayList<String> removed = new ArrayList<String>();
+		for (String key : prevMap.keySet()) {
+			if (!map.containsKey(key)) { removed.add(key); }
+		}
+		delta.put(deltaBaseTag, prev.id);
+		if (!removed.isEmpty()) {
+			delta.put(removedKeysTag, removed);
+		}
+		return delta;
+	}
+	
+	/**
+	 * Returns the directory in which the store belonging to the given file
+	 * is kept. It sits next to the file and is named like it, without any
+	 * file extensions.
+	 * 
+	 * @param file the file passed to {@link #save(File)} or {@link #load(File)}
+	 * @return the directory for the index and the maps of the store.
+	 */
+	public static File getStoreDir(File file) {
+		String name = file.getName();
+		int idx = name.indexOf('.');
+		if (idx > 0) {
+			name = name.substring(0, idx);
+		}
+		return new File(file.getParentFile(), name);
+	}
+	
+	/**
+	 * @param file the file passed to {@link #save(File)} or {@link #load(File)}
+	 * @return true, if a store was saved for the given file in either format.
+	 */
+	public static boolean exists(File file) {
+		if (file == null) { return false; }
+		return file.isFile() || VersionSegments.exists(getStoreDir(file));
 	}
 	
 	/**
 	 * Loads a {@link VersionedObjectStore} from the given file.
+	 * <p>
+	 * If the store was saved in the directory returned by
+	 * {@link #getStoreDir(File)}, only the index of versions is read. If
+	 * not, the file itself is read completely, as it holds the older
+	 * single-file format.
+	 * 
 	 * @param file the file to load data from. Must be XML -- either raw or
 	 * GZIP compressed.
 	 * 
@@ -332,6 +621,29 @@ public class VersionedObjectStore implements Serializable {
 	 */
 	public static VersionedObjectStore load(File file)
 			throws IllegalArgumentException, IOException, XStreamException {
+		File dir = getStoreDir(file);
+		if (VersionSegments.exists(dir)) {
+			VersionSegments segs = new VersionSegments(dir);
+			VersionedObjectStore vos = new VersionedObjectStore();
+			for (Version v : segs.readIndex()) {
+				vos.store.put(v, null);
+			}
+			vos.segments = segs;
+			return vos;
+		}
+		
+		Object obj = readXML(file);
+		//Verifying that the object is a VOS
+		if (obj instanceof VersionedObjectStore) {
+			return (VersionedObjectStore) obj;
+		} else {
+			throw new IllegalArgumentException(
+					"File does not describe a VersionedObjectStore"
+			);
+		}
+	}
+	
+	private static Object readXML(File file) throws IOException, XStreamException {
 		if (!file.exists()) {
 			throw new IOException("No such file: " + file.toString());
 		}
@@ -357,65 +669,271 @@ public class VersionedObjectStore implements Serializable {
 			if (isGZ) {
 				is = new GZIPInputStream(is);
 			}
-			Object obj = Jenkins.XSTREAM2.fromXML(is);
-			//Verifying that the object is a VOS
-			if (obj instanceof VersionedObjectStore) {
-				return (VersionedObjectStore) obj;
-			} else {
-				throw new IllegalArgumentException(
-						"File does not describe a VersionedObjectStore"
-				);
-			}
+			return Jenkins.XSTREAM2.fromXML(is);
 		} finally {
 			if (is != null) { is.close(); }
 		}
 	}
 	
+	/**
+	 * Informs the store that the file it was loaded from has moved; for
+	 * example because the project owning it was renamed. Maps that are not
+	 * in memory are then read from the new location.
+	 * 
+	 * @param file the new file, as it would be passed to {@link #save(File)}.
+	 */
+	public synchronized void relocate(File file) {
+		if (this.segments == null || file == null) { return; }
+		this.segments.relocate(getStoreDir(file));
+	}
 	
-	public boolean areIdentical(Version v1, Version v2) {
-		Map<String,Object> map1 = this.getValueMapFor(v1.id);
-		Map<String,Object> map2 = this.getValueMapFor(v2.id);
-		
-		ByteArrayOutputStream os1, os2;
-		try {
-			//First, we check if the number of keys matches
-			if (map1.size() != map2.size()) {
-				return false;
-			}
-			//Then, we verify if all keys are present in both
-			Set<String> union = Sets.union(map1.keySet(), map2.keySet());
-			if (union.size() != map1.size()) {
-				return false;
-			}
-			//Then, we verify that the values in them is identical
-			for (String key : union) {
-				os1 = new ByteArrayOutputStream();
-				os2 = new ByteArrayOutputStream();
-				
-				Object o1 = map1.get(key);
-				Object o2 = map2.get(key);
-				
-				if (o1 == null && o2 == null) {
-					continue;
-				} else if (o1 == null && o2 != null) {
-					return false;
-				} else if (o2 == null && o1 != null) {
-					return false;
+	/**
+	 * Sets the listener that is informed about each value map read from disk.
+	 * It is immediately applied to all maps that are already in memory.
+	 * 
+	 * @param listener the listener. May be null.
+	 */
+	public void setLoadListener(LoadListener listener) {
+		Map<Version, HashMap<String, Object>> resident =
+				new LinkedHashMap<Version, HashMap<String, Object>>();
+		synchronized (this) {
+			this.listener = listener;
+			if (listener == null) { return; }
+			for (Map.Entry<Version, HashMap<String, Object>> e : this.store.entrySet()) {
+				if (e.getValue() == null) { continue; }
+				resident.put(e.getKey(), e.getValue());
+			}
+		}
+		//The listener is not called while holding the lock; see getMap()
+		for (Map.Entry<Version, HashMap<String, Object>> e : resident.entrySet()) {
+			if (listener.onLoad(e.getKey(), e.getValue())) {
+				synchronized (this) {
+					this.modified.add(e.getKey());
 				}
-				try {
-					Jenkins.XSTREAM2.toXMLUTF8(o1, os1);
-					Jenkins.XSTREAM2.toXMLUTF8(o2, os2);
-				} catch (IOException ex) {
-					return false;
+			}
+		}
+	}
+	
+	/**
+	 * @return true, if there are changes to the maps that were not yet saved.
+	 * A store that was read in the older single-file format is not modified
+	 * by that alone.
+	 */
+	public synchronized boolean isModified() {
+		return !this.modified.isEmpty();
+	}
+	
+	/**
+	 * Returns the key/value map of the given version, reading it from disk
+	 * if necessary.
+	 * <p>
+	 * Do note that the {@link LoadListener} is called without holding the
+	 * lock on this store, as it may well call back into the project owning
+	 * this store; which in turn may be locked by a thread waiting for this
+	 * store.
+	 * 
+	 * @param v the version to get the map for
+	 * @param forWrite if true, the map is kept in memory and marked as modified,
+	 * so that it is written on the next save.
+	 * @return the map, or null if the version is unknown or can't be read.
+	 */
+	private HashMap<String, Object> getMap(Version v, boolean forWrite) {
+		if (v == null) { return null; }
+		if (forWrite) {
+			this.detachSuccessor(v);
+		}
+		return this.loadMap(v, forWrite);
+	}
+	
+	/**
+	 * Makes sure, that the map of the version following the given one does
+	 * not depend on the map stored for the given version anymore; by reading
+	 * it and marking it as modified. This is necessary before the map of the
+	 * given version is changed, since the successor might only have stored
+	 * its differences to it on disk.
+	 * 
+	 * @param v the version whose map is about to change
+	 */
+	private void detachSuccessor(Version v) {
+		Version next;
+		synchronized (this) {
+			if (this.segments == null || this.modified.contains(v)) { return; }
+			next = this.store.higherKey(v);
+			if (next == null || next.id != v.id + 1) { return; }
+			if (next.id % KEYFRAME_INTERVAL == 0 || this.modified.contains(next)) {
+				return;
+			}
+		}
+		this.loadMap(next, true);
+	}
+	
+	private HashMap<String, Object> loadMap(Version v, boolean forWrite) {
+		VersionSegments segs;
+		LoadListener l;
+		synchronized (this) {
+			if (!this.store.containsKey(v)) { return null; }
+			HashMap<String, Object> map = this.store.get(v);
+			if (map == null && this.segments != null) {
+				map = (forWrite) ? this.loaded.remove(v) : this.loaded.get(v);
+			}
+			if (map != null || this.segments == null) {
+				if (map != null && forWrite) {
+					this.store.put(v, map);
+					this.modified.add(v);
 				}
-				if (os1.toString().equals(os2.toString()) == false) {
-					return false;
+				return map;
+			}
+			segs = this.segments;
+			l = this.listener;
+		}
+		
+		//The map needs to be read from disk
+		HashMap<String, Object> map = this.readMap(segs, v);
+		if (map == null) { return null; }
+		boolean wasModified = (l != null && l.onLoad(v, map));
+		if (wasModified) {
+			this.detachSuccessor(v);
+		}
+		
+		synchronized (this) {
+			if (!this.store.containsKey(v)) { return null; }
+			//Another thread might have read or changed the map in the meantime
+			HashMap<String, Object> other = this.store.get(v);
+			if (other == null) {
+				other = this.loaded.get(v);
+			}
+			if (other != null) {
+				map = other;
+			}
+			if (forWrite || wasModified || this.modified.contains(v)) {
+				this.loaded.remove(v);
+				this.store.put(v, map);
+				if (forWrite || wasModified) {
+					this.modified.add(v);
 				}
+			} else {
+				this.loaded.put(v, map);
+			}
+			return map;
+		}
+	}
+	
+	/**
+	 * Reads the map of the given version from disk. If only its differences
+	 * to the predecessor were stored, the map is rebuilt on top of the map
+	 * of the predecessor; sharing the values that did not change.
+	 */
+	private HashMap<String, Object> readMap(VersionSegments segs, Version v) {
+		try {
+			HashMap<String, Object> stored = segs.read(v);
+			if (stored == null) {
+				log.warning("No map stored for version " + v.id + " in " + segs.getDir());
+				return null;
+			}
+			Object baseId = stored.remove(deltaBaseTag);
+			Object removed = stored.remove(removedKeysTag);
+			if (!(baseId instanceof Long)) {
+				return stored;
+			}
+			HashMap<String, Object> base = this.loadMap(
+					this.getVersion((Long) baseId), false
+			);
+			if (base == null) {
+				log.warning(
+						"Could not load map of version " + v.id +
+						"; the map of version " + baseId + " it is based on is missing"
+				);
+				return null;
 			}
-		} catch (XStreamException ex) {
+			HashMap<String, Object> map = new HashMap<String, Object>(base);
+			if (removed instanceof Collection) {
+				map.keySet().removeAll((Collection<?>) removed);
+			}
+			map.putAll(stored);
+			return map;
+		} catch (IOException | XStreamException ex) {
+			log.warning(
+					"Could not load map of version " + v.id + " from " +
+					segs.getDir() + ": " + ex.toString()
+			);
+			return null;
+		}
+	}
+	
+	
+	/**
+	 * Checks whether the maps of the two versions hold the same keys with
+	 * the same content; by comparing the content hashes of their values.
+	 * 
+	 * @param v1 the first version
+	 * @param v2 the second version
+	 * @return true, if both versions have the same content.
+	 */
+	public boolean areIdentical(Version v1, Version v2) {
+		Map<String, String> h1 = this.getHashes(v1);
+		Map<String, String> h2 = this.getHashes(v2);
+		if (h1 == null || h2 == null) {
 			return false;
 		}
-		return true;
+		//Values whose hash could not be computed are never identical
+		if (h1.containsValue(null) || h2.containsValue(null)) {
+			return false;
+		}
+		return h1.equals(h2);
+	}
+	
+	/**
+	 * Computes the content hash of a stored value; which is the SHA-256
+	 * digest of its XML serialisation.
+	 * 
+	 * @param value the value. May be null.
+	 * @return the hash as a hex string, or null if the value can't be
+	 * serialised.
+	 */
+	private static String computeHash(Object value) {
+		if (value == null) { return ""; }
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			try (DigestOutputStream dos = new DigestOutputStream(
+					NullOutputStream.NULL_OUTPUT_STREAM, md)) {
+				Jenkins.XSTREAM2.toXMLUTF8(value, dos);
+			}
+			return Util.toHexString(md.digest());
+		} catch (NoSuchAlgorithmException | IOException | XStreamException ex) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Returns the content hashes of all values in the map of the given
+	 * version; computing and buffering them if necessary.
+	 * 
+	 * @param v the version
+	 * @return an unmodifiable map of the keys to the hashes of their values.
+	 * Null, if the version does not exist. A hash is null, if the value
+	 * could not be serialised.
+	 */
+	private Map<String, String> getHashes(Version v) {
+		if (v == null) { return null; }
+		synchronized (this) {
+			HashMap<String, String> h = this.hashes.get(v);
+			if (h != null) { return Collections.unmodifiableMap(h); }
+		}
+		HashMap<String, Object> map = this.getMap(v, false);
+		if (map == null) { return null; }
+		
+		HashMap<String, String> h = new HashMap<String, String>();
+		for (Map.Entry<String, Object> e : map.entrySet()) {
+			h.put(e.getKey(), computeHash(e.getValue()));
+		}
+		synchronized (this) {
+			if (!this.store.containsKey(v)) { return null; }
+			//Another thread might have stored a value in the meantime
+			HashMap<String, String> other = this.hashes.get(v);
+			if (other != null) { h = other; }
+			this.hashes.put(v, h);
+			return Collections.unmodifiableMap(h);
+		}
 	}
 	
 	/**
@@ -507,8 +1025,22 @@ public class VersionedObjectStore implements Serializable {
 		}
 	}
 	
+	/**
+	 * Returns the maps of all versions; which means that all of them are
+	 * read into and kept in memory until the next {@link #save(File)}.
+	 * 
+	 * @deprecated use {@link #getValueMapFor(Long)} or
+	 * {@link #setLoadListener(LoadListener)} instead.
+	 * @return the maps of all versions, in ascending order of versions.
+	 */
+	@Deprecated
 	public Collection<HashMap<String, Object>> getAllValueMaps() {
-		return this.store.values();
+		List<HashMap<String, Object>> lst = new ArrayList<HashMap<String, Object>>();
+		for (Version v : this.getAllVersions()) {
+			HashMap<String, Object> map = this.getMap(v, true);
+			if (map != null) { lst.add(map); }
+		}
+		return lst;
 	}
 	
 	/**
@@ -518,16 +1050,25 @@ public class VersionedObjectStore implements Serializable {
 	 * @return a blank next version.
 	 */
 	public Version createNextVersion() {
-		if (this.store.isEmpty()) {
+		Version oldVer = this.getLatestVersion();
+		if (oldVer == null) {
 			return this.createNextVersionAsEmpty();
 		}
-		Version oldVer = this.getLatestVersion();
-		HashMap<String, Object> oldMap = store.get(oldVer);
+		HashMap<String, Object> oldMap = this.getMap(oldVer, false);
 		
 		Version newVer = new Version(oldVer.id + 1);
-		HashMap<String, Object> newMap = new HashMap<String, Object>(oldMap);
+		HashMap<String, Object> newMap = (oldMap != null)
+				? new HashMap<String, Object>(oldMap)
+				: new HashMap<String, Object>();
 		
-		this.store.put(newVer, newMap);
+		synchronized (this) {
+			this.store.put(newVer, newMap);
+			this.modified.add(newVer);
+			HashMap<String, String> oldHashes = this.hashes.get(oldVer);
+			if (oldHashes != null && oldMap != null) {
+				this.hashes.put(newVer, new HashMap<String, String>(oldHashes));
+			}
+		}
 		
 		//Saving the current metadata version
 		this.setObjectFor(newVer, formatVersionTag, currentFormatVersion);
@@ -544,13 +1085,16 @@ public class VersionedObjectStore implements Serializable {
 	 * 
 	 * @param v the version to commit
 	 */
-	public void undoVersion(Version v) {
+	public synchronized void undoVersion(Version v) {
 		Version latest = this.getLatestVersion();
 		if (latest == null || v == null) {
 			return;
 		}
 		if (v.id == latest.id) {
 			this.store.remove(latest);
+			this.loaded.remove(latest);
+			this.modified.remove(latest);
+			this.hashes.remove(latest);
 		}
 	}
 	
@@ -560,7 +1104,7 @@ public class VersionedObjectStore implements Serializable {
 	 * 
 	 * @return a blank, next version
 	 */
-	public Version createNextVersionAsEmpty() {
+	public synchronized Version createNextVersionAsEmpty() {
 		Version v = this.getLatestVersion();
 		if (v == null) {
 			v = new Version(1L);
@@ -568,6 +1112,8 @@ public class VersionedObjectStore implements Serializable {
 			v = new Version(v.id + 1);
 		}
 		this.store.put(v, new HashMap<String, Object>());
+		this.modified.add(v);
+		this.hashes.put(v, new HashMap<String, String>());
 		
 		//Saving the current metadata version
 		this.setObjectFor(v, formatVersionTag, currentFormatVersion);
@@ -576,7 +1122,7 @@ public class VersionedObjectStore implements Serializable {
 	}
 
 	
-	public Version createNextVersionWithMapping(Map<String, Object> map) {
+	public synchronized Version createNextVersionWithMapping(Map<String, Object> map) {
 		Version v = this.getLatestVersion();
 		if (v == null) {
 			v = new Version(1L);
@@ -584,6 +1130,7 @@ public class VersionedObjectStore implements Serializable {
 			v = new Version(v.id + 1);
 		}
 		this.store.put(v, new HashMap<String, Object>(map));
+		this.modified.add(v);
 		
 		//Saving the current metadata version
 		this.setObjectFor(v, formatVersionTag, currentFormatVersion);
@@ -593,8 +1140,7 @@ public class VersionedObjectStore implements Serializable {
 
 	public Object getObject(Long id, String key) {
 		if (id == null || key == null) { return null; }
-		Version v = new Version(id);
-		HashMap<String, Object> map = this.store.get(v);
+		HashMap<String, Object> map = this.getMap(new Version(id), false);
 		if (map == null) { return null; }
 		return map.get(key);
 	}
@@ -619,7 +1165,7 @@ public class VersionedObjectStore implements Serializable {
 		if (id == null) { return null; }
 		Version v = this.getVersion(id);
 		if (v == null) { return null; }
-		Map<String, Object> map = this.store.get(v);
+		Map<String, Object> map = this.getMap(v, false);
 		if (map == null) {
 			return null;
 		}
@@ -627,18 +1173,47 @@ public class VersionedObjectStore implements Serializable {
 	}
 
 
+	/**
+	 * Stores the given value for the given key in the map of the given version.
+	 * <p>
+	 * The content hash of the value is computed right away. If the previous
+	 * version holds a value with the same hash for this key, that value is
+	 * stored instead; so that both versions share the same instance.
+	 * 
+	 * @param v the version
+	 * @param key the key of the value
+	 * @param value the value. May be null.
+	 * @return true, if the value was stored.
+	 */
 	public boolean setObjectFor(Version v, String key, Object value) {
 		if (key == null || v == null) {
 			return false;
 		}
-		HashMap<String, Object> map = this.store.get(v);
+		HashMap<String, Object> map = this.getMap(v, true);
 		if (map == null) {
 			//Something horribly went wrong
 			throw new IllegalStateException(
 					"Found a version that is not associated with a map"
 			);
 		}
-		map.put(key, value);
+		String hash = computeHash(value);
+		
+		//Sharing the value of the previous version, if it has the same content
+		Version prev = this.getVersion(Long.valueOf(v.id - 1));
+		if (hash != null && value != null && prev != null) {
+			Map<String, String> prevHashes = this.getHashes(prev);
+			if (prevHashes != null && hash.equals(prevHashes.get(key))) {
+				HashMap<String, Object> prevMap = this.getMap(prev, false);
+				Object prevValue = (prevMap != null) ? prevMap.get(key) : null;
+				if (prevValue != null) { value = prevValue; }
+			}
+		}
+		
+		synchronized (this) {
+			map.put(key, value);
+			HashMap<String, String> h = this.hashes.get(v);
+			if (h != null) { h.put(key, hash); }
+		}
 		return true;
 	}
 
@@ -52,6 +52,15 @@ l.main_panel() {
 			}
 		}
 		
+		f.section(title: _("PerformanceSection")) {
+			f.entry(
+				title: _("DisableStackReflection"),
+				field: "disableStackReflection"
+			) {
+				f.checkbox()
+			}
+		}
+		
 		f.section(title: _("CreationSection")) {
 			f.entry(
 					title: _("CreationEnableTitle"),
@@ -0,0 +1,134 @@
+/**
+ * Copyright (c) 2019 Intel Corporation
+ * Copyright (c) 2015-2017 Intel Deutschland GmbH
+ * Copyright (c) 2011-2015 Intel Mobile Communications GmbH
+ *
+ * This file is part of the Inheritance plug-in for Jenkins.
+ *
+ * The Inheritance plug-in is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation in version 3
+ * of the License
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.project_inheritance.projects;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+import hudson.EnvVars;
+import hudson.plugins.project_inheritance.util.OrderedResolver;
+
+/**
+ * This class tests that the {@link OrderedResolver} expands the variables of
+ * a build the same way as resolving them one after the other would; in
+ * particular for the environment used by
+ * {@link InheritanceBuild#getWorkspacePathFor}.
+ */
+public class TestOrderedResolver {
+
+	@Test
+	public void testChains() {
+		Map<String, String> vars = new HashMap<String, String>();
+		vars.put("A", "${B}/a");
+		vars.put("B", "${C}/b");
+		vars.put("C", "c");
+		vars.put("D", "$A and ${C}");
+		vars.put("E", "${UNKNOWN}/e");
+
+		OrderedResolver r = new OrderedResolver(vars);
+		assertEquals("c/b/a", r.resolve("A"));
+		assertEquals("c/b", r.resolve("B"));
+		assertEquals("c/b/a and c", r.resolve("D"));
+		//Unknown references are left in place
+		assertEquals("${UNKNOWN}/e", r.resolve("E"));
+		assertNull(r.resolve("UNKNOWN"));
+		assertEquals("c/b:c/b/a", r.resolveString("${B}:${A}"));
+		assertTrue(r.getCyclicVariables().isEmpty());
+
+		//Later changes of the source must have no effect
+		vars.put("C", "changed");
+		assertEquals("c", r.resolve("C"));
+		assertEquals("c/b/a", r.resolveAll().get("A"));
+	}
+
+	@Test
+	public void testCaseInsensitiveLookups() {
+		EnvVars env = new EnvVars();
+		env.put("WORKSPACE", "/var/ws");
+		env.put("Job_Name", "job");
+		env.put("CUSTOM_WS", "${Workspace}/${JOB_NAME}");
+
+		OrderedResolver r = new OrderedResolver(env);
+		assertEquals("/var/ws/job", r.resolve("CUSTOM_WS"));
+		assertEquals("/var/ws/job", r.resolve("custom_ws"));
+		assertEquals("/var/ws", r.resolve("workspace"));
+		assertEquals("/var/ws/job/x", r.resolveString("${workspace}/${job_name}/x"));
+
+		//The result keeps the names and the lookups of the source
+		Map<String, String> all = r.resolveAll();
+		assertEquals("/var/ws/job", all.get("Custom_Ws"));
+		assertEquals(
+				new TreeSet<String>(Arrays.asList("CUSTOM_WS", "Job_Name", "WORKSPACE")),
+				new TreeSet<String>(all.keySet())
+		);
+
+		//Plain maps are still case-sensitive
+		Map<String, String> plain = new HashMap<String, String>(env);
+		r = new OrderedResolver(plain);
+		assertEquals("${Workspace}/${JOB_NAME}", r.resolve("CUSTOM_WS"));
+		assertNull(r.resolve("workspace"));
+	}
+
+	@Test
+	public void testCycles() {
+		Map<String, String> vars = new HashMap<String, String>();
+		vars.put("A", "${B}");
+		vars.put("B", "${A}");
+		vars.put("SELF", "x${SELF}");
+		vars.put("D", "${A}-d");
+		vars.put("OK", "ok");
+
+		OrderedResolver r = new OrderedResolver(vars);
+		Map<String, String> all = r.resolveAll();
+		assertEquals(
+				new TreeSet<String>(Arrays.asList("A", "B", "SELF")),
+				r.getCyclicVariables()
+		);
+		//The references closing a cycle are left unexpanded
+		assertEquals("${A}", all.get("A"));
+		assertEquals("x${SELF}", all.get("SELF"));
+		assertEquals("${A}-d", all.get("D"));
+		assertEquals("ok", all.get("OK"));
+	}
+
+	@Test
+	public void testCaseInsensitiveCycles() {
+		EnvVars env = new EnvVars();
+		env.put("A", "${b}");
+		env.put("B", "${a}");
+
+		OrderedResolver r = new OrderedResolver(env);
+		r.resolveAll();
+		//Reported under the names of the source; not the referencing ones
+		assertEquals(
+				new TreeSet<String>(Arrays.asList("A", "B")),
+				r.getCyclicVariables()
+		);
+	}
+}
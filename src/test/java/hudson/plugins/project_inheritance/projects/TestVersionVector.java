@@ -0,0 +1,154 @@
+/**
+ * Copyright (c) 2019 Intel Corporation
+ * Copyright (c) 2015-2017 Intel Deutschland GmbH
+ * Copyright (c) 2011-2015 Intel Mobile Communications GmbH
+ *
+ * This file is part of the Inheritance plug-in for Jenkins.
+ *
+ * The Inheritance plug-in is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation in version 3
+ * of the License
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.project_inheritance.projects;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import hudson.model.Run;
+import hudson.plugins.project_inheritance.projects.actions.VersioningAction;
+import hudson.plugins.project_inheritance.projects.versioning.VersionVector;
+
+/**
+ * This class tests the encoding of {@link VersionVector}s; both on its own
+ * and as part of the {@link VersioningAction} persisted in the build.xml
+ * of every build.
+ * <p>
+ * As build records are kept forever, the records written by older versions
+ * of this plugin must stay readable; and the current encoding must not
+ * change by accident.
+ */
+public class TestVersionVector {
+	@Rule public final JenkinsRule jRule = new JenkinsRule();
+
+	/**
+	 * The action as it was written before the versions were stored as a
+	 * {@link VersionVector}; with one XML element per map entry.
+	 */
+	private static final String LEGACY_XML =
+			"<hudson.plugins.project__inheritance.projects.actions.VersioningAction>\n" +
+			"  <versionMap>\n" +
+			"    <entry>\n" +
+			"      <string>alpha</string>\n" +
+			"      <long>3</long>\n" +
+			"    </entry>\n" +
+			"    <entry>\n" +
+			"      <string>folder/beta</string>\n" +
+			"      <long>12</long>\n" +
+			"    </entry>\n" +
+			"  </versionMap>\n" +
+			"</hudson.plugins.project__inheritance.projects.actions.VersioningAction>";
+
+
+	private static Map<String, Long> createMap() {
+		Map<String, Long> map = new HashMap<String, Long>();
+		map.put("alpha", 3L);
+		map.put("folder/beta", 12L);
+		return map;
+	}
+
+	@Test
+	public void testLegacyXmlIsConverted() {
+		Object obj = Run.XSTREAM2.fromXML(LEGACY_XML);
+		assertTrue("Legacy XML must yield an action", obj instanceof VersioningAction);
+
+		VersioningAction va = (VersioningAction) obj;
+		assertTrue(
+				"Legacy map must be converted to a vector",
+				va.versionMap instanceof VersionVector
+		);
+		assertEquals(createMap(), va.versionMap);
+	}
+
+	@Test
+	public void testXmlRoundTrip() {
+		VersioningAction va = new VersioningAction(createMap());
+		String xml = Run.XSTREAM2.toXML(va);
+
+		//The vector is written as its encoding; not entry by entry
+		assertTrue("XML lacks encoded vector: " + xml, xml.contains("alpha=3;folder/beta=12"));
+		assertFalse("XML contains map entries: " + xml, xml.contains("<entry>"));
+
+		VersioningAction read = (VersioningAction) Run.XSTREAM2.fromXML(xml);
+		assertTrue(read.versionMap instanceof VersionVector);
+		assertEquals(va.versionMap, read.versionMap);
+
+		//Reading and writing again must not change the record
+		assertEquals(xml, Run.XSTREAM2.toXML(read));
+	}
+
+	@Test
+	public void testEncodeDecodeRoundTrip() {
+		Map<String, Long> map = createMap();
+		map.put("name=with=equals", 7L);
+		map.put("zero", 0L);
+		map.put("huge", Long.MAX_VALUE);
+
+		VersionVector vv = VersionVector.of(map);
+		assertEquals(map, vv);
+		assertEquals(vv, VersionVector.decode(vv.encode()));
+		assertEquals(vv.encode(), VersionVector.decode(vv.encode()).encode());
+
+		//The encoding is sorted by name; regardless of the source map
+		assertEquals(
+				"alpha=3;folder/beta=12;huge=" + Long.MAX_VALUE + ";name=with=equals=7;zero=0",
+				vv.encode()
+		);
+	}
+
+	@Test
+	public void testEmptyVectors() {
+		assertSame(VersionVector.EMPTY, VersionVector.decode(null));
+		assertSame(VersionVector.EMPTY, VersionVector.decode(""));
+		assertSame(VersionVector.EMPTY, VersionVector.of(null));
+		assertSame(VersionVector.EMPTY, VersionVector.of(new HashMap<String, Long>()));
+		assertEquals("", VersionVector.EMPTY.encode());
+	}
+
+	@Test
+	public void testMalformedEntriesAreSkipped() {
+		VersionVector vv = VersionVector.decode(
+				"a=1;;=2;b=;c;d=x;e=5;f=g=6"
+		);
+		Map<String, Long> expected = new HashMap<String, Long>();
+		expected.put("a", 1L);
+		expected.put("e", 5L);
+		expected.put("f=g", 6L);
+		assertEquals(expected, vv);
+
+		//Entries that can't be encoded are skipped as well
+		Map<String, Long> map = new HashMap<String, Long>();
+		map.put("a", 1L);
+		map.put("", 2L);
+		map.put(null, 3L);
+		map.put("b", null);
+		assertEquals(VersionVector.decode("a=1"), VersionVector.of(map));
+	}
+}
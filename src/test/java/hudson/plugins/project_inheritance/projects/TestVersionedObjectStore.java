@@ -0,0 +1,261 @@
+/**
+ * Copyright (c) 2019 Intel Corporation
+ * Copyright (c) 2015-2017 Intel Deutschland GmbH
+ * Copyright (c) 2011-2015 Intel Mobile Communications GmbH
+ *
+ * This file is part of the Inheritance plug-in for Jenkins.
+ *
+ * The Inheritance plug-in is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation in version 3
+ * of the License
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.project_inheritance.projects;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import hudson.plugins.project_inheritance.projects.references.AbstractProjectReference;
+import hudson.plugins.project_inheritance.util.VersionedObjectStore;
+import hudson.plugins.project_inheritance.util.VersionedObjectStore.Version;
+import hudson.plugins.project_inheritance.utils.XmlProject;
+
+/**
+ * This class tests that the maps of all versions in a
+ * {@link VersionedObjectStore} survive being saved and loaded again.
+ * <p>
+ * On disk, most versions only store their differences to the previous one.
+ * Thus, changing an older version, undoing the latest one or moving the
+ * directory of the store must never break the chain of versions after it.
+ */
+public class TestVersionedObjectStore {
+	@Rule public final JenkinsRule jRule = new JenkinsRule();
+	@Rule public final TemporaryFolder tmp = new TemporaryFolder();
+
+	/**
+	 * More than two full chains of versions between the versions storing
+	 * their full map.
+	 */
+	private static final int NUM_VERSIONS = 40;
+
+
+	/**
+	 * The expected maps of all versions; index 0 is unused.
+	 */
+	private final List<Map<String, Object>> expected =
+			new ArrayList<Map<String, Object>>();
+
+
+	/**
+	 * Creates a store where some values change with every version, some
+	 * rarely, some never and some keys are removed and added again.
+	 */
+	private VersionedObjectStore createStore() {
+		VersionedObjectStore vos = new VersionedObjectStore();
+		expected.clear();
+		expected.add(null);
+
+		for (int i = 1; i <= NUM_VERSIONS; i++) {
+			Map<String, Object> map = new HashMap<String, Object>();
+			map.put("always", "always-" + i);
+			map.put("rarely", "rarely-" + (i / 5));
+			map.put("never", "never");
+			if (i % 3 != 0) {
+				map.put("sometimes", "sometimes-" + (i / 2));
+			}
+			expected.add(map);
+
+			Version v;
+			if (i % 3 != 2) {
+				//A fresh map; which drops and re-adds the optional key
+				v = vos.createNextVersionWithMapping(map);
+			} else {
+				//A copy of the previous map; sharing the unchanged values
+				v = vos.createNextVersion();
+				for (Map.Entry<String, Object> e : map.entrySet()) {
+					vos.setObjectFor(v, e.getKey(), e.getValue());
+				}
+			}
+			assertEquals(Long.valueOf(i), v.id);
+		}
+		return vos;
+	}
+
+	private void setExpected(VersionedObjectStore vos, long id, String key, String value) {
+		Version v = vos.getVersion(id);
+		assertNotNull("No such version: " + id, v);
+		assertTrue(vos.setObjectFor(v, key, value));
+		expected.get((int) id).put(key, value);
+	}
+
+	private void assertAllMaps(VersionedObjectStore vos) {
+		assertEquals(NUM_VERSIONS, vos.size());
+		for (int i = 1; i <= NUM_VERSIONS; i++) {
+			Map<String, Object> map = vos.getValueMapFor(Long.valueOf(i));
+			assertNotNull("Map of version " + i + " is missing", map);
+
+			//The store adds its own metadata to each map
+			Map<String, Object> actual = new HashMap<String, Object>(map);
+			Iterator<String> iter = actual.keySet().iterator();
+			while (iter.hasNext()) {
+				if (iter.next().startsWith("INTERNAL_")) { iter.remove(); }
+			}
+			assertEquals("Map of version " + i, expected.get(i), actual);
+		}
+	}
+
+
+	@Test
+	public void testSaveAndReload() throws IOException {
+		File file = new File(tmp.newFolder("job"), "versions.xml.gz");
+		VersionedObjectStore vos = this.createStore();
+		assertAllMaps(vos);
+		vos.save(file);
+		assertAllMaps(vos);
+
+		assertTrue(VersionedObjectStore.exists(file));
+		assertFalse("Store must be saved as a directory", file.exists());
+		assertAllMaps(VersionedObjectStore.load(file));
+	}
+
+	@Test
+	public void testEditMiddleVersions() throws IOException {
+		File file = new File(tmp.newFolder("job"), "versions.xml.gz");
+		this.createStore().save(file);
+
+		//Changing a version in the middle of a chain, a version storing its
+		//full map and the one just before such a version
+		VersionedObjectStore vos = VersionedObjectStore.load(file);
+		setExpected(vos, 20, "always", "edited-20");
+		setExpected(vos, 16, "rarely", "edited-16");
+		setExpected(vos, 31, "never", "edited-31");
+		assertAllMaps(vos);
+		vos.save(file);
+		assertAllMaps(vos);
+
+		vos = VersionedObjectStore.load(file);
+		assertAllMaps(vos);
+
+		//Changing them once more, after they were reloaded partially
+		vos.getValueMapFor(21L);
+		setExpected(vos, 20, "never", "edited-again-20");
+		vos.save(file);
+		assertAllMaps(VersionedObjectStore.load(file));
+	}
+
+	@Test
+	public void testUndoVersion() throws IOException {
+		File file = new File(tmp.newFolder("job"), "versions.xml.gz");
+		this.createStore().save(file);
+
+		VersionedObjectStore vos = VersionedObjectStore.load(file);
+		Version v = vos.createNextVersion();
+		vos.setObjectFor(v, "always", "undone");
+		vos.undoVersion(v);
+		assertAllMaps(vos);
+		vos.save(file);
+		assertAllMaps(VersionedObjectStore.load(file));
+
+		//Undoing a version that had already been saved
+		vos = VersionedObjectStore.load(file);
+		v = vos.createNextVersion();
+		vos.save(file);
+		vos.undoVersion(v);
+		vos.save(file);
+		assertAllMaps(VersionedObjectStore.load(file));
+	}
+
+	@Test
+	public void testRename() throws IOException {
+		File oldRoot = tmp.newFolder("job");
+		File oldFile = new File(oldRoot, "versions.xml.gz");
+		this.createStore().save(oldFile);
+
+		//Moving the directory of the job; with none of the maps read yet
+		VersionedObjectStore vos = VersionedObjectStore.load(oldFile);
+		File newRoot = new File(tmp.getRoot(), "renamed");
+		Files.move(oldRoot.toPath(), newRoot.toPath());
+		File newFile = new File(newRoot, "versions.xml.gz");
+		vos.relocate(newFile);
+		assertAllMaps(vos);
+
+		setExpected(vos, 25, "always", "edited-25");
+		vos.save(newFile);
+		assertAllMaps(VersionedObjectStore.load(newFile));
+
+		//Moving it again, without informing the store
+		vos = VersionedObjectStore.load(newFile);
+		File movedRoot = new File(tmp.getRoot(), "moved");
+		Files.move(newRoot.toPath(), movedRoot.toPath());
+		File movedFile = new File(movedRoot, "versions.xml.gz");
+		vos.save(movedFile);
+		assertAllMaps(VersionedObjectStore.load(movedFile));
+	}
+
+	private static void assertParentNames(VersionedObjectStore vos, String name) {
+		for (Version v : vos.getAllVersions()) {
+			Object obj = vos.getObject(v, "parentReferences");
+			assertTrue("Version " + v.id + " lacks its parents", obj instanceof List);
+			List<?> refs = (List<?>) obj;
+			assertEquals("Parents of version " + v.id, 1, refs.size());
+			assertEquals(
+					"Parent of version " + v.id, name,
+					((AbstractProjectReference) refs.get(0)).getName()
+			);
+		}
+	}
+
+	@Test
+	public void testRenameParentAcrossKeyframe() throws IOException {
+		XmlProject parent = new XmlProject("parent");
+		XmlProject child = new XmlProject("child");
+		child.addParent("parent", null);
+
+		//The unchanged parent references are shared by all these versions;
+		//including the one storing its full map
+		for (int i = 1; i <= 20; i++) {
+			child.project.setQuietPeriod(i);
+			child.project.dumpConfigToNewVersion();
+		}
+		VersionedObjectStore vos = child.project.getVersionedObjectStore();
+		assertEquals(20, vos.size());
+		assertParentNames(vos, "parent");
+
+		parent.project.renameTo("parent-renamed");
+		assertParentNames(vos, "parent-renamed");
+		assertEquals(
+				"parent-renamed",
+				child.project.getRawParentReferences().get(0).getName()
+		);
+
+		//All versions must have been written again; not only the first one
+		assertParentNames(
+				VersionedObjectStore.load(child.project.getVersionFile()),
+				"parent-renamed"
+		);
+	}
+}